@@ -0,0 +1,112 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ajp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures marshalling and unmarshalling of an AJP forward request message,
+ * laid out the same way as AJPClient does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AJPMessageBenchmark {
+
+	private static final String[][] HEADERS = {
+			{ "Host", "www.example.com" },
+			{ "User-Agent",
+					"Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0" },
+			{ "Accept",
+					"text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8" },
+			{ "Accept-Language", "en-US,en;q=0.5" },
+			{ "Accept-Encoding", "gzip, deflate" },
+			{ "Cookie", "JSESSIONID=0123456789ABCDEF0123456789ABCDEF" } };
+
+	private AJPMessage message;
+
+	private byte[] bytes;
+
+	@Setup
+	public void setup() {
+		message = new AJPMessage(AJPConstants.MAX_PACKET_SIZE);
+		marshal();
+		bytes = message.toByteArray();
+	}
+
+	@Benchmark
+	public int marshal() {
+		message.reset();
+		message.appendByte(AJPConstants.JK_AJP13_FORWARD_REQUEST);
+		message.appendByte(AJPConstants.getRequestMethodIndex("GET"));
+		message.appendString("HTTP/1.1");
+		message.appendString("/index.html");
+		message.appendString("127.0.0.1");
+		message.appendString("localhost");
+		message.appendString("www.example.com");
+		message.appendInt(80);
+		message.appendBoolean(false);
+		message.appendInt(HEADERS.length);
+		for (int i = 0; i < HEADERS.length; i++) {
+			message.appendString(HEADERS[i][0]);
+			message.appendString(HEADERS[i][1]);
+		}
+		message.appendByte(AJPConstants.SC_A_ARE_DONE);
+		message.endClientMessage();
+		return message.getLen();
+	}
+
+	@Benchmark
+	public void unmarshal(Blackhole bh) throws IOException {
+		message.readMessage(new ByteArrayInputStream(bytes));
+		bh.consume(message.getByte());
+		bh.consume(message.getByte());
+		for (int i = 0; i < 5; i++)
+			bh.consume(message.getString());
+		bh.consume(message.getInt());
+		bh.consume(message.getBoolean());
+		int headers = message.getInt();
+		for (int i = 0; i < headers; i++) {
+			bh.consume(message.getString());
+			bh.consume(message.getString());
+		}
+		bh.consume(message.getByte());
+	}
+
+}
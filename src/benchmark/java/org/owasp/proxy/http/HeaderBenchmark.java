@@ -0,0 +1,129 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.proxy.io.HeaderInputStream;
+import org.owasp.proxy.util.AsciiString;
+
+/**
+ * Measures reading a typical browser request header off the wire, and looking
+ * up and changing its fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+	static final String REQUEST = "GET http://www.example.com/index.html?q=owasp+proxy HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Referer: http://www.example.com/\r\n"
+			+ "Cookie: JSESSIONID=0123456789ABCDEF0123456789ABCDEF; theme=dark; tracking=abcdefghijklmnopqrstuvwxyz\r\n"
+			+ "Proxy-Connection: keep-alive\r\n"
+			+ "Upgrade-Insecure-Requests: 1\r\n"
+			+ "Cache-Control: max-age=0\r\n" + "\r\n";
+
+	private byte[] bytes;
+
+	private MutableRequestHeader.Impl indexed;
+
+	@Setup
+	public void setup() throws Exception {
+		bytes = AsciiString.getBytes(REQUEST);
+		indexed = new MutableRequestHeader.Impl();
+		indexed.setHeader(bytes);
+		indexed.getHeader("Host");
+	}
+
+	@Benchmark
+	public MessageHeader readHeader() throws Exception {
+		return MessageUtils.readHeader(new ByteArrayInputStream(bytes));
+	}
+
+	@Benchmark
+	public byte[] headerInputStream() throws Exception {
+		return new HeaderInputStream(new ByteArrayInputStream(bytes))
+				.readHeader();
+	}
+
+	@Benchmark
+	public byte[] headerInputStreamLenient() throws Exception {
+		return new HeaderInputStream(new ByteArrayInputStream(bytes), 4096,
+				true).readHeader();
+	}
+
+	/**
+	 * Looks up a field in a header that has not been parsed before
+	 */
+	@Benchmark
+	public String getHeaderFirst() throws Exception {
+		MutableRequestHeader.Impl header = new MutableRequestHeader.Impl();
+		header.setHeader(bytes);
+		return header.getHeader("Cookie");
+	}
+
+	/**
+	 * Looks up a field in a header that has been parsed already
+	 */
+	@Benchmark
+	public String getHeaderRepeated() throws Exception {
+		return indexed.getHeader("Cookie");
+	}
+
+	@Benchmark
+	public NamedValue[] getHeaders() throws Exception {
+		return indexed.getHeaders();
+	}
+
+	/**
+	 * Rewrites the header the way the proxy does before forwarding a request
+	 */
+	@Benchmark
+	public byte[] rewriteHeader() throws Exception {
+		MutableRequestHeader.Impl header = new MutableRequestHeader.Impl();
+		header.setHeader(bytes);
+		header.setResource("/index.html?q=owasp+proxy");
+		header.deleteHeader("Proxy-Connection");
+		header.setHeader("Accept-Encoding", "gzip");
+		return header.getHeader();
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * Measures saving and loading complete conversations through JdbcMessageDAO,
+ * using an in-memory H2 database. Since identical content is only stored once,
+ * save() stamps a counter into the response content so that every invocation
+ * inserts new content, while saveDuplicate() saves the same content each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcMessageDAOBenchmark {
+
+	@Param( { "1024", "65536" })
+	public int size;
+
+	private JdbcMessageDAO dao;
+
+	private MutableBufferedRequest request;
+
+	private MutableBufferedResponse response;
+
+	private byte[] content, duplicate;
+
+	private int counter = 0;
+
+	private int conversation;
+
+	@Setup
+	public void setup() throws Exception {
+		Logger.getLogger(DriverManagerDataSource.class.getName()).setLevel(
+				Level.OFF);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:benchmark" + size + ";DB_CLOSE_DELAY=-1");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dao = new JdbcMessageDAO();
+		dao.setDataSource(dataSource);
+		dao.createTables();
+
+		request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setSsl(false);
+		request.setHeader(AsciiString
+				.getBytes("POST /form HTTP/1.1\r\nHost: localhost\r\n"
+						+ "Content-Length: 14\r\n\r\n"));
+		request.setContent(AsciiString.getBytes("name=value&a=b"));
+		request.setTime(1);
+		response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.1 200 Ok\r\n"
+				+ "Content-Type: application/octet-stream\r\n"
+				+ "Content-Length: " + size + "\r\n\r\n"));
+		content = new byte[size];
+		new Random(size).nextBytes(content);
+		duplicate = content.clone();
+		response.setContent(content);
+		response.setHeaderTime(2);
+		response.setContentTime(3);
+
+		conversation = saveConversation();
+	}
+
+	@TearDown
+	public void tearDown() {
+		dao.getJdbcTemplate().execute("SHUTDOWN");
+	}
+
+	@Benchmark
+	public int save() {
+		int n = counter++;
+		content[0] = (byte) n;
+		content[1] = (byte) (n >> 8);
+		content[2] = (byte) (n >> 16);
+		content[3] = (byte) (n >> 24);
+		response.setContent(content);
+		return saveConversation();
+	}
+
+	@Benchmark
+	public int saveDuplicate() {
+		response.setContent(duplicate);
+		return saveConversation();
+	}
+
+	private int saveConversation() {
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	@Benchmark
+	public void load(Blackhole bh) {
+		Conversation c = dao.getConversation(conversation);
+		bh.consume(dao.loadRequest(c.getRequestId()));
+		bh.consume(dao.loadResponse(c.getResponseId()));
+	}
+
+	@Benchmark
+	public void loadHeaders(Blackhole bh) {
+		Conversation c = dao.getConversation(conversation);
+		bh.consume(dao.loadRequestHeader(c.getRequestId()));
+		bh.consume(dao.loadResponseHeader(c.getResponseId()));
+	}
+
+}
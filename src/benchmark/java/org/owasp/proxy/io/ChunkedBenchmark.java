@@ -0,0 +1,135 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding and encoding of chunked message bodies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedBenchmark {
+
+	@Param( { "1024", "65536", "1048576" })
+	public int size;
+
+	@Param( { "4096" })
+	public int chunkSize;
+
+	private byte[] content;
+
+	private byte[] chunked;
+
+	private byte[] buff = new byte[8192];
+
+	@Setup
+	public void setup() throws IOException {
+		content = new byte[size];
+		new Random(size).nextBytes(content);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream cos = new ChunkedOutputStream(out, chunkSize);
+		cos.write(content);
+		cos.close();
+		chunked = out.toByteArray();
+	}
+
+	private long drain(InputStream in) throws IOException {
+		long total = 0;
+		int got;
+		while ((got = in.read(buff)) > -1)
+			total += got;
+		in.close();
+		return total;
+	}
+
+	@Benchmark
+	public long dechunk() throws IOException {
+		return drain(new ChunkedInputStream(new ByteArrayInputStream(chunked)));
+	}
+
+	/**
+	 * Reads chunked content without removing the chunking, as done when
+	 * relaying requests
+	 */
+	@Benchmark
+	public long readRaw() throws IOException {
+		return drain(new ChunkedInputStream(new ByteArrayInputStream(chunked),
+				true));
+	}
+
+	@Benchmark
+	public long chunkingInputStream() throws IOException {
+		return drain(new ChunkingInputStream(new ByteArrayInputStream(content),
+				chunkSize));
+	}
+
+	@Benchmark
+	public long chunkedOutputStream() throws IOException {
+		CountingOutputStream count = new CountingOutputStream();
+		OutputStream out = new ChunkedOutputStream(count, chunkSize);
+		for (int off = 0; off < content.length; off += buff.length)
+			out.write(content, off, Math.min(buff.length, content.length
+					- off));
+		out.close();
+		return count.count;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+}
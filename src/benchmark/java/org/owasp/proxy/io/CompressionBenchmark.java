@@ -0,0 +1,117 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.proxy.http.MessageUtils;
+
+/**
+ * Measures the gzip and deflate streams used to decode and encode message
+ * bodies, using compressible, HTML-like content.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param( { "1024", "65536", "1048576" })
+	public int size;
+
+	private byte[] content;
+
+	private byte[] gzipped;
+
+	private byte[] buff = new byte[8192];
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder html = new StringBuilder();
+		for (int i = 0; html.length() < size; i++)
+			html.append("<tr><td class=\"row\">").append(i).append(
+					"</td><td><a href=\"/item?id=").append(i * 31).append(
+					"\">Item ").append(Integer.toHexString(i * 7919)).append(
+					"</a></td></tr>\n");
+		content = html.substring(0, size).getBytes("ASCII");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzos = new GZIPOutputStream(out);
+		gzos.write(content);
+		gzos.close();
+		gzipped = out.toByteArray();
+	}
+
+	private long drain(InputStream in) throws IOException {
+		long total = 0;
+		int got;
+		while ((got = in.read(buff)) > -1)
+			total += got;
+		in.close();
+		return total;
+	}
+
+	@Benchmark
+	public long gzip() throws IOException {
+		return drain(new GzipInputStream(new ByteArrayInputStream(content)));
+	}
+
+	@Benchmark
+	public long gunzip() throws IOException {
+		return drain(new GunzipInputStream(new ByteArrayInputStream(gzipped)));
+	}
+
+	@Benchmark
+	public long deflate() throws IOException {
+		return drain(new DeflaterInputStream(new ByteArrayInputStream(content)));
+	}
+
+	/**
+	 * Decodes a chunked, gzipped body, as done when a response is decoded for
+	 * display or searching
+	 */
+	@Benchmark
+	public long decodeChunkedGzip() throws Exception {
+		InputStream in = MessageUtils.encode("chunked",
+				new ByteArrayInputStream(gzipped));
+		return drain(MessageUtils.decode("gzip", MessageUtils.decode(
+				"chunked", in)));
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures moving data through a CircularByteBuffer, both in blocks and a
+ * byte at a time, wrapping around the end of the buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircularByteBufferBenchmark {
+
+	@Param( { "16", "1024" })
+	public int blockSize;
+
+	private CircularByteBuffer buffer;
+
+	private byte[] block;
+
+	@Setup
+	public void setup() {
+		buffer = new CircularByteBuffer(4096);
+		block = new byte[blockSize];
+		// leave the start part way through, so that blocks wrap around
+		buffer.add(new byte[1000]);
+		buffer.remove(new byte[1000]);
+	}
+
+	@Benchmark
+	public int blocks() {
+		buffer.add(block);
+		buffer.add(block);
+		buffer.remove(block);
+		return buffer.remove(block);
+	}
+
+	@Benchmark
+	public int bytes() {
+		int total = 0;
+		for (int i = 0; i < blockSize; i++)
+			buffer.add((byte) i);
+		for (int i = 0; i < blockSize; i++)
+			total += buffer.remove();
+		return total;
+	}
+
+	@Benchmark
+	public int pushBack() {
+		buffer.add(block);
+		buffer.push(block);
+		buffer.remove(block);
+		return buffer.remove(block);
+	}
+
+}
@@ -44,6 +44,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
@@ -62,6 +63,7 @@ import org.owasp.proxy.ajp.AJPProperties;
 import org.owasp.proxy.ajp.DefaultAJPRequestHandler;
 import org.owasp.proxy.daemon.LoopAvoidingTargetedConnectionHandler;
 import org.owasp.proxy.daemon.Proxy;
+import org.owasp.proxy.daemon.Server;
 import org.owasp.proxy.daemon.ServerGroup;
 import org.owasp.proxy.daemon.TargetedConnectionHandler;
 import org.owasp.proxy.http.MessageFormatException;
@@ -71,7 +73,11 @@ import org.owasp.proxy.http.RequestHeader;
 import org.owasp.proxy.http.StreamingRequest;
 import org.owasp.proxy.http.StreamingResponse;
 import org.owasp.proxy.http.client.HttpClient;
+import org.owasp.proxy.http.dao.FileMessageDAO;
 import org.owasp.proxy.http.dao.JdbcMessageDAO;
+import org.owasp.proxy.http.dao.MessageDAO;
+import org.owasp.proxy.http.dao.SearchIndex;
+import org.owasp.proxy.http.server.AsyncRecordingHttpRequestHandler;
 import org.owasp.proxy.http.server.AuthenticatingHttpRequestHandler;
 import org.owasp.proxy.http.server.BufferedMessageInterceptor;
 import org.owasp.proxy.http.server.BufferingHttpRequestHandler;
@@ -80,21 +86,28 @@ import org.owasp.proxy.http.server.DefaultHttpRequestHandler;
 import org.owasp.proxy.http.server.HttpProxyConnectionHandler;
 import org.owasp.proxy.http.server.HttpRequestHandler;
 import org.owasp.proxy.http.server.LoggingHttpRequestHandler;
-import org.owasp.proxy.http.server.RecordingHttpRequestHandler;
 import org.owasp.proxy.socks.SocksConnectionHandler;
 import org.owasp.proxy.ssl.AutoGeneratingContextSelector;
+import org.owasp.proxy.ssl.CertificateStore;
 import org.owasp.proxy.ssl.DefaultClientContextSelector;
 import org.owasp.proxy.ssl.KeystoreUtils;
 import org.owasp.proxy.ssl.SSLConnectionHandler;
 import org.owasp.proxy.ssl.SSLContextSelector;
 import org.owasp.proxy.tcp.ConnectConnectionHandler;
 import org.owasp.proxy.util.TextFormatter;
+import org.owasp.proxy.util.VirtualThreads;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 public class Main {
 
 	private static Logger logger = Logger.getLogger("org.owasp.proxy");
 
+	private static AsyncRecordingHttpRequestHandler recorder = null;
+
+	private static FileMessageDAO messageStore = null;
+
+	private static SearchIndex searchIndex = null;
+
 	private static class Configuration {
 		private static final String OPT_AUTHUSER = "authUser";
 		private static final String OPT_AUTHPASSWORD = "authPassword";
@@ -111,13 +124,23 @@ public class Main {
 		private static final String OPT_JDBCUSER = "jdbcUser";
 		private static final String OPT_JDBCURL = "jdbcUrl";
 		private static final String OPT_JDBCDRIVER = "jdbcDriver";
+		private static final String OPT_MESSAGESTORE = "messageStore";
+		private static final String OPT_SEARCHINDEX = "searchIndex";
 		private static final String OPT_PROXY = "proxy";
 		private static final String OPT_LISTEN = "listen";
 		private static final String OPT_CONNECT = "httpConnect";
 		private static final String OPT_TARGET = "target";
+		private static final String OPT_VIRTUALTHREADS = "virtualThreads";
+		private static final String OPT_BACKLOG = "backlog";
+		private static final String OPT_MAXCONNECTIONS = "maxConnections";
+		private static final String OPT_MAXQUEUED = "maxQueued";
+		private static final String OPT_MAXPERSOURCE = "maxConnectionsPerSource";
+		private static final String OPT_OVERLOADPOLICY = "overloadPolicy";
 		
 		private String proxy = "DIRECT";
 		private String jdbcDriver, jdbcUrl, jdbcUser, jdbcPassword;
+		private String messageStore = null;
+		private boolean searchIndex = false;
 		private String keystoreType, keyStoreLocation, keyStoreAlias,
 				keyStorePassword;
 		private int pkcs11SlotLocation = 0;
@@ -134,6 +157,13 @@ public class Main {
 		private InetSocketAddress httpConnect = null;
 		private InetSocketAddress target = null;
 
+		private boolean virtualThreads = false;
+
+		private int backlog = Server.DEFAULT_BACKLOG;
+		private int maxConnections = 0, maxQueued = 0,
+				maxConnectionsPerSource = 0;
+		private Server.OverloadPolicy overloadPolicy = Server.OverloadPolicy.QUEUE;
+
 		@SuppressWarnings("static-access")
 		private static Configuration init(String[] args) {
 			Options options = new Options();
@@ -157,6 +187,15 @@ public class Main {
 					.withDescription("the JDBC username").create());
 			options.addOption(OptionBuilder.withLongOpt(OPT_JDBCPASSWORD)
 					.hasArg().withDescription("the JDBC password").create());
+			options.addOption(OptionBuilder.withLongOpt(OPT_MESSAGESTORE)
+					.hasArg().withDescription(
+							"a directory to record conversations in, if no JDBC driver is specified")
+					.create());
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_SEARCHINDEX)
+					.withDescription(
+							"index the content of recorded conversations for searching. The index is kept in memory")
+					.create());
 
 			options.addOption(OptionBuilder.withLongOpt(OPT_KEYSTORETYPE)
 					.hasArg()
@@ -222,6 +261,40 @@ public class Main {
 					.withDescription(
 							"Uses the specified destination ([host:port])as the default destination for connections. This will be overriden by SOCKS requests that specify their own target.")
 					.create());
+
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_VIRTUALTHREADS)
+					.withDescription(
+							"handle connections using virtual threads [requires Java 21 or later]")
+					.create());
+			options.addOption(OptionBuilder.withLongOpt(OPT_BACKLOG).hasArg()
+					.withDescription(
+							"the size of the operating system listen queue")
+					.create());
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_MAXCONNECTIONS)
+					.hasArg()
+					.withDescription(
+							"the maximum number of connections handled concurrently [0 is unlimited]")
+					.create());
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_MAXQUEUED)
+					.hasArg()
+					.withDescription(
+							"the maximum number of connections waiting to be handled, when the overload policy is 'queue'")
+					.create());
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_MAXPERSOURCE)
+					.hasArg()
+					.withDescription(
+							"the maximum number of concurrent connections from a single address [0 is unlimited]")
+					.create());
+			options.addOption(OptionBuilder
+					.withLongOpt(OPT_OVERLOADPOLICY)
+					.hasArg()
+					.withDescription(
+							"what to do with connections when the maximum is reached [queue, reject or close]")
+					.create());
 			
 			try {
 				CommandLine cmd = new GnuParser().parse(options, args);
@@ -252,6 +325,9 @@ public class Main {
 					config.jdbcUser = cmd.getOptionValue(OPT_JDBCUSER);
 				if (cmd.hasOption(OPT_JDBCPASSWORD))
 					config.jdbcPassword = cmd.getOptionValue(OPT_JDBCPASSWORD);
+				if (cmd.hasOption(OPT_MESSAGESTORE))
+					config.messageStore = cmd.getOptionValue(OPT_MESSAGESTORE);
+				config.searchIndex = cmd.hasOption(OPT_SEARCHINDEX);
 
 				if (cmd.hasOption(OPT_KEYSTORETYPE))
 					config.keystoreType = cmd.getOptionValue(OPT_KEYSTORETYPE);
@@ -317,6 +393,29 @@ public class Main {
 						throw new ParseException("Invalid " + OPT_TARGET + " argument: " + addr);
 					config.target = new InetSocketAddress(host, port);
 				}
+				config.virtualThreads = cmd.hasOption(OPT_VIRTUALTHREADS);
+				if (cmd.hasOption(OPT_BACKLOG))
+					config.backlog = Integer.parseInt(cmd
+							.getOptionValue(OPT_BACKLOG));
+				if (cmd.hasOption(OPT_MAXCONNECTIONS))
+					config.maxConnections = Integer.parseInt(cmd
+							.getOptionValue(OPT_MAXCONNECTIONS));
+				if (cmd.hasOption(OPT_MAXQUEUED))
+					config.maxQueued = Integer.parseInt(cmd
+							.getOptionValue(OPT_MAXQUEUED));
+				if (cmd.hasOption(OPT_MAXPERSOURCE))
+					config.maxConnectionsPerSource = Integer.parseInt(cmd
+							.getOptionValue(OPT_MAXPERSOURCE));
+				if (cmd.hasOption(OPT_OVERLOADPOLICY)) {
+					String policy = cmd.getOptionValue(OPT_OVERLOADPOLICY);
+					try {
+						config.overloadPolicy = Server.OverloadPolicy
+								.valueOf(policy.toUpperCase());
+					} catch (IllegalArgumentException iae) {
+						throw new ParseException("Invalid "
+								+ OPT_OVERLOADPOLICY + " argument: " + policy);
+					}
+				}
 				if (config.httpConnect != null && config.target == null)
 					throw new ParseException("Must specify " + OPT_TARGET + " when using " + OPT_CONNECT);
 				return config;
@@ -386,6 +485,19 @@ public class Main {
 
 	private static SSLContextSelector getServerSSLContextSelector()
 			throws GeneralSecurityException, IOException {
+		AutoGeneratingContextSelector ssl = createServerSSLContextSelector();
+		try {
+			ssl.setCertificateStore(new CertificateStore(new File("certs"),
+					"password".toCharArray()));
+		} catch (IOException e) {
+			System.err.println("Error creating the certificate store: "
+					+ e.getLocalizedMessage());
+		}
+		return ssl;
+	}
+
+	private static AutoGeneratingContextSelector createServerSSLContextSelector()
+			throws GeneralSecurityException, IOException {
 		File ks = new File("ca.p12");
 		String type = "PKCS12";
 		char[] password = "password".toCharArray();
@@ -595,16 +707,32 @@ public class Main {
 		}
 	}
 
-	private static HttpRequestHandler configureJDBCLogging(
-			HttpRequestHandler rh, Configuration config) throws SQLException {
+	private static HttpRequestHandler configureRecording(
+			HttpRequestHandler rh, Configuration config) throws SQLException,
+			IOException {
 		final DataSource dataSource = createDataSource(config);
+		MessageDAO dao = null;
 		if (dataSource != null) {
-			JdbcMessageDAO dao = new JdbcMessageDAO();
-			dao.setDataSource(dataSource);
-			dao.createTables();
-			rh = new RecordingHttpRequestHandler(dao, rh, 1024 * 1024);
-			return new ConversationServiceHttpRequestHandler("127.0.0.2", dao,
-					rh);
+			JdbcMessageDAO jdbc = new JdbcMessageDAO();
+			jdbc.setDataSource(dataSource);
+			jdbc.createTables();
+			dao = jdbc;
+		} else if (config.messageStore != null) {
+			messageStore = new FileMessageDAO(new File(config.messageStore));
+			dao = messageStore;
+		}
+		if (dao != null) {
+			recorder = new AsyncRecordingHttpRequestHandler(dao, rh,
+					1024 * 1024, 1000);
+			rh = recorder;
+			ConversationServiceHttpRequestHandler cs = new ConversationServiceHttpRequestHandler(
+					"127.0.0.2", dao, rh);
+			if (config.searchIndex) {
+				searchIndex = new SearchIndex(dao);
+				searchIndex.start();
+				cs.setSearchIndex(searchIndex);
+			}
+			return cs;
 		} else {
 			return rh;
 		}
@@ -653,7 +781,7 @@ public class Main {
 			rh = configureAuthentication(rh, config);
 			rh = configureAJP(rh, config);
 			rh = new LoggingHttpRequestHandler(rh);
-			rh = configureJDBCLogging(rh, config);
+			rh = configureRecording(rh, config);
 			rh = configureInterception(rh, config);
 	
 			HttpProxyConnectionHandler hpch = new HttpProxyConnectionHandler(rh);
@@ -665,14 +793,36 @@ public class Main {
 		} else {
 			tch = new ConnectConnectionHandler(config.httpConnect);
 		}
-		Proxy p = new Proxy(config.listen, tch, config.target);
+		Executor executor = null;
+		if (config.virtualThreads) {
+			if (VirtualThreads.isSupported()) {
+				executor = VirtualThreads.newExecutor(config.listen + "-");
+			} else {
+				logger.warning("Virtual threads are not supported by this JVM, "
+						+ "using platform threads");
+			}
+		}
+		Proxy p = new Proxy(config.listen, executor, tch, config.target, 0,
+				config.backlog);
 		p.setSocketTimeout(90000);
+		p.setMaxConnections(config.maxConnections);
+		p.setMaxQueued(config.maxQueued);
+		p.setMaxConnectionsPerSource(config.maxConnectionsPerSource);
+		p.setOverloadPolicy(config.overloadPolicy);
+		if (config.httpConnect == null)
+			p.setOverloadHandler(HttpProxyConnectionHandler.OVERLOAD_HANDLER);
 		p.start();
 
 		System.out.println("Listener started on " + config.listen);
 		System.out.println("Press Enter to terminate");
 		new BufferedReader(new InputStreamReader(System.in)).readLine();
 		p.stop();
+		if (searchIndex != null)
+			searchIndex.stop();
+		if (recorder != null)
+			recorder.close();
+		if (messageStore != null)
+			messageStore.close();
 		System.out.println("Terminated");
 		System.exit(0);
 	}
@@ -49,6 +49,21 @@ public class Proxy extends Server {
 	public Proxy(InetSocketAddress listen, Executor executor,
 			final TargetedConnectionHandler connectionHandler,
 			final InetSocketAddress target) throws IOException {
+		this(listen, executor, connectionHandler, target, 0);
+	}
+
+	public Proxy(InetSocketAddress listen, Executor executor,
+			final TargetedConnectionHandler connectionHandler,
+			final InetSocketAddress target, int selectorThreads)
+			throws IOException {
+		this(listen, executor, connectionHandler, target, selectorThreads,
+				DEFAULT_BACKLOG);
+	}
+
+	public Proxy(InetSocketAddress listen, Executor executor,
+			final TargetedConnectionHandler connectionHandler,
+			final InetSocketAddress target, int selectorThreads, int backlog)
+			throws IOException {
 		super(listen, executor, connectionHandler == null ? null
 				: new ConnectionHandler() {
 
@@ -64,6 +79,6 @@ public class Proxy extends Server {
 						connectionHandler.handleConnection(socket, target);
 					}
 
-				});
+				}, selectorThreads, backlog);
 	}
 }
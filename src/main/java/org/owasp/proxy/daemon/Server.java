@@ -22,12 +22,27 @@
 package org.owasp.proxy.daemon;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -37,7 +52,7 @@ import java.util.logging.Logger;
  * 
  * The most basic (echo) server might look like:
  * 
- * <code>
+ * <code>
  * 	InetSocketAddress address = new InetSocketAddress("localhost", 8008);
  * 	Server echo = new Server(address, new ConnectionHandler() {
  *  	protected void handleConnection(Socket socket) throws IOException {
@@ -48,32 +63,105 @@ import java.util.logging.Logger;
  *  		while ((got = in.read(buff)) > -1)
  *  			out.write(buff, 0, got);
  *  	}
- *  }); 
- * 	echo.start();
- * 	
- * 	<wait for signal to stop>
- * 	
- * 	if (!echo.stop()) {
- * 		// error stopping server 
- * 	}
+ *  }); 
+ * 	echo.start();
+ * 	
+ * 	<wait for signal to stop>
+ * 	
+ * 	if (!echo.stop()) {
+ * 		// error stopping server 
+ * 	}
  * </code>
  * 
+ * By default, each accepted connection is immediately handed to the
+ * {@link Executor}, which then blocks reading from the connection until it is
+ * closed. If a number of selector threads is specified, newly accepted
+ * connections are instead watched by those selectors, and are only handed to
+ * the {@link Executor} once the first data is available to be read. This only
+ * defers the wait for the first request: once dispatched, the handler owns
+ * the connection, and an idle keep-alive connection still holds its executor
+ * thread until it is closed or times out.
+ * 
+ * Selector mode is experimental, and off by default. It is not suitable for
+ * handlers which relay data in both directions at once (e.g. CONNECT tunnels),
+ * which includes the HTTP proxy. The Socket handed to the handler is backed by
+ * a SocketChannel, and on some JVMs reads and writes on such a Socket share a
+ * single lock, so a write can stall behind a blocked read until the socket
+ * timeout expires.
+ * 
+ * The number of connections handled concurrently can be limited, both in total
+ * and per source address. When a connection cannot be handled immediately, it
+ * is dealt with according to the {@link OverloadPolicy}. Connections which are
+ * closed or rejected without being handled are counted, and can be monitored
+ * via {@link #getShedConnections()}.
+ * 
  * @author Rogan Dawes
  * 
  */
 public class Server {
 
+	/**
+	 * Determines what happens to a connection that arrives when the server is
+	 * already handling the maximum number of connections
+	 */
+	public enum OverloadPolicy {
+		/**
+		 * Wait for another connection to complete, if there is space in the
+		 * queue, otherwise close the connection
+		 */
+		QUEUE,
+		/**
+		 * Hand the connection to the overload handler, which might return an
+		 * appropriate error message, and then close it
+		 */
+		REJECT,
+		/**
+		 * Close the connection immediately
+		 */
+		CLOSE
+	}
+
+	public static final int DEFAULT_BACKLOG = 20;
+
 	private final static Logger logger = Logger.getLogger(Server.class
 			.getName());
 
 	private ServerSocket socket;
 
+	private ServerSocketChannel channel = null;
+
+	private int selectorThreads;
+
+	private ReadSelector[] selectors = null;
+
+	private int nextSelector = 0;
+
 	private int socketTimeout = 0;
 
 	private ConnectionHandler connectionHandler;
 
 	private Executor executor;
 
+	private int maxConnections = 0;
+
+	private int maxQueued = 0;
+
+	private int maxConnectionsPerSource = 0;
+
+	private OverloadPolicy overloadPolicy = OverloadPolicy.QUEUE;
+
+	private ConnectionHandler overloadHandler = null;
+
+	private AtomicInteger active = new AtomicInteger();
+
+	private AtomicInteger queued = new AtomicInteger();
+
+	private AtomicLong shed = new AtomicLong();
+
+	private Queue<Socket> queue = new ConcurrentLinkedQueue<Socket>();
+
+	private Map<InetAddress, Integer> sources = new HashMap<InetAddress, Integer>();
+
 	public Server(InetSocketAddress listen, ConnectionHandler connectionHandler)
 			throws IOException {
 		this(listen, null, connectionHandler);
@@ -81,6 +169,57 @@ public class Server {
 
 	public Server(final InetSocketAddress listen, Executor executor,
 			ConnectionHandler connectionHandler) throws IOException {
+		this(listen, executor, connectionHandler, 0);
+	}
+
+	/**
+	 * Creates a Server which waits for accepted connections to become readable
+	 * before dispatching them to the executor.
+	 * 
+	 * @param listen
+	 *            the address to listen on
+	 * @param executor
+	 *            the executor to run the connection handler in, or null to use
+	 *            a default cached thread pool
+	 * @param connectionHandler
+	 *            the handler for each connection
+	 * @param selectorThreads
+	 *            the number of selector threads to use to watch new
+	 *            connections until their first data arrives, or 0 to dispatch
+	 *            each connection to the executor as soon as it is accepted.
+	 *            See the class documentation for the limitations of this mode
+	 * @throws IOException
+	 */
+	public Server(final InetSocketAddress listen, Executor executor,
+			ConnectionHandler connectionHandler, int selectorThreads)
+			throws IOException {
+		this(listen, executor, connectionHandler, selectorThreads,
+				DEFAULT_BACKLOG);
+	}
+
+	/**
+	 * Creates a Server with the specified listen backlog.
+	 * 
+	 * @param listen
+	 *            the address to listen on
+	 * @param executor
+	 *            the executor to run the connection handler in, or null to use
+	 *            a default cached thread pool
+	 * @param connectionHandler
+	 *            the handler for each connection
+	 * @param selectorThreads
+	 *            the number of selector threads to use to watch new
+	 *            connections until their first data arrives, or 0 to dispatch
+	 *            each connection to the executor as soon as it is accepted.
+	 *            See the class documentation for the limitations of this mode
+	 * @param backlog
+	 *            the maximum number of connections the operating system should
+	 *            queue before they are accepted
+	 * @throws IOException
+	 */
+	public Server(final InetSocketAddress listen, Executor executor,
+			ConnectionHandler connectionHandler, int selectorThreads,
+			int backlog) throws IOException {
 		if (listen == null)
 			throw new NullPointerException("listen may not be null");
 		if (executor == null)
@@ -107,8 +246,21 @@ public class Server {
 			});
 		if (connectionHandler == null)
 			throw new NullPointerException("connectionHandler may not be null");
-		socket = new ServerSocket(listen.getPort(), 20, listen.getAddress());
-		socket.setReuseAddress(true);
+		if (selectorThreads < 0)
+			throw new IllegalArgumentException(
+					"selectorThreads may not be negative");
+		if (selectorThreads > 0) {
+			channel = ServerSocketChannel.open();
+			socket = channel.socket();
+			socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(listen.getAddress(), listen
+					.getPort()), backlog);
+		} else {
+			socket = new ServerSocket(listen.getPort(), backlog, listen
+					.getAddress());
+			socket.setReuseAddress(true);
+		}
+		this.selectorThreads = selectorThreads;
 		this.executor = executor;
 		this.connectionHandler = connectionHandler;
 	}
@@ -128,8 +280,240 @@ public class Server {
 		this.socketTimeout = socketTimeout;
 	}
 
+	/**
+	 * @return the number of selector threads watching idle connections, or 0
+	 *         if connections are dispatched as soon as they are accepted
+	 */
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * @return the maximum number of connections handled concurrently, or 0 if
+	 *         unlimited
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections
+	 *            the maximum number of connections handled concurrently, or 0
+	 *            if unlimited
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the maximum number of connections waiting to be handled when
+	 *         using {@link OverloadPolicy#QUEUE}
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * @param maxQueued
+	 *            the maximum number of connections waiting to be handled when
+	 *            using {@link OverloadPolicy#QUEUE}
+	 */
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * @return the maximum number of connections from a single source address
+	 *         that are handled or queued at once, or 0 if unlimited
+	 */
+	public int getMaxConnectionsPerSource() {
+		return maxConnectionsPerSource;
+	}
+
+	/**
+	 * @param maxConnectionsPerSource
+	 *            the maximum number of connections from a single source
+	 *            address that are handled or queued at once, or 0 if unlimited
+	 */
+	public void setMaxConnectionsPerSource(int maxConnectionsPerSource) {
+		this.maxConnectionsPerSource = maxConnectionsPerSource;
+	}
+
+	/**
+	 * @return the overloadPolicy
+	 */
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy;
+	}
+
+	/**
+	 * @param overloadPolicy
+	 *            the overloadPolicy to set
+	 */
+	public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null)
+			throw new NullPointerException("overloadPolicy may not be null");
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	/**
+	 * @return the handler for connections rejected under
+	 *         {@link OverloadPolicy#REJECT}
+	 */
+	public ConnectionHandler getOverloadHandler() {
+		return overloadHandler;
+	}
+
+	/**
+	 * Sets the handler for connections rejected under
+	 * {@link OverloadPolicy#REJECT}. The handler is called on the thread that
+	 * accepted the connection, so it should do as little as possible, e.g.
+	 * write a canned error response. The connection is closed when it returns.
+	 * 
+	 * @param overloadHandler
+	 *            the handler for rejected connections
+	 */
+	public void setOverloadHandler(ConnectionHandler overloadHandler) {
+		this.overloadHandler = overloadHandler;
+	}
+
+	/**
+	 * @return the number of connections currently being handled
+	 */
+	public int getActiveConnections() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of connections currently waiting to be handled
+	 */
+	public int getQueuedConnections() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of connections that have been closed or rejected
+	 *         without being handled
+	 */
+	public long getShedConnections() {
+		return shed.get();
+	}
+
 	private void handleConnection(final Socket socket) throws IOException {
-		executor.execute(new SocketHandler(socket));
+		if (!acquireSource(socket.getInetAddress())) {
+			shedConnection(socket, false);
+			return;
+		}
+		if (acquireSlot()) {
+			dispatch(socket);
+		} else if (overloadPolicy == OverloadPolicy.QUEUE
+				&& queued.incrementAndGet() <= maxQueued) {
+			queue.add(socket);
+			drainQueue();
+		} else {
+			if (overloadPolicy == OverloadPolicy.QUEUE)
+				queued.decrementAndGet();
+			shedConnection(socket, true);
+		}
+	}
+
+	private void dispatch(Socket socket) {
+		try {
+			executor.execute(new SocketHandler(socket));
+		} catch (RejectedExecutionException ree) {
+			releaseSlot();
+			shedConnection(socket, true);
+		}
+	}
+
+	private boolean acquireSlot() {
+		int max = maxConnections;
+		while (true) {
+			int current = active.get();
+			if (max > 0 && current >= max)
+				return false;
+			if (active.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private void releaseSlot() {
+		active.decrementAndGet();
+		drainQueue();
+	}
+
+	/**
+	 * Dispatches queued connections while there are slots available. This is
+	 * called both after queueing a connection and after a slot is released, so
+	 * that a connection cannot be left in the queue while a slot is free.
+	 */
+	private void drainQueue() {
+		while (!queue.isEmpty() && acquireSlot()) {
+			Socket socket = queue.poll();
+			if (socket == null) {
+				active.decrementAndGet();
+				break;
+			}
+			queued.decrementAndGet();
+			dispatch(socket);
+		}
+	}
+
+	private boolean acquireSource(InetAddress source) {
+		int max = maxConnectionsPerSource;
+		if (max <= 0 || source == null)
+			return true;
+		synchronized (sources) {
+			Integer count = sources.get(source);
+			int c = count == null ? 0 : count.intValue();
+			if (c >= max)
+				return false;
+			sources.put(source, Integer.valueOf(c + 1));
+			return true;
+		}
+	}
+
+	private void releaseSource(InetAddress source) {
+		if (source == null)
+			return;
+		synchronized (sources) {
+			Integer count = sources.get(source);
+			if (count == null)
+				return;
+			if (count.intValue() <= 1) {
+				sources.remove(source);
+			} else {
+				sources.put(source, Integer.valueOf(count.intValue() - 1));
+			}
+		}
+	}
+
+	private void shedConnection(Socket socket, boolean releaseSource) {
+		shed.incrementAndGet();
+		if (releaseSource)
+			releaseSource(socket.getInetAddress());
+		try {
+			if (overloadPolicy == OverloadPolicy.REJECT
+					&& overloadHandler != null) {
+				socket.setSoTimeout(1000);
+				overloadHandler.handleConnection(socket);
+			}
+		} catch (IOException ioe) {
+			logger.fine("Exception rejecting connection: " + ioe.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private void handleConnection(final SocketChannel channel)
+			throws IOException {
+		channel.configureBlocking(false);
+		ReadSelector selector = selectors[nextSelector];
+		nextSelector = (nextSelector + 1) % selectors.length;
+		selector.register(channel);
 	}
 
 	private AcceptThread acceptThread = null;
@@ -143,7 +527,11 @@ public class Server {
 		public void run() {
 			try {
 				do {
-					handleConnection(socket.accept());
+					if (channel != null) {
+						handleConnection(channel.accept());
+					} else {
+						handleConnection(socket.accept());
+					}
 				} while (!socket.isClosed());
 			} catch (IOException ioe) {
 				if (!socket.isClosed()) {
@@ -158,6 +546,17 @@ public class Server {
 			} catch (IOException ioe) {
 				logger.warning("Exception closing socket: " + ioe.getMessage());
 			}
+			if (selectors != null) {
+				for (int i = 0; i < selectors.length; i++)
+					selectors[i].shutdown();
+				for (int i = 0; i < selectors.length; i++) {
+					try {
+						selectors[i].join();
+					} catch (InterruptedException ie) {
+						break;
+					}
+				}
+			}
 			synchronized (Server.this) {
 				Server.this.notifyAll();
 			}
@@ -172,6 +571,21 @@ public class Server {
 			throw new IllegalStateException(
 					"Already running in another thread!");
 		}
+		if (channel != null && selectors == null) {
+			selectors = new ReadSelector[selectorThreads];
+			try {
+				for (int i = 0; i < selectors.length; i++) {
+					selectors[i] = new ReadSelector(i);
+					selectors[i].start();
+				}
+			} catch (IOException ioe) {
+				for (int i = 0; i < selectors.length; i++)
+					if (selectors[i] != null)
+						selectors[i].shutdown();
+				selectors = null;
+				throw new IllegalStateException("Error opening selector", ioe);
+			}
+		}
 		acceptThread.start();
 	}
 
@@ -200,11 +614,131 @@ public class Server {
 		return acceptThread == null || !acceptThread.isAlive();
 	}
 
+	/**
+	 * Watches a set of idle connections, and dispatches each one to the
+	 * executor once there is data available to be read from it. Connections
+	 * that remain idle for longer than the socket timeout are closed.
+	 */
+	private class ReadSelector extends Thread {
+
+		private Selector selector;
+
+		private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+		private volatile boolean running = true;
+
+		public ReadSelector(int index) throws IOException {
+			super("Select-" + index + ": " + socket.getLocalSocketAddress());
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		public void register(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		public void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			List<SocketChannel> readable = new ArrayList<SocketChannel>();
+			try {
+				while (running) {
+					int timeout = socketTimeout;
+					selector.select(timeout > 0 ? Math.min(timeout, 1000) : 0);
+					registerPending(timeout);
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						key.cancel();
+						readable.add((SocketChannel) key.channel());
+					}
+					if (timeout > 0)
+						closeExpired();
+					if (readable.size() > 0) {
+						// flush the cancelled keys, so that the channels can
+						// be put back into blocking mode
+						selector.selectNow();
+						for (SocketChannel channel : readable)
+							dispatch(channel);
+						readable.clear();
+					}
+				}
+			} catch (IOException ioe) {
+				logger.warning("Exception selecting connections: "
+						+ ioe.getMessage());
+			} finally {
+				for (SelectionKey key : selector.keys())
+					close((SocketChannel) key.channel());
+				SocketChannel channel;
+				while ((channel = pending.poll()) != null)
+					close(channel);
+				try {
+					selector.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		private void registerPending(int timeout) {
+			SocketChannel channel;
+			while ((channel = pending.poll()) != null) {
+				long expires = timeout > 0 ? System.currentTimeMillis()
+						+ timeout : 0;
+				try {
+					channel.register(selector, SelectionKey.OP_READ, Long
+							.valueOf(expires));
+				} catch (IOException ioe) {
+					close(channel);
+				}
+			}
+		}
+
+		private void closeExpired() {
+			long now = System.currentTimeMillis();
+			for (SelectionKey key : selector.keys()) {
+				if (!key.isValid())
+					continue;
+				long expires = ((Long) key.attachment()).longValue();
+				if (expires > 0 && expires < now) {
+					key.cancel();
+					close((SocketChannel) key.channel());
+				}
+			}
+		}
+
+		private void dispatch(SocketChannel channel) {
+			try {
+				channel.configureBlocking(true);
+				handleConnection(channel.socket());
+			} catch (Exception e) {
+				logger.warning("Exception dispatching connection: "
+						+ e.getMessage());
+				close(channel);
+			}
+		}
+
+		private void close(SocketChannel channel) {
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
 	private class SocketHandler implements Runnable {
 		private Socket socket;
 
+		private InetAddress source;
+
 		public SocketHandler(Socket socket) {
 			this.socket = socket;
+			this.source = socket.getInetAddress();
 		}
 
 		public void run() {
@@ -219,6 +753,8 @@ public class Server {
 						socket.close();
 				} catch (IOException ignore) {
 				}
+				releaseSource(source);
+				releaseSlot();
 			}
 		}
 	}
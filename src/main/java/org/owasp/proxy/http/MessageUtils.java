@@ -416,6 +416,8 @@ public class MessageUtils {
 				out.write(i);
 				if (i == CRLF[match % 2])
 					match++;
+				else
+					match = i == CRLF[0] ? 1 : 0;
 			} while (match < 4);
 		} catch (IOException e) {
 			if (out.size() > 0)
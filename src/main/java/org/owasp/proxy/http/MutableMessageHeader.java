@@ -73,6 +73,17 @@ public interface MutableMessageHeader extends MessageHeader {
 
 		protected byte[] header = null;
 
+		// the start and end of each line in header, if known
+		private int[] lineOffsets = null;
+
+		// the line on which this message starts, after any lines preceding
+		// it, or -1 if the header fields have not been indexed yet
+		private int firstLine = -1;
+
+		// the end of the name and start of the value of each header field,
+		// with a value start of -1 if the field has no separator
+		private int[] fieldOffsets = null;
+
 		public void setId(int id) {
 			this.id = id;
 		}
@@ -83,6 +94,27 @@ public interface MutableMessageHeader extends MessageHeader {
 
 		public void setHeader(byte[] header) {
 			this.header = header;
+			this.lineOffsets = null;
+			this.firstLine = -1;
+			this.fieldOffsets = null;
+		}
+
+		/**
+		 * Sets the header, along with the offsets of the lines within it, as
+		 * already determined while reading the header. This avoids having to
+		 * search the header for line separators each time it is parsed.
+		 * 
+		 * @param header
+		 *            the header
+		 * @param lineOffsets
+		 *            pairs of offsets for each line, the first being the start
+		 *            of the line, the second being the start of the line
+		 *            separator. See
+		 *            {@link org.owasp.proxy.io.HeaderInputStream#getLineOffsets()}
+		 */
+		public void setHeader(byte[] header, int[] lineOffsets) {
+			setHeader(header);
+			this.lineOffsets = lineOffsets;
 		}
 
 		public byte[] getHeader() {
@@ -128,13 +160,191 @@ public interface MutableMessageHeader extends MessageHeader {
 		protected String[] getHeaderLines() throws MessageFormatException {
 			if (header == null)
 				return null;
-			List<String> lines = new LinkedList<String>();
-			int sep, start = 0;
-			while ((sep = indexOf(CRLF, start)) > -1) {
-				lines.add(AsciiString.create(header, start, sep - start));
-				start = sep + CRLF.length;
+			int[] offsets = getLineOffsets();
+			String[] lines = new String[offsets.length / 2];
+			for (int i = 0; i < lines.length; i++)
+				lines[i] = getLine(i);
+			return lines;
+		}
+
+		/**
+		 * Finds the start and end of each line in the header, if they are not
+		 * already known. Only lines terminated by \r\n are included.
+		 * 
+		 * @return pairs of offsets for each line, the start of the line and
+		 *         the start of its separator
+		 */
+		private int[] getLineOffsets() {
+			if (lineOffsets == null) {
+				int[] offsets = new int[32];
+				int count = 0, start = 0;
+				for (int i = 1; i < header.length; i++) {
+					if (header[i] == CRLF[1] && header[i - 1] == CRLF[0]) {
+						if (count == offsets.length) {
+							int[] bigger = new int[offsets.length * 2];
+							System.arraycopy(offsets, 0, bigger, 0, count);
+							offsets = bigger;
+						}
+						offsets[count++] = start;
+						offsets[count++] = i - 1;
+						start = i + 1;
+					}
+				}
+				lineOffsets = new int[count];
+				System.arraycopy(offsets, 0, lineOffsets, 0, count);
+			}
+			return lineOffsets;
+		}
+
+		private String getLine(int line) {
+			int start = lineOffsets[line * 2];
+			return AsciiString.create(header, start, lineOffsets[line * 2 + 1]
+					- start);
+		}
+
+		/**
+		 * Determines which line of the header the message itself starts on.
+		 * Subclasses whose header may be preceded by other lines, which are not
+		 * returned by {@link #getHeaderLines()}, must override this to match.
+		 * 
+		 * @param lineOffsets
+		 *            the start and end of each line in the header
+		 * @return the index of the start line of the message
+		 */
+		protected int getFirstLine(int[] lineOffsets) {
+			return 0;
+		}
+
+		/**
+		 * Builds the index of the header fields, if necessary. The index is
+		 * discarded whenever the header is changed. Fields are split on the
+		 * first colon, ignoring any spaces surrounding it, in the same way as
+		 * NamedValue.parse(line, " *: *").
+		 * 
+		 * @return false if there is no header to index
+		 */
+		private boolean index() {
+			if (header == null)
+				return false;
+			if (firstLine > -1)
+				return true;
+			int[] lines = getLineOffsets();
+			int first = getFirstLine(lines);
+			int count = Math.max(lines.length / 2 - first - 2, 0);
+			int[] fields = new int[count * 2];
+			for (int f = 0; f < count; f++) {
+				int start = lines[(first + f + 1) * 2];
+				int end = lines[(first + f + 1) * 2 + 1];
+				int colon = start;
+				while (colon < end && header[colon] != ':')
+					colon++;
+				if (colon == end) {
+					fields[f * 2] = end;
+					fields[f * 2 + 1] = -1;
+				} else {
+					int nameEnd = colon;
+					while (nameEnd > start && header[nameEnd - 1] == ' ')
+						nameEnd--;
+					int valueStart = colon + 1;
+					while (valueStart < end && header[valueStart] == ' ')
+						valueStart++;
+					fields[f * 2] = nameEnd;
+					fields[f * 2 + 1] = valueStart;
+				}
 			}
-			return lines.toArray(new String[lines.size()]);
+			fieldOffsets = fields;
+			firstLine = first;
+			return true;
+		}
+
+		/**
+		 * @return the number of lines making up this message, including the
+		 *         trailing blank line
+		 */
+		private int getLineCount() {
+			return lineOffsets.length / 2 - firstLine;
+		}
+
+		/**
+		 * @return the index of the first header field with the specified name,
+		 *         or -1 if there is none
+		 */
+		private int findField(String name) {
+			int count = fieldOffsets.length / 2;
+			for (int f = 0; f < count; f++) {
+				int start = lineOffsets[(firstLine + f + 1) * 2];
+				int end = fieldOffsets[f * 2];
+				if (end - start != name.length())
+					continue;
+				int i = 0;
+				while (i < end - start) {
+					byte b = header[start + i];
+					char c1 = b < 0 ? '\uFFFD' : (char) b;
+					char c2 = name.charAt(i);
+					if (c1 != c2
+							&& Character.toUpperCase(c1) != Character
+									.toUpperCase(c2)
+							&& Character.toLowerCase(c1) != Character
+									.toLowerCase(c2))
+						break;
+					i++;
+				}
+				if (i == end - start)
+					return f;
+			}
+			return -1;
+		}
+
+		private NamedValue getField(int f) {
+			int start = lineOffsets[(firstLine + f + 1) * 2];
+			int end = lineOffsets[(firstLine + f + 1) * 2 + 1];
+			int nameEnd = fieldOffsets[f * 2];
+			int valueStart = fieldOffsets[f * 2 + 1];
+			String name = AsciiString.create(header, start, nameEnd - start);
+			if (valueStart == -1)
+				return new NamedValue(name, null, null);
+			return new NamedValue(name, AsciiString.create(header, nameEnd,
+					valueStart - nameEnd), AsciiString.create(header,
+					valueStart, end - valueStart));
+		}
+
+		private String getValue(int f) {
+			int valueStart = fieldOffsets[f * 2 + 1];
+			if (valueStart == -1)
+				return null;
+			return AsciiString.create(header, valueStart, lineOffsets[(firstLine
+					+ f + 1) * 2 + 1]
+					- valueStart);
+		}
+
+		/**
+		 * Changes to the header can be made by replacing only the bytes
+		 * affected, rather than reassembling the whole header, as long as it
+		 * consists of a start line, and is terminated by a blank line at the
+		 * very end.
+		 * 
+		 * @return true if the header can be modified in place
+		 */
+		private boolean isSpliceable() {
+			if (getLineCount() < 2)
+				return false;
+			int blank = lineOffsets.length - 2;
+			int end = lineOffsets[blank + 1];
+			return lineOffsets[blank] == end && end + 2 == header.length
+					&& header[end] == CRLF[0] && header[end + 1] == CRLF[1];
+		}
+
+		/**
+		 * Replaces the bytes between start and end with the replacement
+		 */
+		private void splice(int start, int end, String replacement) {
+			byte[] bytes = AsciiString.getBytes(replacement);
+			byte[] h = new byte[header.length - (end - start) + bytes.length];
+			System.arraycopy(header, 0, h, 0, start);
+			System.arraycopy(bytes, 0, h, start, bytes.length);
+			System.arraycopy(header, end, h, start + bytes.length,
+					header.length - end);
+			setHeader(h);
 		}
 
 		/**
@@ -192,10 +402,9 @@ public interface MutableMessageHeader extends MessageHeader {
 		 * @throws MessageFormatException
 		 */
 		public String getStartLine() throws MessageFormatException {
-			String[] lines = getHeaderLines();
-			if (lines == null || lines.length == 0)
+			if (!index() || getLineCount() == 0)
 				return null;
-			return lines[0];
+			return getLine(firstLine);
 		}
 
 		/**
@@ -205,6 +414,11 @@ public interface MutableMessageHeader extends MessageHeader {
 		public void setStartLine(String line) throws MessageFormatException {
 			if (line == null)
 				line = "";
+			if (index() && isSpliceable()) {
+				splice(lineOffsets[firstLine * 2],
+						lineOffsets[firstLine * 2 + 1], line);
+				return;
+			}
 			String[] lines = getHeaderLines();
 			if (lines == null || lines.length <= 1) {
 				lines = new String[2];
@@ -219,12 +433,11 @@ public interface MutableMessageHeader extends MessageHeader {
 		 * @throws MessageFormatException
 		 */
 		public NamedValue[] getHeaders() throws MessageFormatException {
-			String[] lines = getHeaderLines();
-			if (lines == null || lines.length <= 1)
+			if (!index() || getLineCount() <= 1)
 				return null;
-			NamedValue[] headers = new NamedValue[lines.length - 2];
+			NamedValue[] headers = new NamedValue[fieldOffsets.length / 2];
 			for (int i = 0; i < headers.length; i++)
-				headers[i] = NamedValue.parse(lines[i + 1], " *: *");
+				headers[i] = getField(i);
 			return headers;
 		}
 
@@ -255,13 +468,10 @@ public interface MutableMessageHeader extends MessageHeader {
 		 * @throws MessageFormatException
 		 */
 		public String getHeader(String name) throws MessageFormatException {
-			NamedValue[] headers = getHeaders();
-			if (headers == null || headers.length == 0)
+			if (!index())
 				return null;
-			for (int i = 0; i < headers.length; i++)
-				if (name.equalsIgnoreCase(headers[i].getName()))
-					return headers[i].getValue();
-			return null;
+			int f = findField(name);
+			return f == -1 ? null : getValue(f);
 		}
 
 		/**
@@ -271,6 +481,23 @@ public interface MutableMessageHeader extends MessageHeader {
 		 */
 		public void setHeader(String name, String value)
 				throws MessageFormatException {
+			if (value != null && index() && isSpliceable()) {
+				int f = findField(name);
+				int valueStart = f == -1 ? -1 : fieldOffsets[f * 2 + 1];
+				if (valueStart > -1) {
+					// keep the existing separator
+					int nameEnd = fieldOffsets[f * 2];
+					String separator = AsciiString.create(header, nameEnd,
+							valueStart - nameEnd);
+					splice(lineOffsets[(firstLine + f + 1) * 2],
+							lineOffsets[(firstLine + f + 1) * 2 + 1], name
+									+ separator + value);
+					return;
+				} else if (f == -1) {
+					addHeader(name, value);
+					return;
+				}
+			}
 			NamedValue[] headers = getHeaders();
 			if (headers != null && headers.length != 0) {
 				for (int i = 0; i < headers.length; i++)
@@ -285,13 +512,14 @@ public interface MutableMessageHeader extends MessageHeader {
 		}
 
 		public NamedValue[] getHeaders(String name) throws MessageFormatException {
-			NamedValue[] headers = getHeaders();
-			if (headers == null || headers.length == 0)
+			if (!index())
 				return null;
 			List<NamedValue> t = new LinkedList<NamedValue>();
-			for (int i = 0; i < headers.length; i++)
-				if (name.equalsIgnoreCase(headers[i].getName()))
-					t.add(headers[i]);
+			for (int i = 0; i < fieldOffsets.length / 2; i++)
+				if (name.equalsIgnoreCase(AsciiString.create(header,
+						lineOffsets[(firstLine + i + 1) * 2], fieldOffsets[i * 2]
+								- lineOffsets[(firstLine + i + 1) * 2])))
+					t.add(getField(i));
 			if (t.size() > 0)
 				return t.toArray(new NamedValue[t.size()]);
 			return null;
@@ -304,6 +532,14 @@ public interface MutableMessageHeader extends MessageHeader {
 		 */
 		public void addHeader(String name, String value)
 				throws MessageFormatException {
+			if (index() && isSpliceable()) {
+				// insert before the trailing blank line
+				int blank = lineOffsets[lineOffsets.length - 2];
+				splice(blank, blank, new NamedValue(name, ": ", value)
+						.toString()
+						+ "\r\n");
+				return;
+			}
 			addHeader(getHeaders(), name, value);
 		}
 
@@ -332,6 +568,15 @@ public interface MutableMessageHeader extends MessageHeader {
 		 * @throws MessageFormatException
 		 */
 		public String deleteHeader(String name) throws MessageFormatException {
+			if (index() && isSpliceable()) {
+				int f = findField(name);
+				if (f == -1)
+					return null;
+				String value = getValue(f);
+				splice(lineOffsets[(firstLine + f + 1) * 2],
+						lineOffsets[(firstLine + f + 2) * 2], "");
+				return value;
+			}
 			NamedValue[] headers = getHeaders();
 			if (headers == null || headers.length == 0)
 				return null;
@@ -64,6 +64,41 @@ public interface MutableResponseHeader extends ResponseHeader,
 			return h;
 		}
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.owasp.proxy.http.MutableMessageHeader.Impl#getFirstLine(int[])
+		 */
+		@Override
+		protected int getFirstLine(int[] lineOffsets) {
+			// the equivalent of get100Header, without creating Strings
+			int lines = lineOffsets.length / 2;
+			if (lines < 3)
+				return 0;
+			int i = lineOffsets[0], end = lineOffsets[1];
+			while (i < end && !isWhitespace(header[i]))
+				i++;
+			if (i == end)
+				return 0;
+			while (i < end && isWhitespace(header[i]))
+				i++;
+			int status = i;
+			while (i < end && !isWhitespace(header[i]))
+				i++;
+			if (i - status != 3 || header[status] != '1'
+					|| header[status + 1] != '0' || header[status + 2] != '0')
+				return 0;
+			for (int line = 0; line < lines; line++)
+				if (lineOffsets[line * 2] == lineOffsets[line * 2 + 1])
+					return line == lines - 1 ? 0 : line + 1;
+			return 0;
+		}
+
+		private static boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\t';
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -23,7 +23,6 @@ package org.owasp.proxy.http.client;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +53,8 @@ import org.owasp.proxy.http.StreamingResponse;
 import org.owasp.proxy.io.ChunkedInputStream;
 import org.owasp.proxy.io.EofNotifyingInputStream;
 import org.owasp.proxy.io.FixedLengthInputStream;
+import org.owasp.proxy.io.HeaderInputStream;
+import org.owasp.proxy.io.SocketWrapper;
 import org.owasp.proxy.io.TimingInputStream;
 import org.owasp.proxy.ssl.DefaultClientContextSelector;
 import org.owasp.proxy.ssl.SSLContextSelector;
@@ -90,6 +91,8 @@ public class HttpClient {
 
 	protected Socket socket = null;
 
+	private HeaderInputStream in = null;
+
 	private InetSocketAddress target = null;
 
 	private boolean direct = true;
@@ -159,6 +162,16 @@ public class HttpClient {
 		return state;
 	}
 
+	/**
+	 * @return true if this client has an open connection which is not in the
+	 *         middle of a request or response, and could be used to send
+	 *         another request
+	 */
+	public boolean isIdle() {
+		return socket != null && !socket.isClosed()
+				&& (state == State.CONNECTED || state == State.RESPONSE_CONTENT_READ);
+	}
+
 	protected void validateTarget(SocketAddress target) throws IOException {
 	}
 
@@ -185,6 +198,11 @@ public class HttpClient {
 			return false;
 		}
 		if (target.equals(this.target)) {
+			if (in != null && in.getBufferedCount() > 0) {
+				logger.warning("Unexpected data buffered from socket ("
+						+ in.getBufferedCount() + " bytes)");
+				return false;
+			}
 			try {
 				// FIXME: This only works because we don't implement pipelining!
 				int oldtimeout = socket.getSoTimeout();
@@ -224,7 +242,14 @@ public class HttpClient {
 		out.write(req.getHeader());
 		out.flush();
 
-		return readResponse(socket.getInputStream());
+		in = new HeaderInputStream(socket.getInputStream());
+		StreamingResponse response = readResponse(in);
+		if (in.getBufferedCount() > 0) {
+			// make sure that anything the proxy sent after its response
+			// header is not lost when layering SSL over the socket
+			socket = new SocketWrapper(socket, in, out);
+		}
+		return response;
 	}
 
 	public StreamingResponse connect(String host, int port, boolean ssl)
@@ -264,6 +289,7 @@ public class HttpClient {
 		this.target = target;
 
 		socket = null;
+		in = null;
 		IOException lastAttempt = null;
 		for (Proxy proxy : proxies) {
 			direct = true;
@@ -274,6 +300,9 @@ public class HttpClient {
 				if (proxy.type() == Proxy.Type.HTTP) {
 					socket = new Socket(Proxy.NO_PROXY);
 					socket.setSoTimeout(soTimeout);
+					// requests are already written in as few pieces as
+					// possible, so there is no benefit to delaying them
+					socket.setTcpNoDelay(true);
 					socket.connect(addr);
 					if (ssl) {
 						try {
@@ -294,6 +323,7 @@ public class HttpClient {
 				} else {
 					socket = new Socket(proxy);
 					socket.setSoTimeout(soTimeout);
+					socket.setTcpNoDelay(true);
 					socket.connect(target);
 					if (ssl) {
 						layerSsl(target);
@@ -309,6 +339,7 @@ public class HttpClient {
 			}
 			if (socket != null && socket.isConnected()) {
 				// success
+				in = new HeaderInputStream(socket.getInputStream());
 				state = State.CONNECTED;
 				return null;
 			}
@@ -414,35 +445,27 @@ public class HttpClient {
 		requestSubmissionTime = System.currentTimeMillis();
 	}
 
-	private StreamingResponse readResponse(InputStream in) throws IOException,
-	MessageFormatException {
-		InputStream is = socket.getInputStream();
-		HeaderByteArrayOutputStream header = new HeaderByteArrayOutputStream();
+	private StreamingResponse readResponse(HeaderInputStream in)
+			throws IOException, MessageFormatException {
 		StreamingResponse response = new StreamingResponse.Impl();
-		int i = -1;
+		byte[] header;
 		try {
-			while (!header.isEndOfHeader() && (i = is.read()) > -1) {
-				header.write(i);
-			}
+			header = in.readHeader();
 			response.setHeaderTime(System.currentTimeMillis());
 		} catch (SocketTimeoutException ste) {
-			if (header.size() > 0) {
+			if (in.getBufferedCount() > 0) {
 				MessageFormatException mfe = new MessageFormatException(
-						"Timeout reading response header", header.toByteArray());
+						"Timeout reading response header");
 				mfe.initCause(ste);
 				throw mfe;
 			}
 			throw ste;
 		}
-		if (!header.isEndOfHeader() && i == -1) {
-			if (header.size() > 0)
-				throw new MessageFormatException("Invalid header ", header
-						.toByteArray());
+		if (header == null)
 			throw new IOException("Unexpected end of stream reading header");
-		}
 
-		response.setHeader(header.toByteArray());
-		response.setContent(is);
+		response.setHeader(header);
+		response.setContent(in);
 		return response;
 	}
 
@@ -466,37 +489,28 @@ public class HttpClient {
 					"Ilegal state. Can't read response header when state is "
 							+ state);
 		}
-		InputStream is = socket.getInputStream();
-		HeaderByteArrayOutputStream header = new HeaderByteArrayOutputStream();
-		int i = -1;
+		byte[] header;
 		try {
 			responseHeaderStartTime = responseHeaderEndTime = 0;
-			while (!header.isEndOfHeader() && (i = is.read()) > -1) {
-				if (responseHeaderStartTime == 0) {
-					responseHeaderStartTime = System.currentTimeMillis();
-				}
-				header.write(i);
-			}
+			header = in.readHeader();
+			responseHeaderStartTime = in.getHeaderStartTime();
 			responseHeaderEndTime = System.currentTimeMillis();
 		} catch (SocketTimeoutException ste) {
 			logger.fine("Timeout reading response header. Had read "
-					+ header.size() + " bytes");
-			if (header.size() > 0) {
-				logger.fine(AsciiString.create(header.toByteArray()));
-			}
+					+ in.getBufferedCount() + " bytes");
 			throw ste;
 		}
-		if (i == -1) {
+		if (header == null) {
 			throw new IOException("Unexpected end of stream reading header");
 		}
 		MutableResponseHeader.Impl rh = new MutableResponseHeader.Impl();
-		rh.setHeader(header.toByteArray());
+		rh.setHeader(header);
 		String status = rh.getStatus();
 		if (status.equals("100")) {
 			state = State.RESPONSE_CONTINUE;
 		} else {
 			state = State.RESPONSE_HEADER_READ;
-			responseContent = getContentStream(rh, is);
+			responseContent = getContentStream(rh, in);
 		}
 		return rh.getHeader();
 	}
@@ -553,6 +567,7 @@ public class HttpClient {
 			}
 		} finally {
 			socket = null;
+			in = null;
 			state = State.DISCONNECTED;
 		}
 	}
@@ -623,16 +638,4 @@ public class HttpClient {
 		return response;
 	}
 
-	private static class HeaderByteArrayOutputStream extends
-	ByteArrayOutputStream {
-
-		// we do it here because we have direct access to the buffer
-		public boolean isEndOfHeader() {
-			int i = count;
-			return i > 4 && buf[i - 4] == '\r' && buf[i - 3] == '\n'
-					&& buf[i - 2] == '\r' && buf[i - 1] == '\n';
-		}
-
-	}
-
 }
@@ -0,0 +1,425 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Maintains a pool of {@link HttpClient}s, so that upstream connections can be
+ * reused by any thread, not only by the thread that opened them.
+ * 
+ * Clients are leased for a particular route, consisting of the target
+ * address, whether SSL is used, and the upstream proxies selected for that
+ * target. A leased client should be returned via {@link #release(HttpClient)}
+ * once the response has been completely read, or via
+ * {@link #discard(HttpClient)} if it should not be reused. The caller is
+ * still responsible for calling {@link HttpClient#connect(InetSocketAddress,
+ * boolean)} on the leased client, which reuses the existing connection if it
+ * is still open, or opens a new one if not.
+ * 
+ * Idle clients are reused most recently used first, so that the least used
+ * connections are the ones that time out. Clients that have been idle for
+ * longer than the idle timeout are disconnected.
+ * 
+ * Subclasses may override {@link #createClient()} to configure the clients
+ * created by the pool.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class HttpClientPool {
+
+	private static Logger logger = Logger.getLogger(HttpClientPool.class
+			.getName());
+
+	private int maxPerRoute = 0;
+
+	private int maxIdlePerRoute = 8;
+
+	private long idleTimeout = 30000;
+
+	private long leaseTimeout = 30000;
+
+	private Lock lock = new ReentrantLock();
+
+	private Condition available = lock.newCondition();
+
+	private Map<String, Route> routes = new HashMap<String, Route>();
+
+	private Map<HttpClient, Route> leased = new IdentityHashMap<HttpClient, Route>();
+
+	private HttpClient prototype = null;
+
+	private long lastSweep = System.currentTimeMillis();
+
+	public HttpClientPool() {
+	}
+
+	/**
+	 * Creates a new client when there is no idle client available for a
+	 * route. The default implementation returns a plain {@link HttpClient}.
+	 * 
+	 * @return a new HttpClient
+	 */
+	protected HttpClient createClient() {
+		return new HttpClient();
+	}
+
+	/**
+	 * @return the maximum number of clients leased or idle for any one route,
+	 *         or 0 if unlimited
+	 */
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	/**
+	 * @param maxPerRoute
+	 *            the maximum number of clients leased or idle for any one
+	 *            route, or 0 if unlimited
+	 */
+	public void setMaxPerRoute(int maxPerRoute) {
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	/**
+	 * @return the maximum number of idle clients kept for any one route
+	 */
+	public int getMaxIdlePerRoute() {
+		return maxIdlePerRoute;
+	}
+
+	/**
+	 * @param maxIdlePerRoute
+	 *            the maximum number of idle clients kept for any one route
+	 */
+	public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+		this.maxIdlePerRoute = maxIdlePerRoute;
+	}
+
+	/**
+	 * @return the time in milliseconds after which an idle client is
+	 *         disconnected
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            the time in milliseconds after which an idle client is
+	 *            disconnected
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return the time in milliseconds to wait for a client when the maximum
+	 *         number of clients for the route are already leased
+	 */
+	public long getLeaseTimeout() {
+		return leaseTimeout;
+	}
+
+	/**
+	 * @param leaseTimeout
+	 *            the time in milliseconds to wait for a client when the
+	 *            maximum number of clients for the route are already leased
+	 */
+	public void setLeaseTimeout(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	/**
+	 * Leases a client for the specified route. Idle clients are validated
+	 * before being returned, and clients that have been closed or have been
+	 * idle for too long are discarded.
+	 * 
+	 * @param target
+	 *            the target to connect to
+	 * @param ssl
+	 *            whether the connection should use SSL
+	 * @return a client, which may or may not already be connected to the
+	 *         target
+	 * @throws IOException
+	 *             if the maximum number of clients for the route are in use,
+	 *             and none was released within the lease timeout
+	 */
+	public HttpClient lease(InetSocketAddress target, boolean ssl)
+			throws IOException {
+		List<HttpClient> stale = new ArrayList<HttpClient>();
+		lock.lock();
+		try {
+			String key = getRouteKey(target, ssl);
+			long deadline = System.currentTimeMillis() + leaseTimeout;
+			while (true) {
+				// look the route up each time, as it may have been swept
+				// while we were waiting
+				Route route = routes.get(key);
+				if (route == null) {
+					route = new Route(key);
+					routes.put(key, route);
+				}
+				long now = System.currentTimeMillis();
+				while (!route.idle.isEmpty()) {
+					IdleClient idle = route.idle.removeFirst();
+					if (now - idle.since > idleTimeout || !idle.client.isIdle()) {
+						stale.add(idle.client);
+					} else {
+						route.leased++;
+						leased.put(idle.client, route);
+						return idle.client;
+					}
+				}
+				if (maxPerRoute <= 0 || route.leased < maxPerRoute) {
+					HttpClient client = createClient();
+					route.leased++;
+					leased.put(client, route);
+					return client;
+				}
+				long wait = deadline - now;
+				if (wait <= 0)
+					throw new IOException("Timed out waiting for a connection to "
+							+ key);
+				try {
+					available.await(wait, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ie) {
+					IOException ioe = new IOException(
+							"Interrupted waiting for a connection to " + key);
+					ioe.initCause(ie);
+					throw ioe;
+				}
+			}
+		} finally {
+			sweep(stale);
+			lock.unlock();
+			disconnect(stale);
+		}
+	}
+
+	/**
+	 * Returns a client to the pool. If it is still connected, and has
+	 * completed its last request, it may be reused for the same route,
+	 * otherwise it is disconnected.
+	 * 
+	 * @param client
+	 *            the client previously obtained from
+	 *            {@link #lease(InetSocketAddress, boolean)}
+	 */
+	public void release(HttpClient client) {
+		returnClient(client, client.isIdle());
+	}
+
+	/**
+	 * Disconnects a leased client, and releases its slot in the pool.
+	 * 
+	 * @param client
+	 *            the client previously obtained from
+	 *            {@link #lease(InetSocketAddress, boolean)}
+	 */
+	public void discard(HttpClient client) {
+		returnClient(client, false);
+	}
+
+	private void returnClient(HttpClient client, boolean reuse) {
+		List<HttpClient> stale = new ArrayList<HttpClient>();
+		lock.lock();
+		try {
+			Route route = leased.remove(client);
+			if (route == null) {
+				logger.warning("Client was not leased from this pool");
+				reuse = false;
+			} else {
+				route.leased--;
+				if (reuse && route.idle.size() < maxIdlePerRoute) {
+					route.idle.addFirst(new IdleClient(client));
+				} else {
+					reuse = false;
+				}
+				available.signalAll();
+			}
+			if (!reuse)
+				stale.add(client);
+			sweep(stale);
+		} finally {
+			lock.unlock();
+			disconnect(stale);
+		}
+	}
+
+	/**
+	 * Disconnects all idle clients. Leased clients are disconnected when they
+	 * are returned.
+	 */
+	public void close() {
+		List<HttpClient> stale = new ArrayList<HttpClient>();
+		lock.lock();
+		try {
+			for (Route route : routes.values()) {
+				for (IdleClient idle : route.idle)
+					stale.add(idle.client);
+				route.idle.clear();
+			}
+		} finally {
+			lock.unlock();
+			disconnect(stale);
+		}
+	}
+
+	/**
+	 * @return the number of idle clients in the pool
+	 */
+	public int getIdleCount() {
+		lock.lock();
+		try {
+			int count = 0;
+			for (Route route : routes.values())
+				count += route.idle.size();
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of clients currently leased from the pool
+	 */
+	public int getLeasedCount() {
+		lock.lock();
+		try {
+			return leased.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Builds the key identifying the route to the target. This includes the
+	 * upstream proxies that would be used to reach the target, so that a
+	 * client is never reused after the proxy configuration has changed.
+	 */
+	private String getRouteKey(InetSocketAddress target, boolean ssl)
+			throws IOException {
+		if (prototype == null)
+			prototype = createClient();
+		StringBuilder buff = new StringBuilder();
+		buff.append(ssl ? "https" : "http").append("://");
+		buff.append(target.getHostName()).append(":").append(target.getPort());
+		URI uri;
+		try {
+			uri = new URI(buff.toString());
+		} catch (URISyntaxException use) {
+			IOException ioe = new IOException("Unable to construct a URI");
+			ioe.initCause(use);
+			throw ioe;
+		}
+		List<Proxy> proxies = prototype.getProxySelector().select(uri);
+		if (proxies != null) {
+			for (Proxy proxy : proxies)
+				buff.append(" ").append(proxy);
+		}
+		return buff.toString();
+	}
+
+	/**
+	 * Removes clients that have been idle for too long, and routes that are
+	 * no longer in use. This is called opportunistically while holding the
+	 * lock, rather than from a dedicated thread.
+	 */
+	private void sweep(List<HttpClient> stale) {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < idleTimeout / 2)
+			return;
+		lastSweep = now;
+		Iterator<Route> it = routes.values().iterator();
+		while (it.hasNext()) {
+			Route route = it.next();
+			Iterator<IdleClient> idle = route.idle.iterator();
+			while (idle.hasNext()) {
+				IdleClient client = idle.next();
+				if (now - client.since > idleTimeout) {
+					idle.remove();
+					stale.add(client.client);
+				}
+			}
+			if (route.idle.isEmpty() && route.leased == 0)
+				it.remove();
+		}
+	}
+
+	private void disconnect(List<HttpClient> clients) {
+		for (HttpClient client : clients) {
+			try {
+				client.disconnect();
+			} catch (IOException ioe) {
+				logger.fine("Exception disconnecting client: "
+						+ ioe.getMessage());
+			}
+		}
+	}
+
+	private static class Route {
+
+		private String key;
+
+		private int leased = 0;
+
+		private LinkedList<IdleClient> idle = new LinkedList<IdleClient>();
+
+		public Route(String key) {
+			this.key = key;
+		}
+
+		public String toString() {
+			return key;
+		}
+	}
+
+	private static class IdleClient {
+
+		private HttpClient client;
+
+		private long since = System.currentTimeMillis();
+
+		public IdleClient(HttpClient client) {
+			this.client = client;
+		}
+	}
+
+}
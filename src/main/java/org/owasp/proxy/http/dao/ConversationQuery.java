@@ -0,0 +1,195 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Criteria for selecting recorded conversations. Criteria that are not set
+ * are not applied, and a conversation must match all of the criteria that are
+ * set.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class ConversationQuery {
+
+	private String host = null, method = null, status = null,
+			contentType = null, pathPrefix = null;
+
+	private int port = 0;
+
+	private long from = 0, to = 0;
+
+	private int since = 0, limit = -1;
+
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param port
+	 *            the port, or 0 for any port
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @param contentType
+	 *            the response content type, which matches any parameters too.
+	 *            i.e. "text/html" matches "text/html; charset=utf-8"
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String getPathPrefix() {
+		return pathPrefix;
+	}
+
+	/**
+	 * @param pathPrefix
+	 *            the prefix that the request resource must start with
+	 */
+	public void setPathPrefix(String pathPrefix) {
+		this.pathPrefix = pathPrefix;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * @param from
+	 *            the earliest request time to match, inclusive, or 0
+	 */
+	public void setFrom(long from) {
+		this.from = from;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	/**
+	 * @param to
+	 *            the latest request time to match, exclusive, or 0
+	 */
+	public void setTo(long to) {
+		this.to = to;
+	}
+
+	public int getSince() {
+		return since;
+	}
+
+	/**
+	 * @param since
+	 *            only conversations with a larger id will match
+	 */
+	public void setSince(int since) {
+		this.since = since;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @param limit
+	 *            the maximum number of conversations to return, or -1 for all
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Determines whether the summary matches the criteria, other than the
+	 * limit
+	 * 
+	 * @param summary
+	 * @return true if the summary matches
+	 */
+	public boolean matches(ConversationSummary summary) {
+		if (summary.getId() <= since)
+			return false;
+		InetSocketAddress target = summary.getTarget();
+		if (host != null
+				&& (target == null || !host.equals(target
+						.getHostName())))
+			return false;
+		if (port > 0 && (target == null || port != target.getPort()))
+			return false;
+		if (method != null && !method.equals(summary.getRequestMethod()))
+			return false;
+		if (status != null && !status.equals(summary.getResponseStatus()))
+			return false;
+		if (contentType != null) {
+			String type = summary.getResponseContentType();
+			if (type == null
+					|| !type.regionMatches(true, 0, contentType, 0,
+							contentType.length()))
+				return false;
+		}
+		if (pathPrefix != null) {
+			String resource = summary.getRequestResource();
+			if (resource == null || !resource.startsWith(pathPrefix))
+				return false;
+		}
+		long time = summary.getRequestSubmissionTime();
+		if (from > 0 && time < from)
+			return false;
+		if (to > 0 && time >= to)
+			return false;
+		return true;
+	}
+
+}
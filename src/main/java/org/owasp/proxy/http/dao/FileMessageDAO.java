@@ -0,0 +1,1254 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.owasp.proxy.http.BufferedRequest;
+import org.owasp.proxy.http.BufferedResponse;
+import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.http.MutableRequestHeader;
+import org.owasp.proxy.http.MutableResponseHeader;
+import org.owasp.proxy.http.RequestHeader;
+import org.owasp.proxy.http.ResponseHeader;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * A {@link MessageDAO} that appends everything it stores to a series of
+ * segment files in a directory, and keeps an index of the records in memory.
+ * Records in segments that are no longer written to are read back through
+ * memory mapped buffers. Records in the active segment are read directly from
+ * the file. Streamed content is limited to what fits in a segment of 2GB.
+ * 
+ * Each record is framed as a type byte, an id, a payload length, the payload,
+ * and a CRC32 checksum. When the DAO is opened the segments are scanned to
+ * rebuild the index, and a partially written record at the end of the last
+ * segment, left by a crash, is truncated.
+ * 
+ * Deleting a conversation appends a tombstone. The space used by deleted
+ * conversations is only reclaimed by {@link #compact()}, which copies the
+ * remaining live records out of sparsely used segments and removes them.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class FileMessageDAO implements MessageDAO {
+
+	private static final Logger logger = Logger.getLogger(FileMessageDAO.class
+			.getName());
+
+	private static final byte CONTENT = 1;
+
+	private static final byte REQUEST = 2;
+
+	private static final byte RESPONSE = 3;
+
+	private static final byte CONVERSATION = 4;
+
+	private static final byte DELETE = 5;
+
+	/** type, id, length */
+	private static final int FRAME_HEADER = 9;
+
+	/** CRC32 */
+	private static final int FRAME_TRAILER = 4;
+
+	private static final String SUFFIX = ".seg";
+
+	private File directory;
+
+	private long segmentSize = 64 * 1024 * 1024;
+
+	private List<ConversationListener> listeners = new CopyOnWriteArrayList<ConversationListener>();
+
+	private double compactionThreshold = 0.5;
+
+	private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	private Segment active = null;
+
+	private Map<Integer, Location> contents = new HashMap<Integer, Location>();
+
+	private Map<Integer, Integer> contentRefs = new HashMap<Integer, Integer>();
+
+	private Map<Integer, Header> headers = new HashMap<Integer, Header>();
+
+	private TreeMap<Integer, Record> conversations = new TreeMap<Integer, Record>();
+
+	private Map<Integer, Tombstone> tombstones = new HashMap<Integer, Tombstone>();
+
+	private int nextContentId = 1, nextHeaderId = 1, nextConversationId = 1;
+
+	/**
+	 * Opens the message store in the specified directory, creating it if
+	 * necessary
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	public FileMessageDAO(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		recover();
+	}
+
+	/**
+	 * Sets the size at which the active segment is closed and a new one
+	 * started
+	 * 
+	 * @param segmentSize
+	 */
+	public synchronized void setSegmentSize(long segmentSize) {
+		if (segmentSize < 1024 || segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Segment size is out of range");
+		this.segmentSize = segmentSize;
+	}
+
+	public synchronized long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the proportion of a segment that must be live for
+	 * {@link #compact()} to leave it alone
+	 * 
+	 * @param compactionThreshold
+	 *            a value between 0 and 1
+	 */
+	public synchronized void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public synchronized double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * @return the number of segment files currently in use
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces any records written so far to disk
+	 * 
+	 * @throws DataAccessException
+	 */
+	public synchronized void flush() throws DataAccessException {
+		try {
+			active.channel.force(false);
+		} catch (IOException ioe) {
+			throw failure("Error flushing " + active.file, ioe);
+		}
+	}
+
+	/**
+	 * Flushes and closes all segment files. The DAO may not be used after it
+	 * is closed.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		IOException first = null;
+		if (active != null)
+			active.channel.force(false);
+		for (Segment segment : segments.values()) {
+			try {
+				segment.close();
+			} catch (IOException ioe) {
+				if (first == null)
+					first = ioe;
+			}
+		}
+		segments.clear();
+		active = null;
+		if (first != null)
+			throw first;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#saveMessageContent(byte[])
+	 */
+	public synchronized int saveMessageContent(byte[] messageContent)
+			throws DataAccessException {
+		int id = nextContentId++;
+		Location location = append(CONTENT, id, messageContent);
+		contents.put(id, location);
+		return id;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#saveMessageContent(java.io.InputStream
+	 * )
+	 */
+	public synchronized int saveMessageContent(InputStream messageContent)
+			throws DataAccessException {
+		int id = nextContentId++;
+		Segment segment = active;
+		long start = segment.size;
+		try {
+			roll(0);
+			segment = active;
+			start = segment.size;
+			// the length is only known once the content has been written
+			ByteBuffer header = frameHeader(CONTENT, id, 0);
+			write(segment, start, header);
+			CRC32 crc = new CRC32();
+			long position = start + FRAME_HEADER;
+			byte[] buff = new byte[8192];
+			int got;
+			while ((got = messageContent.read(buff)) > -1) {
+				// segments are mapped as a whole, so can't exceed 2GB
+				if (position + got + FRAME_TRAILER > Integer.MAX_VALUE)
+					throw new IOException("Content is too large for segment "
+							+ segment.file);
+				crc.update(buff, 0, got);
+				write(segment, position, ByteBuffer.wrap(buff, 0, got));
+				position += got;
+			}
+			long length = position - start - FRAME_HEADER;
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Content is too large");
+			header = frameHeader(CONTENT, id, (int) length);
+			crc.update(header.array());
+			write(segment, start, header);
+			write(segment, position, trailer(crc));
+			segment.size = position + FRAME_TRAILER;
+			Location location = new Location(segment.number, start
+					+ FRAME_HEADER, (int) length);
+			contents.put(id, location);
+			return id;
+		} catch (IOException ioe) {
+			try {
+				segment.channel.truncate(start);
+			} catch (IOException ignored) {
+				// it will be truncated on recovery
+			}
+			throw failure("Error saving content", ioe);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#saveRequest(org.owasp.proxy.http.
+	 * MutableBufferedRequest)
+	 */
+	public synchronized void saveRequest(MutableBufferedRequest request)
+			throws DataAccessException {
+		int contentId = -1;
+		if (request.getContent() != null)
+			contentId = saveMessageContent(request.getContent());
+		saveRequestHeader(request, contentId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#saveRequestHeader(org.owasp.proxy
+	 * .http.MutableRequestHeader, int)
+	 */
+	public synchronized void saveRequestHeader(
+			MutableRequestHeader requestHeader, int contentId)
+			throws DataAccessException {
+		InetSocketAddress target = requestHeader.getTarget();
+		byte[] host = AsciiString.getBytes(target.getHostName());
+		byte[] header = requestHeader.getHeader();
+		ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 1 + 4 + 2
+				+ host.length + header.length);
+		payload.putInt(contentId);
+		payload.putLong(requestHeader.getTime());
+		payload.put((byte) (requestHeader.isSsl() ? 1 : 0));
+		payload.putInt(target.getPort());
+		payload.putShort((short) host.length);
+		payload.put(host);
+		payload.put(header);
+		int id = nextHeaderId++;
+		Location location = append(REQUEST, id, payload.array());
+		addHeader(id, new Header(REQUEST, location, contentId));
+		requestHeader.setId(id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#saveResponse(org.owasp.proxy.http
+	 * .MutableBufferedResponse)
+	 */
+	public synchronized void saveResponse(MutableBufferedResponse response)
+			throws DataAccessException {
+		int contentId = -1;
+		if (response.getContent() != null)
+			contentId = saveMessageContent(response.getContent());
+		saveResponseHeader(response, contentId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#saveResponseHeader(org.owasp.proxy
+	 * .http.MutableResponseHeader, int)
+	 */
+	public synchronized void saveResponseHeader(
+			MutableResponseHeader responseHeader, int contentId)
+			throws DataAccessException {
+		byte[] header = responseHeader.getHeader();
+		ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 8 + header.length);
+		payload.putInt(contentId);
+		payload.putLong(responseHeader.getHeaderTime());
+		payload.putLong(responseHeader.getContentTime());
+		payload.put(header);
+		int id = nextHeaderId++;
+		Location location = append(RESPONSE, id, payload.array());
+		addHeader(id, new Header(RESPONSE, location, contentId));
+		responseHeader.setId(id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#saveConversation(int, int)
+	 */
+	public synchronized int saveConversation(int requestId, int responseId)
+			throws DataAccessException {
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putInt(requestId);
+		payload.putInt(responseId);
+		int id = nextConversationId++;
+		Location location = append(CONVERSATION, id, payload.array());
+		conversations.put(id, new Record(location, requestId, responseId));
+		return id;
+	}
+
+	/**
+	 * Saves the conversations in order. Since each conversation is written
+	 * after its messages, a crash part way through can leave some of the
+	 * conversations saved, but never a partial conversation.
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#saveConversations(java.util.List,
+	 *      java.util.List)
+	 */
+	public synchronized void saveConversations(
+			List<MutableBufferedRequest> requests,
+			List<MutableBufferedResponse> responses)
+			throws DataAccessException {
+		if (requests.size() != responses.size())
+			throw new IllegalArgumentException(
+					"Requests and responses must be paired");
+		for (int i = 0; i < requests.size(); i++) {
+			MutableBufferedRequest request = requests.get(i);
+			MutableBufferedResponse response = responses.get(i);
+			saveRequest(request);
+			saveResponse(response);
+			saveConversation(request.getId(), response.getId());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#deleteConversation(int)
+	 */
+	public boolean deleteConversation(int id) throws DataAccessException {
+		Conversation deleted = new Conversation();
+		synchronized (this) {
+			Record c = conversations.get(id);
+			if (c == null)
+				return false;
+			ByteBuffer payload = ByteBuffer.allocate(16);
+			payload.putInt(c.requestId);
+			payload.putInt(c.responseId);
+			payload.putInt(getMessageContentId(c.requestId));
+			payload.putInt(getMessageContentId(c.responseId));
+			Location location = append(DELETE, id, payload.array());
+			delete(id, location, payload.array());
+			deleted.setId(id);
+			deleted.setRequestId(c.requestId);
+			deleted.setResponseId(c.responseId);
+		}
+		for (ConversationListener listener : listeners)
+			listener.conversationDeleted(deleted);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#addConversationListener(org.owasp
+	 * .proxy.http.dao.ConversationListener)
+	 */
+	public void addConversationListener(ConversationListener listener) {
+		listeners.add(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#removeConversationListener(org.owasp
+	 * .proxy.http.dao.ConversationListener)
+	 */
+	public void removeConversationListener(ConversationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#getConversation(int)
+	 */
+	public synchronized Conversation getConversation(int id)
+			throws DataAccessException {
+		Record r = conversations.get(id);
+		if (r == null)
+			return null;
+		Conversation c = new Conversation();
+		c.setId(id);
+		c.setRequestId(r.requestId);
+		c.setResponseId(r.responseId);
+		return c;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#getConversationSummary(int)
+	 */
+	public synchronized ConversationSummary getConversationSummary(int id)
+			throws DataAccessException {
+		Record c = conversations.get(id);
+		if (c == null)
+			return null;
+		return summarize(id, c);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#listSummaries(int, int)
+	 */
+	public synchronized List<ConversationSummary> listSummaries(int since,
+			int limit) throws DataAccessException {
+		List<ConversationSummary> summaries = new ArrayList<ConversationSummary>();
+		for (Map.Entry<Integer, Record> e : conversations.tailMap(since + 1)
+				.entrySet()) {
+			if (limit > 0 && summaries.size() >= limit)
+				break;
+			summaries.add(summarize(e.getKey(), e.getValue()));
+		}
+		return summaries;
+	}
+
+	/**
+	 * Finds the summaries of the conversations that match the query, in order.
+	 * 
+	 * There is no index behind this: every conversation after
+	 * {@link ConversationQuery#getSince()} is summarized from its headers and
+	 * tested in turn, while holding the lock that writers also need, until the
+	 * limit is reached. Summaries are not kept in memory between calls. Queries
+	 * that match few conversations in a large store should set a limit, or use
+	 * the {@link JdbcMessageDAO}, which has indexes for each criterion.
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#findSummaries(ConversationQuery)
+	 */
+	public synchronized List<ConversationSummary> findSummaries(
+			ConversationQuery query) throws DataAccessException {
+		List<ConversationSummary> summaries = new ArrayList<ConversationSummary>();
+		int limit = query.getLimit();
+		for (Map.Entry<Integer, Record> e : conversations.tailMap(
+				query.getSince() + 1).entrySet()) {
+			if (limit > 0 && summaries.size() >= limit)
+				break;
+			ConversationSummary summary = summarize(e.getKey(), e.getValue());
+			if (query.matches(summary))
+				summaries.add(summary);
+		}
+		return summaries;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#findConversations(org.owasp.proxy
+	 * .http.dao.ConversationQuery)
+	 */
+	public List<Integer> findConversations(ConversationQuery query)
+			throws DataAccessException {
+		List<ConversationSummary> summaries = findSummaries(query);
+		List<Integer> ids = new ArrayList<Integer>(summaries.size());
+		for (ConversationSummary summary : summaries)
+			ids.add(Integer.valueOf((int) summary.getId()));
+		return ids;
+	}
+
+	private ConversationSummary summarize(int id, Record c) {
+		ConversationSummary cs = new ConversationSummary();
+		cs.setId(id);
+		RequestHeader rqh = loadRequestHeader(c.requestId);
+		try {
+			if (rqh != null)
+				cs.summarizeRequest(rqh, getContentSize(c.requestId));
+		} catch (MessageFormatException ignored) {
+			// Return an empty request summary if it cannot be parsed
+		}
+		ResponseHeader rph = loadResponseHeader(c.responseId);
+		try {
+			if (rph != null)
+				cs.summarizeResponse(rph, getContentSize(c.responseId));
+		} catch (MessageFormatException ignored) {
+			// Return an empty response summary if it cannot be parsed
+		}
+		return cs;
+	}
+
+	private int getContentSize(int headerId) {
+		int contentId = getMessageContentId(headerId);
+		return contentId > 0 ? getMessageContentSize(contentId) : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#listConversations()
+	 */
+	public Collection<Integer> listConversations() throws DataAccessException {
+		return listConversationsSince(0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#listConversationsSince(int)
+	 */
+	public synchronized Collection<Integer> listConversationsSince(
+			int conversationId) throws DataAccessException {
+		return new ArrayList<Integer>(conversations.tailMap(
+				conversationId + 1).keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#getMessageContentId(int)
+	 */
+	public synchronized int getMessageContentId(int headerId)
+			throws DataAccessException {
+		Header header = headers.get(headerId);
+		return header == null ? -1 : header.contentId;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#getMessageContentSize(int)
+	 */
+	public synchronized int getMessageContentSize(int id)
+			throws DataAccessException {
+		Location location = contents.get(id);
+		return location == null ? -1 : location.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadMessageContent(int)
+	 */
+	public synchronized byte[] loadMessageContent(int id)
+			throws DataAccessException {
+		Location location = contents.get(id);
+		if (location == null)
+			return null;
+		ByteBuffer buff = read(location);
+		byte[] content = new byte[buff.remaining()];
+		buff.get(content);
+		return content;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadMessageContentStream(int,
+	 * int, int)
+	 */
+	public synchronized InputStream loadMessageContentStream(int id,
+			int offset, int length) throws DataAccessException {
+		Location location = contents.get(id);
+		if (location == null)
+			return null;
+		offset = Math.min(Math.max(offset, 0), location.length);
+		if (length < 0 || length > location.length - offset)
+			length = location.length - offset;
+		Segment segment = segments.get(location.segment);
+		if (!segment.sealed)
+			// don't read possibly large content into the heap
+			return new SegmentInputStream(segment, location.offset + offset,
+					length);
+		ByteBuffer buff = read(location);
+		buff.position(offset);
+		buff.limit(offset + length);
+		return new ByteBufferInputStream(buff);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadRequest(int)
+	 */
+	public synchronized BufferedRequest loadRequest(int id)
+			throws DataAccessException {
+		MutableBufferedRequest request = (MutableBufferedRequest) loadRequestHeader(id);
+		if (request == null)
+			return null;
+		int contentId = getMessageContentId(id);
+		if (contentId > 0)
+			request.setContent(loadMessageContent(contentId));
+		return request;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadRequestHeader(int)
+	 */
+	public synchronized RequestHeader loadRequestHeader(int id)
+			throws DataAccessException {
+		Header header = headers.get(id);
+		if (header == null || header.type != REQUEST)
+			return null;
+		ByteBuffer buff = read(header.location);
+		buff.getInt(); // contentId
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setId(id);
+		request.setTime(buff.getLong());
+		request.setSsl(buff.get() != 0);
+		int port = buff.getInt();
+		byte[] host = new byte[buff.getShort()];
+		buff.get(host);
+		request.setTarget(InetSocketAddress.createUnresolved(AsciiString
+				.create(host), port));
+		byte[] bytes = new byte[buff.remaining()];
+		buff.get(bytes);
+		request.setHeader(bytes);
+		return request;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadResponse(int)
+	 */
+	public synchronized BufferedResponse loadResponse(int id)
+			throws DataAccessException {
+		MutableBufferedResponse response = (MutableBufferedResponse) loadResponseHeader(id);
+		if (response == null)
+			return null;
+		int contentId = getMessageContentId(id);
+		if (contentId > 0)
+			response.setContent(loadMessageContent(contentId));
+		return response;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#loadResponseHeader(int)
+	 */
+	public synchronized ResponseHeader loadResponseHeader(int id)
+			throws DataAccessException {
+		Header header = headers.get(id);
+		if (header == null || header.type != RESPONSE)
+			return null;
+		ByteBuffer buff = read(header.location);
+		buff.getInt(); // contentId
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setId(id);
+		response.setHeaderTime(buff.getLong());
+		response.setContentTime(buff.getLong());
+		byte[] bytes = new byte[buff.remaining()];
+		buff.get(bytes);
+		response.setHeader(bytes);
+		return response;
+	}
+
+	/**
+	 * Rewrites the live records from any segment that is less than the
+	 * compaction threshold full of live records into the active segment, and
+	 * deletes the old segment.
+	 * 
+	 * @return the number of segments removed
+	 * @throws DataAccessException
+	 */
+	public synchronized int compact() throws DataAccessException {
+		Map<Integer, Long> live = new HashMap<Integer, Long>();
+		for (Location l : contents.values())
+			count(live, l);
+		for (Header h : headers.values())
+			count(live, h.location);
+		for (Record r : conversations.values())
+			count(live, r.location);
+		for (Tombstone t : tombstones.values())
+			count(live, t.location);
+
+		List<Segment> candidates = new ArrayList<Segment>();
+		for (Segment segment : segments.values()) {
+			if (segment == active)
+				continue;
+			Long bytes = live.get(segment.number);
+			if (bytes == null
+					|| bytes.longValue() < segment.size * compactionThreshold)
+				candidates.add(segment);
+		}
+		try {
+			for (Segment segment : candidates)
+				compact(segment);
+			return candidates.size();
+		} catch (IOException ioe) {
+			throw failure("Error compacting segments", ioe);
+		}
+	}
+
+	private void count(Map<Integer, Long> live, Location location) {
+		Long bytes = live.get(location.segment);
+		long size = FRAME_HEADER + location.length + FRAME_TRAILER;
+		live.put(location.segment, bytes == null ? size : bytes.longValue()
+				+ size);
+	}
+
+	private void compact(Segment segment) throws IOException {
+		int number = segment.number;
+		for (Map.Entry<Integer, Location> e : contents.entrySet())
+			if (e.getValue().segment == number)
+				e.setValue(copy(CONTENT, e.getKey(), e.getValue()));
+		for (Map.Entry<Integer, Header> e : headers.entrySet()) {
+			Header h = e.getValue();
+			if (h.location.segment == number)
+				h.location = copy(h.type, e.getKey(), h.location);
+		}
+		for (Map.Entry<Integer, Record> e : conversations.entrySet()) {
+			Record r = e.getValue();
+			if (r.location.segment == number)
+				r.location = copy(CONVERSATION, e.getKey(), r.location);
+		}
+		Iterator<Map.Entry<Integer, Tombstone>> it = tombstones.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Tombstone> e = it.next();
+			Tombstone t = e.getValue();
+			t.targets.remove(number);
+			if (t.targets.isEmpty()) {
+				// nothing left for it to delete
+				it.remove();
+			} else if (t.location.segment == number) {
+				t.location = copy(DELETE, e.getKey(), t.location);
+			}
+		}
+		// make sure the copies are safe before deleting the originals
+		active.channel.force(false);
+		segments.remove(number);
+		segment.close();
+		if (!segment.file.delete())
+			logger.warning("Could not delete " + segment.file);
+	}
+
+	private Location copy(byte type, int id, Location location)
+			throws IOException {
+		ByteBuffer buff = read(location);
+		byte[] payload = new byte[buff.remaining()];
+		buff.get(payload);
+		return doAppend(type, id, payload);
+	}
+
+	private void addHeader(int id, Header header) {
+		Header previous = headers.put(id, header);
+		if (previous == null && header.contentId > 0) {
+			Integer refs = contentRefs.get(header.contentId);
+			contentRefs.put(header.contentId, refs == null ? 1 : refs
+					.intValue() + 1);
+		}
+	}
+
+	private void removeHeader(int id, Set<Integer> targets) {
+		Header header = headers.remove(id);
+		if (header == null)
+			return;
+		targets.add(header.location.segment);
+		if (header.contentId <= 0)
+			return;
+		Integer refs = contentRefs.get(header.contentId);
+		if (refs == null || refs.intValue() <= 1) {
+			contentRefs.remove(header.contentId);
+			Location content = contents.remove(header.contentId);
+			if (content != null)
+				targets.add(content.segment);
+		} else {
+			contentRefs.put(header.contentId, refs.intValue() - 1);
+		}
+	}
+
+	private void delete(int id, Location location, byte[] payload) {
+		ByteBuffer buff = ByteBuffer.wrap(payload);
+		int requestId = buff.getInt();
+		int responseId = buff.getInt();
+		Set<Integer> targets = new HashSet<Integer>();
+		Record c = conversations.remove(id);
+		if (c != null)
+			targets.add(c.location.segment);
+		removeHeader(requestId, targets);
+		removeHeader(responseId, targets);
+		targets.remove(location.segment);
+		if (!targets.isEmpty())
+			tombstones.put(id, new Tombstone(location, targets));
+	}
+
+	private void recover() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		int[] numbers = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			try {
+				numbers[i] = Integer.parseInt(names[i].substring(0, names[i]
+						.length()
+						- SUFFIX.length()));
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Unexpected segment file " + names[i]);
+			}
+		}
+		Arrays.sort(numbers);
+		for (int i = 0; i < numbers.length; i++) {
+			Segment segment = new Segment(directory, numbers[i]);
+			segments.put(segment.number, segment);
+			scan(segment, i == numbers.length - 1);
+			segment.sealed = i < numbers.length - 1;
+		}
+		if (segments.isEmpty()) {
+			active = new Segment(directory, 1);
+			segments.put(active.number, active);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+		logger.fine("Recovered " + conversations.size() + " conversations from "
+				+ segments.size() + " segments in " + directory);
+	}
+
+	private void scan(Segment segment, boolean tail) throws IOException {
+		long position = 0;
+		long size = segment.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		ByteBuffer trailer = ByteBuffer.allocate(FRAME_TRAILER);
+		while (position + FRAME_HEADER + FRAME_TRAILER <= size) {
+			header.clear();
+			read(segment, position, header);
+			byte type = header.get(0);
+			int id = header.getInt(1);
+			int length = header.getInt(5);
+			if (type < CONTENT || type > DELETE || length < 0
+					|| position + FRAME_HEADER + length + FRAME_TRAILER > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			read(segment, position + FRAME_HEADER, payload);
+			trailer.clear();
+			read(segment, position + FRAME_HEADER + length, trailer);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array());
+			crc.update(header.array());
+			if ((int) crc.getValue() != trailer.getInt(0))
+				break;
+			apply(type, id, new Location(segment.number, position
+					+ FRAME_HEADER, length), payload.array());
+			position += FRAME_HEADER + length + FRAME_TRAILER;
+		}
+		if (position < size) {
+			if (tail) {
+				logger.warning("Truncating incomplete record at " + position
+						+ " in " + segment.file);
+				segment.channel.truncate(position);
+			} else {
+				logger.severe("Ignoring corrupt records after " + position
+						+ " in " + segment.file);
+			}
+		}
+		segment.size = tail ? position : size;
+	}
+
+	private void apply(byte type, int id, Location location, byte[] payload) {
+		ByteBuffer buff = ByteBuffer.wrap(payload);
+		switch (type) {
+		case CONTENT:
+			contents.put(id, location);
+			nextContentId = Math.max(nextContentId, id + 1);
+			break;
+		case REQUEST:
+		case RESPONSE:
+			addHeader(id, new Header(type, location, buff.getInt()));
+			nextHeaderId = Math.max(nextHeaderId, id + 1);
+			break;
+		case CONVERSATION:
+			conversations.put(id, new Record(location, buff.getInt(), buff
+					.getInt()));
+			nextConversationId = Math.max(nextConversationId, id + 1);
+			break;
+		case DELETE:
+			nextConversationId = Math.max(nextConversationId, id + 1);
+			nextHeaderId = Math.max(nextHeaderId, Math.max(buff.getInt(0),
+					buff.getInt(4)) + 1);
+			nextContentId = Math.max(nextContentId, Math.max(buff.getInt(8),
+					buff.getInt(12)) + 1);
+			delete(id, location, payload);
+			break;
+		}
+	}
+
+	private Location append(byte type, int id, byte[] payload)
+			throws DataAccessException {
+		try {
+			return doAppend(type, id, payload);
+		} catch (IOException ioe) {
+			throw failure("Error writing to " + active.file, ioe);
+		}
+	}
+
+	private Location doAppend(byte type, int id, byte[] payload)
+			throws IOException {
+		roll(payload.length);
+		ByteBuffer header = frameHeader(type, id, payload.length);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		crc.update(header.array());
+		long start = active.size;
+		ByteBuffer[] frame = new ByteBuffer[] { header,
+				ByteBuffer.wrap(payload), trailer(crc) };
+		active.channel.position(start);
+		long remaining = FRAME_HEADER + payload.length + FRAME_TRAILER;
+		while (remaining > 0)
+			remaining -= active.channel.write(frame);
+		active.size = start + FRAME_HEADER + payload.length + FRAME_TRAILER;
+		return new Location(active.number, start + FRAME_HEADER,
+				payload.length);
+	}
+
+	/**
+	 * Starts a new segment if the record about to be written would take the
+	 * active segment past the segment size
+	 */
+	private void roll(int length) throws IOException {
+		if (active.size == 0
+				|| active.size + FRAME_HEADER + length + FRAME_TRAILER <= segmentSize)
+			return;
+		active.channel.force(false);
+		active.sealed = true;
+		active = new Segment(directory, active.number + 1);
+		segments.put(active.number, active);
+	}
+
+	private ByteBuffer read(Location location) throws DataAccessException {
+		Segment segment = segments.get(location.segment);
+		try {
+			return segment.slice(location.offset, location.length);
+		} catch (IOException ioe) {
+			throw failure("Error reading " + segment.file, ioe);
+		}
+	}
+
+	private static ByteBuffer frameHeader(byte type, int id, int length) {
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		header.put(type).putInt(id).putInt(length).flip();
+		return header;
+	}
+
+	private static ByteBuffer trailer(CRC32 crc) {
+		ByteBuffer trailer = ByteBuffer.allocate(FRAME_TRAILER);
+		trailer.putInt((int) crc.getValue()).flip();
+		return trailer;
+	}
+
+	private static void write(Segment segment, long position, ByteBuffer buff)
+			throws IOException {
+		while (buff.hasRemaining())
+			position += segment.channel.write(buff, position);
+	}
+
+	private static void read(Segment segment, long position, ByteBuffer buff)
+			throws IOException {
+		while (buff.hasRemaining()) {
+			int got = segment.channel.read(buff, position);
+			if (got < 0)
+				throw new IOException("Unexpected end of " + segment.file);
+			position += got;
+		}
+	}
+
+	private static DataAccessException failure(String message, IOException ioe) {
+		logger.log(Level.WARNING, message, ioe);
+		return new DataAccessResourceFailureException(message, ioe);
+	}
+
+	private static class Segment {
+
+		private int number;
+
+		private File file;
+
+		private RandomAccessFile raf;
+
+		private FileChannel channel;
+
+		private long size;
+
+		/** whether records will still be appended to this segment */
+		private boolean sealed = false;
+
+		private MappedByteBuffer map = null;
+
+		public Segment(File directory, int number) throws IOException {
+			this.number = number;
+			file = new File(directory, String.format("%08d%s", number, SUFFIX));
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			size = channel.size();
+		}
+
+		/**
+		 * Returns a read only view of part of the segment. Sealed segments no
+		 * longer grow, so they are mapped once in their entirety. Records in
+		 * the active segment are read into the heap, rather than remapping the
+		 * segment every time it grows, since mappings are only released when
+		 * they are garbage collected.
+		 */
+		public ByteBuffer slice(long offset, int length) throws IOException {
+			if (!sealed) {
+				ByteBuffer buff = ByteBuffer.allocate(length);
+				read(this, offset, buff);
+				buff.flip();
+				return buff.asReadOnlyBuffer();
+			}
+			if (map == null)
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer buff = map.duplicate();
+			buff.limit((int) offset + length);
+			buff.position((int) offset);
+			return buff.slice();
+		}
+
+		public void close() throws IOException {
+			map = null;
+			raf.close();
+		}
+
+	}
+
+	private static class Location {
+
+		private final int segment;
+
+		private final long offset;
+
+		private final int length;
+
+		public Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	private static class Header {
+
+		private byte type;
+
+		private Location location;
+
+		private int contentId;
+
+		public Header(byte type, Location location, int contentId) {
+			this.type = type;
+			this.location = location;
+			this.contentId = contentId;
+		}
+
+	}
+
+	private static class Record {
+
+		private Location location;
+
+		private int requestId, responseId;
+
+		public Record(Location location, int requestId, int responseId) {
+			this.location = location;
+			this.requestId = requestId;
+			this.responseId = responseId;
+		}
+
+	}
+
+	/**
+	 * A deletion that must be kept while any of the segments containing the
+	 * records it deleted still exist, otherwise they would be resurrected on
+	 * recovery
+	 */
+	private static class Tombstone {
+
+		private Location location;
+
+		private Set<Integer> targets;
+
+		public Tombstone(Location location, Set<Integer> targets) {
+			this.location = location;
+			this.targets = targets;
+		}
+
+	}
+
+	/**
+	 * Reads part of a segment directly from its channel
+	 */
+	private static class SegmentInputStream extends InputStream {
+
+		private Segment segment;
+
+		private long position;
+
+		private int remaining;
+
+		public SegmentInputStream(Segment segment, long position, int length) {
+			this.segment = segment;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining == 0)
+				return -1;
+			int got = segment.channel.read(ByteBuffer.wrap(b, off, Math.min(
+					len, remaining)), position);
+			if (got < 0)
+				throw new IOException("Unexpected end of " + segment.file);
+			position += got;
+			remaining -= got;
+			return got;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return remaining;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int skip = (int) Math.min(Math.max(n, 0), remaining);
+			position += skip;
+			remaining -= skip;
+			return skip;
+		}
+
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private ByteBuffer buff;
+
+		public ByteBufferInputStream(ByteBuffer buff) {
+			this.buff = buff;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buff.hasRemaining() ? buff.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!buff.hasRemaining())
+				return -1;
+			len = Math.min(len, buff.remaining());
+			buff.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buff.remaining();
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int skip = (int) Math.min(Math.max(n, 0), buff.remaining());
+			buff.position(buff.position() + skip);
+			return skip;
+		}
+
+	}
+}
@@ -21,38 +21,77 @@
 
 package org.owasp.proxy.http.dao;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.InetSocketAddress;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 import org.owasp.proxy.http.BufferedRequest;
 import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.MessageHeader;
 import org.owasp.proxy.http.MutableBufferedRequest;
 import org.owasp.proxy.http.MutableBufferedResponse;
 import org.owasp.proxy.http.MutableMessageHeader;
 import org.owasp.proxy.http.MutableRequestHeader;
 import org.owasp.proxy.http.MutableResponseHeader;
 import org.owasp.proxy.http.RequestHeader;
+import org.owasp.proxy.http.ResponseHeader;
 import org.owasp.proxy.io.CountingInputStream;
+import org.owasp.proxy.io.DeflaterInputStream;
+import org.owasp.proxy.util.AsciiString;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcDaoSupport;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 		MessageDAO {
 
+	private static final Logger logger = Logger.getLogger(JdbcMessageDAO.class
+			.getName());
+
 	private static final String SSL = "ssl";
 	private static final String PORT = "port";
 	private static final String HOST = "host";
@@ -61,23 +100,55 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	private static final String SIZE = "size";
 	private static final String CONTENT = "content";
 	private static final String CONTENTID = "contentId";
+	private static final String HASH = "sha256";
+	private static final String CODEC = "codec";
+
+	/** Content is stored exactly as it was received */
+	private static final int CODEC_NONE = 0;
+
+	/** Content is stored compressed using the deflate algorithm */
+	private static final int CODEC_DEFLATE = 1;
+
+	/** Content smaller than this is not worth compressing */
+	private static final int COMPRESSION_THRESHOLD = 256;
 	private static final String REQUESTID = "requestId";
 	private static final String RESPONSEID = "responseId";
 	private static final String REQUEST_SUBMISSION_TIME = "submissionTime";
 	private static final String RESPONSE_HEADER_TIME = "headerTime";
 	private static final String RESPONSE_CONTENT_TIME = "contentTime";
+	private static final String METHOD = "method";
+	private static final String RESOURCE = "resource";
+	private static final String REQUEST_CONTENT_TYPE = "requestContentType";
+	private static final String REQUEST_CONTENT_SIZE = "requestContentSize";
+	private static final String STATUS = "status";
+	private static final String REASON = "reason";
+	private static final String RESPONSE_CONTENT_TYPE = "responseContentType";
+	private static final String RESPONSE_CONTENT_SIZE = "responseContentSize";
 
 	private static final ParameterizedRowMapper<MutableBufferedRequest> REQUEST_MAPPER = new RequestMapper();
 	private static final ParameterizedRowMapper<MutableBufferedResponse> RESPONSE_MAPPER = new ResponseMapper();
 	private static final ParameterizedRowMapper<byte[]> CONTENT_MAPPER = new ContentMapper();
 	private static final ParameterizedRowMapper<Integer> ID_MAPPER = new IdMapper();
 	private static final ParameterizedRowMapper<Conversation> CONVERSATION_MAPPER = new ConversationMapper();
+	private static final ParameterizedRowMapper<ConversationSummary> SUMMARY_MAPPER = new SummaryMapper();
+
+	private final static String INSERT_CONTENT = "INSERT INTO contents (content, size, sha256, codec, refs) VALUES (:content, :size, :sha256, :codec, 1)";
+
+	private final static String UPDATE_CONTENT_SIZE = "UPDATE contents SET size = :size, sha256 = :sha256 WHERE id = :id";
+
+	private final static String SELECT_CONTENT_BY_HASH = "SELECT id FROM contents WHERE sha256 = :sha256 AND size = :size AND id <> :id";
+
+	private final static String ADD_CONTENT_REFERENCE = "UPDATE contents SET refs = refs + 1 WHERE id = :id";
+
+	private final static String RELEASE_CONTENT_REFERENCE = "UPDATE contents SET refs = refs - 1 WHERE id = :id";
+
+	private final static String DELETE_UNREFERENCED_CONTENT = "DELETE FROM contents WHERE id = :id AND refs <= 0";
 
-	private final static String INSERT_CONTENT = "INSERT INTO contents (content, size) VALUES (:content, :size)";
+	private final static String DELETE_CONTENT = "DELETE FROM contents WHERE id = :id";
 
-	private final static String UPDATE_CONTENT_SIZE = "UPDATE contents SET size = :size";
+	private final static String SELECT_CONTENT = "SELECT content, codec, size FROM contents WHERE id = :id";
 
-	private final static String SELECT_CONTENT = "SELECT content FROM contents WHERE id = :id";
+	private final static String SELECT_CONTENT_STREAM = "SELECT content, codec FROM contents WHERE id = ?";
 
 	private final static String SELECT_CONTENT_SIZE = "SELECT size FROM contents WHERE id = :id";
 
@@ -85,6 +156,8 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 
 	private final static String SELECT_CONTENT_ID = "SELECT contentId FROM headers WHERE id = :id";
 
+	private final static String DELETE_HEADER = "DELETE FROM headers WHERE id = :id";
+
 	private final static String INSERT_REQUEST = "INSERT INTO requests (id, host, port, ssl, submissionTime) VALUES (:id, :host, :port, :ssl, :submissionTime)";
 
 	private final static String SELECT_REQUEST = "SELECT requests.id AS id, host, port, ssl, submissionTime, header FROM requests, headers WHERE requests.id = headers.id AND headers.id = :id";
@@ -101,9 +174,77 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 
 	private final static String SELECT_CONVERSATIONS = "SELECT id FROM conversations WHERE id > :id";
 
+	private final static String SELECT_CONVERSATIONS_BY_REQUEST = "SELECT id, requestId, responseId FROM conversations WHERE requestId >= :min AND requestId <= :max";
+
+	private final static String INSERT_SUMMARY = "INSERT INTO summaries (id, requestId, responseId, host, port, ssl, method, resource, requestContentType, requestContentSize, status, reason, responseContentType, responseContentSize, submissionTime, headerTime, contentTime) VALUES (:id, :requestId, :responseId, :host, :port, :ssl, :method, :resource, :requestContentType, :requestContentSize, :status, :reason, :responseContentType, :responseContentSize, :submissionTime, :headerTime, :contentTime)";
+
+	private final static String SELECT_SUMMARY_ROW = "SELECT * FROM summaries WHERE id = :id";
+
+	private final static String SELECT_SUMMARIES = "SELECT * FROM summaries WHERE id > :id ORDER BY id";
+
+	private final static String SELECT_CONVERSATION_COUNT = "SELECT COUNT(*) FROM conversations";
+
+	private final static String SELECT_CONTENT_BYTES = "SELECT SUM(size) FROM contents";
+
+	private final static String SELECT_OLDEST_CONVERSATIONS = "SELECT id FROM conversations ORDER BY id";
+
+	private final static String SELECT_CONVERSATIONS_BEFORE = "SELECT id FROM summaries WHERE submissionTime < :submissionTime ORDER BY id";
+
+	private final static String SELECT_HOST_COUNTS = "SELECT host, COUNT(*) AS conversations FROM summaries GROUP BY host HAVING COUNT(*) > :max";
+
+	private final static String SELECT_OLDEST_HOST_CONVERSATIONS = "SELECT id FROM summaries WHERE host = :host ORDER BY id";
+
+	private final static String SELECT_OLDEST_NULL_HOST_CONVERSATIONS = "SELECT id FROM summaries WHERE host IS NULL ORDER BY id";
+
+	private final static String SELECT_UNSUMMARIZED_CONVERSATIONS = "SELECT id, requestId, responseId FROM conversations c "
+			+ "WHERE NOT EXISTS (SELECT id FROM summaries WHERE id = c.id) ORDER BY id";
+
+	private final static String SELECT_MAX_HEADER_ID = "SELECT MAX(id) FROM headers";
+
+	private final static String SELECT_MAX_CONTENT_ID = "SELECT MAX(id) FROM contents";
+
+	private final static String SELECT_ORPHAN_HEADERS = "SELECT id FROM headers h WHERE id <= :id "
+			+ "AND NOT EXISTS (SELECT id FROM conversations WHERE requestId = h.id) "
+			+ "AND NOT EXISTS (SELECT id FROM conversations WHERE responseId = h.id)";
+
+	private final static String SELECT_ORPHAN_CONTENTS = "SELECT id FROM contents c WHERE id <= :id "
+			+ "AND NOT EXISTS (SELECT id FROM headers WHERE contentId = c.id)";
+
 	private final static String CREATE_CONTENTS_TABLE = "CREATE TABLE contents ("
 			+ "id INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,"
-			+ "content LONGVARBINARY NOT NULL," + "size INTEGER NOT NULL)";
+			+ "content LONGVARBINARY NOT NULL," + "size INTEGER NOT NULL,"
+			+ "sha256 BINARY(32)," + "codec INTEGER NOT NULL,"
+			+ "refs INTEGER NOT NULL)";
+
+	private final static String CREATE_CONTENTS_HASH_INDEX = "CREATE INDEX contents_sha256 ON contents (sha256)";
+
+	/*
+	 * Columns added to the contents table since it was first created, and the
+	 * statements that add them to an existing table. Content saved before
+	 * deduplication was introduced has exactly one reference, and no hash, so
+	 * it is simply never matched. Content saved before compression was
+	 * introduced was stored as is.
+	 */
+	private final static String[][] CONTENTS_UPGRADES = new String[][] {
+			{ "SHA256", "ALTER TABLE contents ADD COLUMN sha256 BINARY(32)" },
+			{ "CODEC",
+					"ALTER TABLE contents ADD COLUMN codec INTEGER DEFAULT 0 NOT NULL" },
+			{ "REFS",
+					"ALTER TABLE contents ADD COLUMN refs INTEGER DEFAULT 1 NOT NULL" } };
+
+	private final static String CREATE_SUMMARIES_HOST_INDEX = "CREATE INDEX summaries_host ON summaries (host)";
+
+	private final static String CREATE_SUMMARIES_HOST_PORT_INDEX = "CREATE INDEX summaries_host_port ON summaries (host, port)";
+
+	private final static String CREATE_SUMMARIES_METHOD_INDEX = "CREATE INDEX summaries_method ON summaries (method)";
+
+	private final static String CREATE_SUMMARIES_STATUS_INDEX = "CREATE INDEX summaries_status ON summaries (status)";
+
+	private final static String CREATE_SUMMARIES_CONTENT_TYPE_INDEX = "CREATE INDEX summaries_content_type ON summaries (responseContentType)";
+
+	private final static String CREATE_SUMMARIES_TIME_INDEX = "CREATE INDEX summaries_time ON summaries (submissionTime)";
+
+	private final static String CREATE_SUMMARIES_RESOURCE_INDEX = "CREATE INDEX summaries_resource ON summaries (resource)";
 
 	private final static String CREATE_HEADERS_TABLE = "CREATE TABLE headers ("
 			+ "id INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,"
@@ -132,18 +273,140 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 			+ "CONSTRAINT request_fk FOREIGN KEY (requestId) REFERENCES requests(id) ON DELETE CASCADE,"
 			+ "CONSTRAINT response_fk FOREIGN KEY (responseId) REFERENCES headers(id) ON DELETE CASCADE)";
 
+	private final static String CREATE_SUMMARIES_TABLE = "CREATE TABLE summaries ("
+			+ "id INTEGER NOT NULL PRIMARY KEY,"
+			+ "requestId INTEGER NOT NULL,"
+			+ "responseId INTEGER NOT NULL,"
+			+ "host VARCHAR(255),"
+			+ "port INTEGER,"
+			+ "ssl BIT,"
+			+ "method VARCHAR(32),"
+			+ "resource VARCHAR(4096),"
+			+ "requestContentType VARCHAR(255),"
+			+ "requestContentSize INTEGER,"
+			+ "status VARCHAR(16),"
+			+ "reason VARCHAR(255),"
+			+ "responseContentType VARCHAR(255),"
+			+ "responseContentSize INTEGER,"
+			+ "submissionTime TIMESTAMP,"
+			+ "headerTime TIMESTAMP,"
+			+ "contentTime TIMESTAMP,"
+			+ "CONSTRAINT summary_fk FOREIGN KEY (id) REFERENCES conversations(id) ON DELETE CASCADE)";
+
+	private TransactionTemplate transactionTemplate = null;
+
+	private boolean compressContent = false;
+
+	private List<ConversationListener> listeners = new CopyOnWriteArrayList<ConversationListener>();
+
+	/**
+	 * Determines whether message content should be compressed before it is
+	 * stored. Content smaller than 256 bytes, content that already has a
+	 * Content-Encoding, or that does not get smaller, is stored as is. Content
+	 * is decompressed transparently when it is loaded, regardless of this
+	 * setting.
+	 * 
+	 * Content saved using {@link #saveMessageContent(InputStream)} has no
+	 * headers, and is written as it is read. Instead of checking the
+	 * Content-Encoding, the start of the content is checked for the signatures
+	 * of common compressed formats. Whether it gets smaller can't be known
+	 * until it has been written, so incompressible content of an unrecognised
+	 * format may be stored deflated, which costs a few bytes per 64kB.
+	 * 
+	 * Compressed content can still be streamed using
+	 * {@link #loadMessageContentStream(int, int, int)}, which decompresses it as
+	 * it is read, but a range starting at an offset requires decompressing
+	 * everything before it.
+	 * 
+	 * @param compressContent
+	 */
+	public void setCompressContent(boolean compressContent) {
+		this.compressContent = compressContent;
+	}
+
+	public boolean isCompressContent() {
+		return compressContent;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.jdbc.core.namedparam.NamedParameterJdbcDaoSupport
+	 * #initTemplateConfig()
+	 */
+	@Override
+	protected void initTemplateConfig() {
+		super.initTemplateConfig();
+		transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(getDataSource()));
+	}
+
 	public void createTables() throws DataAccessException {
 		JdbcTemplate template = getJdbcTemplate();
-		try {
-		template.execute(CREATE_CONTENTS_TABLE);
-		template.execute(CREATE_HEADERS_TABLE);
-		template.execute(CREATE_REQUESTS_TABLE);
-		template.execute(CREATE_RESPONSES_TABLE);
-		template.execute(CREATE_CONVERSATIONS_TABLE);
-		} catch (BadSqlGrammarException e) {
-			e.printStackTrace();
-			// FIXME: get database metadata, and see if the tables already exist
+		// FIXME: get database metadata, and see if the tables already exist
+		String[] statements = new String[] { CREATE_CONTENTS_TABLE,
+				CREATE_CONTENTS_HASH_INDEX, CREATE_HEADERS_TABLE,
+				CREATE_REQUESTS_TABLE, CREATE_RESPONSES_TABLE,
+				CREATE_CONVERSATIONS_TABLE, CREATE_SUMMARIES_TABLE,
+				CREATE_SUMMARIES_HOST_INDEX, CREATE_SUMMARIES_HOST_PORT_INDEX,
+				CREATE_SUMMARIES_METHOD_INDEX, CREATE_SUMMARIES_STATUS_INDEX,
+				CREATE_SUMMARIES_CONTENT_TYPE_INDEX, CREATE_SUMMARIES_TIME_INDEX,
+				CREATE_SUMMARIES_RESOURCE_INDEX };
+		for (int i = 0; i < statements.length; i++) {
+			try {
+				template.execute(statements[i]);
+			} catch (BadSqlGrammarException e) {
+				// assume that it already exists, and try the next one
+			}
+		}
+		upgradeTables();
+	}
+
+	/**
+	 * Adds any columns missing from tables created by an earlier version, and
+	 * summarizes conversations recorded before summaries were kept, since they
+	 * would otherwise not be listed or found. Failures are not ignored, since
+	 * the DAO cannot save anything to a table that lacks them.
+	 */
+	private void upgradeTables() throws DataAccessException {
+		JdbcTemplate template = getJdbcTemplate();
+		Set<String> columns = getColumnNames("contents");
+		boolean upgraded = false;
+		for (int i = 0; i < CONTENTS_UPGRADES.length; i++) {
+			if (!columns.contains(CONTENTS_UPGRADES[i][0])) {
+				logger.info("Upgrading contents table: "
+						+ CONTENTS_UPGRADES[i][1]);
+				template.execute(CONTENTS_UPGRADES[i][1]);
+				upgraded = true;
+			}
 		}
+		if (upgraded)
+			template.execute(CREATE_CONTENTS_HASH_INDEX);
+		int summarized = 0, added;
+		do {
+			added = addMissingSummaries(1000);
+			summarized += added;
+		} while (added > 0);
+		if (summarized > 0)
+			logger.info("Summarized " + summarized
+					+ " existing conversations");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Set<String> getColumnNames(String table) {
+		return (Set<String>) getJdbcTemplate().query(
+				"SELECT * FROM " + table + " WHERE 1 = 0",
+				new ResultSetExtractor() {
+					public Object extractData(ResultSet rs)
+							throws SQLException {
+						ResultSetMetaData rsmd = rs.getMetaData();
+						Set<String> columns = new HashSet<String>();
+						for (int i = 1; i <= rsmd.getColumnCount(); i++)
+							columns.add(rsmd.getColumnName(i).toUpperCase());
+						return columns;
+					}
+				});
 	}
 
 	/*
@@ -160,7 +423,106 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 		KeyHolder key = new GeneratedKeyHolder();
 		getNamedParameterJdbcTemplate()
 				.update(INSERT_CONVERSATION, params, key);
-		return key.getKey().intValue();
+		int id = key.getKey().intValue();
+		getNamedParameterJdbcTemplate().update(INSERT_SUMMARY,
+				getSummaryParameters(summarize(id, requestId, responseId)));
+		return id;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#saveConversations(java.util.List,
+	 * java.util.List)
+	 */
+	public void saveConversations(final List<MutableBufferedRequest> requests,
+			final List<MutableBufferedResponse> responses)
+			throws DataAccessException {
+		if (requests.size() != responses.size())
+			throw new IllegalArgumentException(
+					"Requests and responses must be paired");
+		transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				int count = requests.size();
+				SqlParameterSource[] requestRows = new SqlParameterSource[count];
+				SqlParameterSource[] responseRows = new SqlParameterSource[count];
+				SqlParameterSource[] conversationRows = new SqlParameterSource[count];
+				// the headers and contents need their generated ids, the rest
+				// can be batched
+				for (int i = 0; i < count; i++) {
+					MutableBufferedRequest request = requests.get(i);
+					MutableBufferedResponse response = responses.get(i);
+					int contentId = -1;
+					if (request.getContent() != null)
+						contentId = saveMessageContent(request, request
+								.getContent());
+					saveMessageHeader(request, contentId);
+					requestRows[i] = getRequestParameters(request);
+					contentId = -1;
+					if (response.getContent() != null)
+						contentId = saveMessageContent(response, response
+								.getContent());
+					saveMessageHeader(response, contentId);
+					responseRows[i] = getResponseParameters(response);
+					MapSqlParameterSource params = new MapSqlParameterSource();
+					params.addValue(REQUESTID, request.getId(), Types.INTEGER);
+					params
+							.addValue(RESPONSEID, response.getId(),
+									Types.INTEGER);
+					conversationRows[i] = params;
+				}
+				SimpleJdbcTemplate template = new SimpleJdbcTemplate(
+						getNamedParameterJdbcTemplate());
+				template.batchUpdate(INSERT_REQUEST, requestRows);
+				template.batchUpdate(INSERT_RESPONSE, responseRows);
+				template.batchUpdate(INSERT_CONVERSATION, conversationRows);
+				saveSummaries(requests, responses);
+			}
+		});
+	}
+
+	/*
+	 * The batched conversation inserts don't return the generated keys, so
+	 * look them up with a single query over the range of request ids
+	 */
+	private void saveSummaries(List<MutableBufferedRequest> requests,
+			List<MutableBufferedResponse> responses) {
+		if (requests.isEmpty())
+			return;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (MutableBufferedRequest request : requests) {
+			min = Math.min(min, request.getId());
+			max = Math.max(max, request.getId());
+		}
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue("min", min, Types.INTEGER);
+		params.addValue("max", max, Types.INTEGER);
+		SimpleJdbcTemplate template = new SimpleJdbcTemplate(
+				getNamedParameterJdbcTemplate());
+		Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+		for (Conversation c : template.query(SELECT_CONVERSATIONS_BY_REQUEST,
+				CONVERSATION_MAPPER, params))
+			ids.put(c.getRequestId(), c.getId());
+		SqlParameterSource[] rows = new SqlParameterSource[requests.size()];
+		for (int i = 0; i < rows.length; i++) {
+			MutableBufferedRequest request = requests.get(i);
+			MutableBufferedResponse response = responses.get(i);
+			ConversationSummary cs = new ConversationSummary();
+			cs.setId(ids.get(request.getId()));
+			try {
+				cs.summarizeRequest(request);
+			} catch (MessageFormatException ignored) {
+				cs.setRequestId(request.getId());
+			}
+			try {
+				cs.summarizeResponse(response);
+			} catch (MessageFormatException ignored) {
+				cs.setResponseId(response.getId());
+			}
+			rows[i] = getSummaryParameters(cs);
+		}
+		template.batchUpdate(INSERT_SUMMARY, rows);
 	}
 
 	/*
@@ -168,11 +530,252 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	 * 
 	 * @see org.owasp.httpclient.dao.MessageDAO#deleteConversation(int)
 	 */
-	public boolean deleteConversation(int id) throws DataAccessException {
+	public boolean deleteConversation(final int id) throws DataAccessException {
+		Conversation deleted = (Conversation) transactionTemplate
+				.execute(new TransactionCallback() {
+					public Object doInTransaction(TransactionStatus status) {
+						Conversation c = getConversation(id);
+						if (c == null)
+							return null;
+						MapSqlParameterSource params = new MapSqlParameterSource();
+						params.addValue(ID, id, Types.INTEGER);
+						getNamedParameterJdbcTemplate().update(
+								DELETE_CONVERSATION, params);
+						deleteMessage(c.getRequestId());
+						deleteMessage(c.getResponseId());
+						return c;
+					}
+				});
+		if (deleted == null)
+			return false;
+		for (ConversationListener listener : listeners)
+			listener.conversationDeleted(deleted);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#addConversationListener(org.owasp
+	 * .proxy.http.dao.ConversationListener)
+	 */
+	public void addConversationListener(ConversationListener listener) {
+		listeners.add(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#removeConversationListener(org.owasp
+	 * .proxy.http.dao.ConversationListener)
+	 */
+	public void removeConversationListener(ConversationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Deletes a message header, and releases its reference to its content.
+	 * Deleting the header also deletes the corresponding request or response
+	 * row.
+	 * 
+	 * @param headerId
+	 */
+	private void deleteMessage(int headerId) {
+		int contentId = getMessageContentId(headerId);
 		MapSqlParameterSource params = new MapSqlParameterSource();
-		params.addValue(ID, id, Types.INTEGER);
-		return getNamedParameterJdbcTemplate().update(DELETE_CONVERSATION,
-				params) > 0;
+		params.addValue(ID, headerId, Types.INTEGER);
+		getNamedParameterJdbcTemplate().update(DELETE_HEADER, params);
+		if (contentId > 0)
+			releaseMessageContent(contentId);
+	}
+
+	/**
+	 * @return the number of recorded conversations
+	 */
+	public int getConversationCount() throws DataAccessException {
+		return getJdbcTemplate().queryForInt(SELECT_CONVERSATION_COUNT);
+	}
+
+	/**
+	 * @return the total size of the stored message contents, before
+	 *         compression
+	 */
+	public long getContentBytes() throws DataAccessException {
+		return getJdbcTemplate().queryForLong(SELECT_CONTENT_BYTES);
+	}
+
+	/**
+	 * Lists the oldest conversations
+	 * 
+	 * @param limit
+	 *            the maximum number of ids to return
+	 * @return the conversation ids, oldest first
+	 */
+	public List<Integer> listOldestConversations(int limit)
+			throws DataAccessException {
+		return queryIds(SELECT_OLDEST_CONVERSATIONS,
+				new MapSqlParameterSource(), limit);
+	}
+
+	/**
+	 * Lists the oldest conversations with the specified host
+	 * 
+	 * @param host
+	 * @param limit
+	 *            the maximum number of ids to return
+	 * @return the conversation ids, oldest first
+	 */
+	public List<Integer> listOldestConversations(String host, int limit)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		if (host == null)
+			return queryIds(SELECT_OLDEST_NULL_HOST_CONVERSATIONS, params,
+					limit);
+		params.addValue(HOST, host, Types.VARCHAR);
+		return queryIds(SELECT_OLDEST_HOST_CONVERSATIONS, params, limit);
+	}
+
+	/**
+	 * Adds summaries for conversations that do not have one, e.g. because
+	 * they were recorded before summaries were kept
+	 * 
+	 * @param limit
+	 *            the maximum number of conversations to summarize
+	 * @return the number of summaries added
+	 */
+	public int addMissingSummaries(int limit) throws DataAccessException {
+		List<Conversation> missing = new SimpleJdbcTemplate(
+				getLimitedTemplate(limit)).query(
+				SELECT_UNSUMMARIZED_CONVERSATIONS, CONVERSATION_MAPPER,
+				new MapSqlParameterSource());
+		int added = 0;
+		for (Conversation c : missing) {
+			try {
+				getNamedParameterJdbcTemplate().update(
+						INSERT_SUMMARY,
+						getSummaryParameters(summarize(c.getId(), c
+								.getRequestId(), c.getResponseId())));
+				added++;
+			} catch (DataIntegrityViolationException dive) {
+				// summarized or deleted concurrently
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Lists conversations whose requests were submitted before the specified
+	 * time
+	 * 
+	 * @param time
+	 * @param limit
+	 *            the maximum number of ids to return
+	 * @return the conversation ids, oldest first
+	 */
+	public List<Integer> listConversationsBefore(long time, int limit)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(REQUEST_SUBMISSION_TIME, new Timestamp(time),
+				Types.TIMESTAMP);
+		return queryIds(SELECT_CONVERSATIONS_BEFORE, params, limit);
+	}
+
+	/**
+	 * Counts the conversations per host, for hosts that have more than the
+	 * specified number
+	 * 
+	 * @param max
+	 * @return the number of conversations, keyed by host
+	 */
+	public Map<String, Integer> getHostsOver(int max)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue("max", max, Types.INTEGER);
+		final Map<String, Integer> hosts = new HashMap<String, Integer>();
+		new SimpleJdbcTemplate(getNamedParameterJdbcTemplate()).query(
+				SELECT_HOST_COUNTS, new ParameterizedRowMapper<Object>() {
+					public Object mapRow(ResultSet rs, int rowNum)
+							throws SQLException {
+						hosts.put(rs.getString(HOST), rs.getInt("conversations"));
+						return null;
+					}
+				}, params);
+		return hosts;
+	}
+
+	/**
+	 * @return the largest header id allocated so far
+	 */
+	public int getMaxHeaderId() throws DataAccessException {
+		return getJdbcTemplate().queryForInt(SELECT_MAX_HEADER_ID);
+	}
+
+	/**
+	 * @return the largest content id allocated so far
+	 */
+	public int getMaxContentId() throws DataAccessException {
+		return getJdbcTemplate().queryForInt(SELECT_MAX_CONTENT_ID);
+	}
+
+	/**
+	 * Deletes headers that do not belong to any conversation, and contents
+	 * that do not belong to any header. Since messages are saved before the
+	 * conversation that links them, only rows up to the specified ids are
+	 * considered, which should have been recorded long enough ago that they
+	 * are not still in flight.
+	 * 
+	 * @param maxHeaderId
+	 *            the largest header id to consider
+	 * @param maxContentId
+	 *            the largest content id to consider
+	 * @param limit
+	 *            the maximum number of rows of each type to delete
+	 * @return the number of rows deleted
+	 */
+	public int deleteOrphans(int maxHeaderId, int maxContentId, int limit)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(ID, maxHeaderId, Types.INTEGER);
+		int deleted = 0;
+		for (Integer id : queryIds(SELECT_ORPHAN_HEADERS, params, limit)) {
+			deleteMessage(id);
+			deleted++;
+		}
+		params = new MapSqlParameterSource();
+		params.addValue(ID, maxContentId, Types.INTEGER);
+		for (Integer id : queryIds(SELECT_ORPHAN_CONTENTS, params, limit)) {
+			MapSqlParameterSource content = new MapSqlParameterSource();
+			content.addValue(ID, id, Types.INTEGER);
+			deleted += getNamedParameterJdbcTemplate().update(DELETE_CONTENT,
+					content);
+		}
+		return deleted;
+	}
+
+	private List<Integer> queryIds(String sql, MapSqlParameterSource params,
+			int limit) {
+		return new SimpleJdbcTemplate(getLimitedTemplate(limit)).query(sql,
+				ID_MAPPER, params);
+	}
+
+	private NamedParameterJdbcTemplate getLimitedTemplate(int limit) {
+		if (limit <= 0)
+			return getNamedParameterJdbcTemplate();
+		JdbcTemplate limited = new JdbcTemplate(getDataSource());
+		limited.setExceptionTranslator(getExceptionTranslator());
+		limited.setMaxRows(limit);
+		return new NamedParameterJdbcTemplate(limited);
+	}
+
+	private void releaseMessageContent(int contentId) {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(ID, contentId, Types.INTEGER);
+		getNamedParameterJdbcTemplate().update(RELEASE_CONTENT_REFERENCE,
+				params);
+		getNamedParameterJdbcTemplate().update(DELETE_UNREFERENCED_CONTENT,
+				params);
 	}
 
 	/*
@@ -261,21 +864,144 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	 */
 	public ConversationSummary getConversationSummary(int id)
 			throws DataAccessException {
-		Conversation c = getConversation(id);
-		if (c == null)
-			return null;
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(ID, id, Types.INTEGER);
+		SimpleJdbcTemplate template = new SimpleJdbcTemplate(
+				getNamedParameterJdbcTemplate());
+		try {
+			return template.queryForObject(SELECT_SUMMARY_ROW, SUMMARY_MAPPER,
+					params);
+		} catch (EmptyResultDataAccessException erdae) {
+			// recorded before summaries were kept
+			Conversation c = getConversation(id);
+			if (c == null)
+				return null;
+			return summarize(id, c.getRequestId(), c.getResponseId());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.owasp.proxy.http.dao.MessageDAO#listSummaries(int, int)
+	 */
+	public List<ConversationSummary> listSummaries(int since, int limit)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(ID, since, Types.INTEGER);
+		return new SimpleJdbcTemplate(getLimitedTemplate(limit)).query(
+				SELECT_SUMMARIES, SUMMARY_MAPPER, params);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#findSummaries(org.owasp.proxy.http
+	 * .dao.ConversationQuery)
+	 */
+	public List<ConversationSummary> findSummaries(ConversationQuery query)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		String sql = "SELECT * FROM summaries" + where(query, params)
+				+ " ORDER BY id";
+		return new SimpleJdbcTemplate(getLimitedTemplate(query.getLimit()))
+				.query(sql, SUMMARY_MAPPER, params);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#findConversations(org.owasp.proxy
+	 * .http.dao.ConversationQuery)
+	 */
+	public List<Integer> findConversations(ConversationQuery query)
+			throws DataAccessException {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		String sql = "SELECT id FROM summaries" + where(query, params)
+				+ " ORDER BY id";
+		return queryIds(sql, params, query.getLimit());
+	}
+
+	/**
+	 * Builds the WHERE clause for the query, using only the columns that are
+	 * indexed, and adds the corresponding parameters
+	 */
+	private String where(ConversationQuery query, MapSqlParameterSource params) {
+		StringBuilder where = new StringBuilder(" WHERE id > :id");
+		params.addValue(ID, query.getSince(), Types.INTEGER);
+		if (query.getHost() != null) {
+			where.append(" AND host = :host");
+			params.addValue(HOST, query.getHost(), Types.VARCHAR);
+		}
+		if (query.getPort() > 0) {
+			where.append(" AND port = :port");
+			params.addValue(PORT, query.getPort(), Types.INTEGER);
+		}
+		if (query.getMethod() != null) {
+			where.append(" AND method = :method");
+			params.addValue(METHOD, query.getMethod(), Types.VARCHAR);
+		}
+		if (query.getStatus() != null) {
+			where.append(" AND status = :status");
+			params.addValue(STATUS, query.getStatus(), Types.VARCHAR);
+		}
+		if (query.getContentType() != null) {
+			// case-insensitive, as in ConversationQuery.matches()
+			where.append(" AND LOWER(responseContentType) LIKE :"
+					+ RESPONSE_CONTENT_TYPE + " ESCAPE '\\'");
+			params.addValue(RESPONSE_CONTENT_TYPE, escapeLike(query
+					.getContentType().toLowerCase(Locale.ENGLISH))
+					+ "%", Types.VARCHAR);
+		}
+		if (query.getPathPrefix() != null) {
+			where.append(" AND resource LIKE :resource ESCAPE '\\'");
+			params.addValue(RESOURCE, escapeLike(query.getPathPrefix()) + "%",
+					Types.VARCHAR);
+		}
+		if (query.getFrom() > 0) {
+			where.append(" AND submissionTime >= :from");
+			params.addValue("from", new Timestamp(query.getFrom()),
+					Types.TIMESTAMP);
+		}
+		if (query.getTo() > 0) {
+			where.append(" AND submissionTime < :to");
+			params.addValue("to", new Timestamp(query.getTo()),
+					Types.TIMESTAMP);
+		}
+		return where.toString();
+	}
+
+	private static String escapeLike(String s) {
+		StringBuilder escaped = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' || c == '%' || c == '_')
+				escaped.append('\\');
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	private ConversationSummary summarize(int id, int requestId,
+			int responseId) {
 		ConversationSummary cs = new ConversationSummary();
 		cs.setId(id);
-		RequestHeader rqh = loadRequestHeader(c.getRequestId());
+		cs.setRequestId(requestId);
+		cs.setResponseId(responseId);
+		RequestHeader rqh = loadRequestHeader(requestId);
 		try {
-			cs.summarizeRequest(rqh, getMessageContentSize(c.getRequestId()));
+			if (rqh != null)
+				cs.summarizeRequest(rqh, getContentSize(requestId));
 		} catch (MessageFormatException ignored) {
 			// Return an empty request summary if it cannot be parsed
 			// The detailed request is still available
 		}
-		MutableResponseHeader rph = loadResponseHeader(c.getResponseId());
+		ResponseHeader rph = loadResponseHeader(responseId);
 		try {
-			cs.summarizeResponse(rph, getMessageContentSize(c.getResponseId()));
+			if (rph != null)
+				cs.summarizeResponse(rph, getContentSize(responseId));
 		} catch (MessageFormatException ignored) {
 			// Return an empty response summary if it cannot be parsed
 			// The detailed response is still available
@@ -283,6 +1009,50 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 		return cs;
 	}
 
+	private int getContentSize(int headerId) {
+		int contentId = getMessageContentId(headerId);
+		return contentId > 0 ? getMessageContentSize(contentId) : 0;
+	}
+
+	private MapSqlParameterSource getSummaryParameters(ConversationSummary cs) {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(ID, cs.getId(), Types.INTEGER);
+		params.addValue(REQUESTID, cs.getRequestId(), Types.INTEGER);
+		params.addValue(RESPONSEID, cs.getResponseId(), Types.INTEGER);
+		InetSocketAddress target = cs.getTarget();
+		params.addValue(HOST, target == null ? null : truncate(target
+				.getHostName(), 255), Types.VARCHAR);
+		params.addValue(PORT, target == null ? null : target.getPort(),
+				Types.INTEGER);
+		params.addValue(SSL, cs.isSsl(), Types.BIT);
+		params.addValue(METHOD, truncate(cs.getRequestMethod(), 32),
+				Types.VARCHAR);
+		params.addValue(RESOURCE, truncate(cs.getRequestResource(), 4096),
+				Types.VARCHAR);
+		params.addValue(REQUEST_CONTENT_TYPE, truncate(cs
+				.getRequestContentType(), 255), Types.VARCHAR);
+		params.addValue(REQUEST_CONTENT_SIZE, cs.getRequestContentSize(),
+				Types.INTEGER);
+		params.addValue(STATUS, truncate(cs.getResponseStatus(), 16),
+				Types.VARCHAR);
+		params.addValue(REASON, truncate(cs.getResponseReason(), 255),
+				Types.VARCHAR);
+		params.addValue(RESPONSE_CONTENT_TYPE, truncate(cs
+				.getResponseContentType(), 255), Types.VARCHAR);
+		params.addValue(RESPONSE_CONTENT_SIZE, cs.getResponseContentSize(),
+				Types.INTEGER);
+		addTimestamp(params, REQUEST_SUBMISSION_TIME, cs
+				.getRequestSubmissionTime());
+		addTimestamp(params, RESPONSE_HEADER_TIME, cs.getResponseHeaderTime());
+		addTimestamp(params, RESPONSE_CONTENT_TIME, cs
+				.getResponseContentTime());
+		return params;
+	}
+
+	private static String truncate(String s, int length) {
+		return s == null || s.length() <= length ? s : s.substring(0, length);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -301,6 +1071,54 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.dao.MessageDAO#loadMessageContentStream(int,
+	 * int, int)
+	 */
+	public InputStream loadMessageContentStream(int id, int offset,
+			int length) throws DataAccessException {
+		// the stream outlives this call, so we can't use a JdbcTemplate here
+		Connection con = DataSourceUtils.getConnection(getDataSource());
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			ps = con.prepareStatement(SELECT_CONTENT_STREAM);
+			ps.setInt(1, id);
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				InputStream content = rs.getBinaryStream(1);
+				if (rs.getInt(2) == CODEC_DEFLATE)
+					content = new InflaterInputStream(content);
+				ContentInputStream cis = new ContentInputStream(content, con,
+						ps, rs, offset, length);
+				con = null;
+				return cis;
+			}
+			return null;
+		} catch (SQLException sqle) {
+			throw getExceptionTranslator().translate(
+					"loadMessageContentStream", SELECT_CONTENT_STREAM, sqle);
+		} finally {
+			if (con != null)
+				release(con, ps, rs);
+		}
+	}
+
+	private void release(Connection con, PreparedStatement ps, ResultSet rs) {
+		try {
+			if (rs != null)
+				rs.close();
+			if (ps != null)
+				ps.close();
+		} catch (SQLException ignore) {
+		} finally {
+			DataSourceUtils.releaseConnection(con, getDataSource());
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -376,9 +1194,42 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	 */
 	public int saveMessageContent(byte[] messageContent)
 			throws DataAccessException {
+		return saveMessageContent(messageContent, compressContent);
+	}
+
+	private int saveMessageContent(MessageHeader header, byte[] content) {
+		boolean compress = compressContent;
+		if (compress) {
+			try {
+				String encoding = header.getHeader("Content-Encoding");
+				compress = encoding == null
+						|| encoding.trim().equalsIgnoreCase("identity");
+			} catch (MessageFormatException mfe) {
+				compress = false;
+			}
+		}
+		return saveMessageContent(content, compress);
+	}
+
+	private int saveMessageContent(byte[] messageContent, boolean compress) {
+		byte[] hash = getDigest().digest(messageContent);
+		int id = addContentReference(hash, messageContent.length, -1);
+		if (id > 0)
+			return id;
+		byte[] stored = messageContent;
+		int codec = CODEC_NONE;
+		if (compress && messageContent.length >= COMPRESSION_THRESHOLD) {
+			byte[] deflated = deflate(messageContent);
+			if (deflated.length < messageContent.length) {
+				stored = deflated;
+				codec = CODEC_DEFLATE;
+			}
+		}
 		MapSqlParameterSource params = new MapSqlParameterSource();
-		params.addValue(CONTENT, messageContent, Types.LONGVARBINARY);
+		params.addValue(CONTENT, stored, Types.LONGVARBINARY);
 		params.addValue(SIZE, messageContent.length, Types.INTEGER);
+		params.addValue(HASH, hash, Types.BINARY);
+		params.addValue(CODEC, codec, Types.INTEGER);
 		KeyHolder key = new GeneratedKeyHolder();
 		getNamedParameterJdbcTemplate().update(INSERT_CONTENT, params, key);
 		return key.getKey().intValue();
@@ -393,20 +1244,164 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	 */
 	public int saveMessageContent(InputStream messageContent)
 			throws DataAccessException {
-		CountingInputStream cis = new CountingInputStream(messageContent);
+		boolean compress = compressContent;
+		if (compress) {
+			// look at the start of the content to decide whether it is
+			// worth compressing, then put it back
+			byte[] prefix = new byte[COMPRESSION_THRESHOLD];
+			int read;
+			try {
+				read = readFully(messageContent, prefix);
+			} catch (IOException ioe) {
+				throw new DataRetrievalFailureException(
+						"Error reading content", ioe);
+			}
+			compress = read == prefix.length && !isCompressed(prefix);
+			messageContent = new SequenceInputStream(new ByteArrayInputStream(
+					prefix, 0, read), messageContent);
+		}
+		MessageDigest digest = getDigest();
+		CountingInputStream cis = new CountingInputStream(
+				new DigestInputStream(messageContent, digest));
+		Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED)
+				: null;
 		MapSqlParameterSource params = new MapSqlParameterSource();
-		params.addValue(CONTENT, cis, Types.LONGVARBINARY);
+		params.addValue(CONTENT, deflater == null ? cis
+				: new DeflaterInputStream(cis, deflater), Types.LONGVARBINARY);
 		params.addValue(SIZE, 0, Types.INTEGER);
+		params.addValue(HASH, null, Types.BINARY);
+		params.addValue(CODEC, deflater == null ? CODEC_NONE : CODEC_DEFLATE,
+				Types.INTEGER);
 		KeyHolder key = new GeneratedKeyHolder();
-		getNamedParameterJdbcTemplate().update(INSERT_CONTENT, params, key);
+		try {
+			getNamedParameterJdbcTemplate().update(INSERT_CONTENT, params, key);
+		} finally {
+			if (deflater != null)
+				deflater.end();
+		}
 		int id = key.getKey().intValue();
 
+		// we only know the hash once the content has been written, so
+		// replace the new row with a reference to an existing one if we can
+		byte[] hash = digest.digest();
+		int existing = addContentReference(hash, cis.getCount(), id);
 		params = new MapSqlParameterSource();
+		params.addValue(ID, id, Types.INTEGER);
+		if (existing > 0) {
+			getNamedParameterJdbcTemplate().update(DELETE_CONTENT, params);
+			return existing;
+		}
 		params.addValue(SIZE, cis.getCount(), Types.INTEGER);
+		params.addValue(HASH, hash, Types.BINARY);
 		getNamedParameterJdbcTemplate().update(UPDATE_CONTENT_SIZE, params);
 		return id;
 	}
 
+	/**
+	 * Looks for previously saved content with the same hash and size, and adds
+	 * a reference to it if it is found.
+	 * 
+	 * @param hash
+	 *            the SHA-256 hash of the content
+	 * @param size
+	 *            the size of the content
+	 * @param exclude
+	 *            the id of a row that should not be considered, or -1
+	 * @return the id of the existing content, or -1 if there is none
+	 */
+	private int addContentReference(byte[] hash, int size, int exclude) {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		params.addValue(HASH, hash, Types.BINARY);
+		params.addValue(SIZE, size, Types.INTEGER);
+		params.addValue(ID, exclude, Types.INTEGER);
+		SimpleJdbcTemplate template = new SimpleJdbcTemplate(
+				getNamedParameterJdbcTemplate());
+		List<Integer> ids = template.query(SELECT_CONTENT_BY_HASH, ID_MAPPER,
+				params);
+		for (Integer id : ids) {
+			params = new MapSqlParameterSource();
+			params.addValue(ID, id, Types.INTEGER);
+			// the row may have been deleted since we selected it
+			if (template.update(ADD_CONTENT_REFERENCE, params) > 0)
+				return id.intValue();
+		}
+		return -1;
+	}
+
+	private static byte[] deflate(byte[] content) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(content);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					content.length / 2);
+			byte[] buff = new byte[4096];
+			while (!deflater.finished()) {
+				int got = deflater.deflate(buff);
+				out.write(buff, 0, got);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses content directly into an array of its known original size
+	 */
+	private static byte[] inflate(InputStream content, int size)
+			throws IOException {
+		InflaterInputStream in = new InflaterInputStream(content);
+		try {
+			byte[] inflated = new byte[size];
+			if (readFully(in, inflated) < size || in.read() != -1)
+				throw new IOException("Content is not " + size
+						+ " bytes long");
+			return inflated;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buff)
+			throws IOException {
+		int read = 0, got;
+		while (read < buff.length
+				&& (got = in.read(buff, read, buff.length - read)) > -1)
+			read += got;
+		return read;
+	}
+
+	/**
+	 * Streamed content comes without its headers, so we can't check its
+	 * Content-Encoding. Instead, look for the signatures of common compressed
+	 * formats, which would not get any smaller.
+	 */
+	private static boolean isCompressed(byte[] prefix) {
+		int b0 = prefix[0] & 0xFF, b1 = prefix[1] & 0xFF;
+		if (b0 == 0x1F && b1 == 0x8B) // gzip
+			return true;
+		if ((b0 & 0x0F) == 8 && b0 <= 0x78 && ((b0 << 8) | b1) % 31 == 0) // zlib
+			return true;
+		if (b0 == 0xFF && b1 == 0xD8) // JPEG
+			return true;
+		if (b0 == 0x89 && b1 == 'P' && prefix[2] == 'N' && prefix[3] == 'G')
+			return true;
+		String magic = AsciiString.create(prefix, 0, 12);
+		return magic.startsWith("PK\003\004") || magic.startsWith("GIF8") || magic.startsWith("BZh")
+				|| magic.startsWith("wOF") || magic.startsWith("7z")
+				|| magic.startsWith("RIFF") && magic.endsWith("WEBP")
+				|| magic.startsWith("ftyp", 4);
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("SHA-256 is not available", nsae);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -418,7 +1413,7 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 			throws DataAccessException {
 		int contentId = -1;
 		if (request.getContent() != null)
-			contentId = saveMessageContent(request.getContent());
+			contentId = saveMessageContent(request, request.getContent());
 		saveRequestHeader(request, contentId);
 	}
 
@@ -432,6 +1427,12 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	public void saveRequestHeader(MutableRequestHeader requestHeader,
 			int contentId) throws DataAccessException {
 		saveMessageHeader(requestHeader, contentId);
+		getNamedParameterJdbcTemplate().update(INSERT_REQUEST,
+				getRequestParameters(requestHeader));
+	}
+
+	private MapSqlParameterSource getRequestParameters(
+			MutableRequestHeader requestHeader) {
 		MapSqlParameterSource params = new MapSqlParameterSource();
 		params.addValue(ID, requestHeader.getId(), Types.INTEGER);
 		params.addValue(HOST, requestHeader.getTarget().getHostName(),
@@ -440,7 +1441,7 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 				Types.INTEGER);
 		params.addValue(SSL, requestHeader.isSsl(), Types.BIT);
 		addTimestamp(params, REQUEST_SUBMISSION_TIME, requestHeader.getTime());
-		getNamedParameterJdbcTemplate().update(INSERT_REQUEST, params);
+		return params;
 	}
 
 	/*
@@ -454,7 +1455,7 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 			throws DataAccessException {
 		int contentId = -1;
 		if (response.getContent() != null)
-			contentId = saveMessageContent(response.getContent());
+			contentId = saveMessageContent(response, response.getContent());
 		saveResponseHeader(response, contentId);
 	}
 
@@ -468,13 +1469,19 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 	public void saveResponseHeader(MutableResponseHeader responseHeader,
 			int contentId) throws DataAccessException {
 		saveMessageHeader(responseHeader, contentId);
+		getNamedParameterJdbcTemplate().update(INSERT_RESPONSE,
+				getResponseParameters(responseHeader));
+	}
+
+	private MapSqlParameterSource getResponseParameters(
+			MutableResponseHeader responseHeader) {
 		MapSqlParameterSource params = new MapSqlParameterSource();
 		params.addValue(ID, responseHeader.getId(), Types.INTEGER);
 		addTimestamp(params, RESPONSE_HEADER_TIME, responseHeader
 				.getHeaderTime());
 		addTimestamp(params, RESPONSE_CONTENT_TIME, responseHeader
 				.getContentTime());
-		getNamedParameterJdbcTemplate().update(INSERT_RESPONSE, params);
+		return params;
 	}
 
 	private void addTimestamp(MapSqlParameterSource params, String name,
@@ -544,11 +1551,154 @@ public class JdbcMessageDAO extends NamedParameterJdbcDaoSupport implements
 
 	}
 
+	/**
+	 * Returns a range of content read directly from a result set, and releases
+	 * the underlying database resources once it reaches the end of the range,
+	 * or is closed.
+	 */
+	private class ContentInputStream extends FilterInputStream {
+
+		private Connection con;
+
+		private PreparedStatement ps;
+
+		private ResultSet rs;
+
+		private int skip, remaining;
+
+		public ContentInputStream(InputStream in, Connection con,
+				PreparedStatement ps, ResultSet rs, int offset, int length) {
+			super(in);
+			this.con = con;
+			this.ps = ps;
+			this.rs = rs;
+			this.skip = offset;
+			this.remaining = length;
+		}
+
+		private boolean ready() throws IOException {
+			if (con == null)
+				return false;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						close();
+						return false;
+					}
+					skipped = 1;
+				}
+				skip -= skipped;
+			}
+			if (remaining == 0) {
+				close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!ready())
+				return -1;
+			int b = in.read();
+			if (b == -1) {
+				close();
+			} else if (remaining > 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!ready())
+				return -1;
+			if (remaining > 0 && len > remaining)
+				len = remaining;
+			int got = in.read(b, off, len);
+			if (got == -1) {
+				close();
+			} else if (remaining > 0) {
+				remaining -= got;
+			}
+			return got;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (con == null)
+				return 0;
+			int available = in.available();
+			return remaining > -1 && available > remaining ? remaining
+					: available;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (con == null)
+				return;
+			try {
+				in.close();
+			} finally {
+				release(con, ps, rs);
+				con = null;
+			}
+		}
+	}
+
 	private static class ContentMapper implements
 			ParameterizedRowMapper<byte[]> {
 
 		public byte[] mapRow(ResultSet rs, int rowNum) throws SQLException {
-			return rs.getBytes(CONTENT);
+			if (rs.getInt(CODEC) == CODEC_NONE)
+				return rs.getBytes(CONTENT);
+			try {
+				return inflate(rs.getBinaryStream(CONTENT), rs.getInt(SIZE));
+			} catch (IOException ioe) {
+				SQLException sqle = new SQLException(
+						"Error decompressing content");
+				sqle.initCause(ioe);
+				throw sqle;
+			}
+		}
+	}
+
+	private static class SummaryMapper implements
+			ParameterizedRowMapper<ConversationSummary> {
+
+		public ConversationSummary mapRow(ResultSet rs, int rowNum)
+				throws SQLException {
+			ConversationSummary cs = new ConversationSummary();
+			cs.setId(rs.getInt(ID));
+			cs.setRequestId(rs.getInt(REQUESTID));
+			cs.setResponseId(rs.getInt(RESPONSEID));
+			String host = rs.getString(HOST);
+			if (host != null)
+				cs.setTarget(InetSocketAddress.createUnresolved(host, rs
+						.getInt(PORT)));
+			cs.setSsl(rs.getBoolean(SSL));
+			cs.setRequestMethod(rs.getString(METHOD));
+			cs.setRequestResource(rs.getString(RESOURCE));
+			cs.setRequestContentType(rs.getString(REQUEST_CONTENT_TYPE));
+			cs.setRequestContentSize(rs.getInt(REQUEST_CONTENT_SIZE));
+			cs.setResponseStatus(rs.getString(STATUS));
+			cs.setResponseReason(rs.getString(REASON));
+			cs.setResponseContentType(rs.getString(RESPONSE_CONTENT_TYPE));
+			cs.setResponseContentSize(rs.getInt(RESPONSE_CONTENT_SIZE));
+			Timestamp t;
+			if ((t = rs.getTimestamp(REQUEST_SUBMISSION_TIME)) != null)
+				cs.setRequestSubmissionTime(t.getTime());
+			if ((t = rs.getTimestamp(RESPONSE_HEADER_TIME)) != null)
+				cs.setResponseHeaderTime(t.getTime());
+			if ((t = rs.getTimestamp(RESPONSE_CONTENT_TIME)) != null)
+				cs.setResponseContentTime(t.getTime());
+			return cs;
 		}
 	}
 
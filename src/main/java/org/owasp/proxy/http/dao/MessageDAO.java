@@ -23,6 +23,7 @@ package org.owasp.proxy.http.dao;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 
 import org.owasp.proxy.http.BufferedRequest;
 import org.owasp.proxy.http.BufferedResponse;
@@ -62,6 +63,24 @@ public interface MessageDAO {
 
 	byte[] loadMessageContent(int id) throws DataAccessException;
 
+	/**
+	 * Opens a stream over all or part of a message content, without loading
+	 * it into memory. The stream holds database resources until it has been
+	 * read to the end, or closed.
+	 * 
+	 * @param id
+	 *            the id of the content
+	 * @param offset
+	 *            the number of bytes to skip at the start of the content
+	 * @param length
+	 *            the maximum number of bytes to return, or -1 to read to the
+	 *            end of the content
+	 * @return the content, or null if there is no such content
+	 * @throws DataAccessException
+	 */
+	InputStream loadMessageContentStream(int id, int offset, int length)
+			throws DataAccessException;
+
 	int getMessageContentSize(int id) throws DataAccessException;
 
 	int getMessageContentId(int headerId) throws DataAccessException;
@@ -69,6 +88,20 @@ public interface MessageDAO {
 	int saveConversation(int requestId, int responseId)
 			throws DataAccessException;
 
+	/**
+	 * Saves a number of complete conversations at once, as a single unit of
+	 * work. Either all of the conversations are saved, or none of them are.
+	 * 
+	 * @param requests
+	 *            the requests
+	 * @param responses
+	 *            the responses, in the same order as the requests
+	 * @throws DataAccessException
+	 */
+	void saveConversations(List<MutableBufferedRequest> requests,
+			List<MutableBufferedResponse> responses)
+			throws DataAccessException;
+
 	Conversation getConversation(int id) throws DataAccessException;
 
 	Collection<Integer> listConversations() throws DataAccessException;
@@ -81,4 +114,56 @@ public interface MessageDAO {
 	ConversationSummary getConversationSummary(int id)
 			throws DataAccessException;
 
+	/**
+	 * Lists the summaries of conversations recorded after the specified
+	 * conversation, in order
+	 * 
+	 * @param since
+	 *            the id of the last conversation already seen, or 0
+	 * @param limit
+	 *            the maximum number of summaries to return, or -1 for all of
+	 *            them
+	 * @return the summaries
+	 * @throws DataAccessException
+	 */
+	List<ConversationSummary> listSummaries(int since, int limit)
+			throws DataAccessException;
+
+	/**
+	 * Finds the summaries of the conversations that match the query, in order
+	 * 
+	 * @param query
+	 * @return the matching summaries, up to the query limit
+	 * @throws DataAccessException
+	 */
+	List<ConversationSummary> findSummaries(ConversationQuery query)
+			throws DataAccessException;
+
+	/**
+	 * Finds the ids of the conversations that match the query, in order
+	 * 
+	 * @param query
+	 * @return the matching conversation ids, up to the query limit
+	 * @throws DataAccessException
+	 */
+	List<Integer> findConversations(ConversationQuery query)
+			throws DataAccessException;
+
+	/**
+	 * Registers a listener to be notified when conversations are deleted, so
+	 * that caches and indexes built over the DAO can drop them. Added after
+	 * the rest of this interface, so implementations outside this library
+	 * need to provide it too.
+	 * 
+	 * @param listener
+	 */
+	void addConversationListener(ConversationListener listener);
+
+	/**
+	 * @param listener
+	 *            a listener previously registered with
+	 *            {@link #addConversationListener(ConversationListener)}
+	 */
+	void removeConversationListener(ConversationListener listener);
+
 }
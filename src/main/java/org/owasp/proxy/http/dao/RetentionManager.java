@@ -0,0 +1,339 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.dao.DataAccessException;
+
+/**
+ * Keeps the size of a {@link JdbcMessageDAO} in check by deleting the oldest
+ * conversations once they exceed a maximum age, total content size, number of
+ * conversations, or number of conversations per host. Messages and contents
+ * that do not belong to any conversation are removed too, once they are older
+ * than {@link #setOrphanAge(long)}.
+ * 
+ * The per-host and age policies work from the conversation summaries, so
+ * conversations recorded before summaries were kept are summarized
+ * incrementally as well.
+ * 
+ * Pruning runs on a background thread in batches of at most
+ * {@link #setBatchSize(int)} deletions per policy, so that it never holds up
+ * recording for long. Each conversation is deleted in its own transaction.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class RetentionManager {
+
+	private static final Logger logger = Logger
+			.getLogger(RetentionManager.class.getName());
+
+	/** How long to pause between batches when there is more to delete */
+	private static final long BACKLOG_DELAY = 100;
+
+	private JdbcMessageDAO dao;
+
+	private volatile long maxAge = 0, maxBytes = 0;
+
+	private volatile int maxConversations = 0, maxConversationsPerHost = 0;
+
+	private volatile int batchSize = 100;
+
+	private volatile long interval = 60 * 1000;
+
+	private volatile long orphanAge = 24 * 60 * 60 * 1000;
+
+	/**
+	 * The largest header and content ids, sampled over time: { time,
+	 * headerId, contentId }, oldest first
+	 */
+	private LinkedList<long[]> watermarks = new LinkedList<long[]>();
+
+	private Thread thread = null;
+
+	private boolean running = false;
+
+	private final Lock lock = new ReentrantLock();
+
+	private final Condition stopped = lock.newCondition();
+
+	public RetentionManager(JdbcMessageDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @param maxAge
+	 *            the age in milliseconds after which conversations are
+	 *            deleted, or 0 for no limit
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the total size of stored content above which the oldest
+	 *            conversations are deleted, or 0 for no limit
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxConversations
+	 *            the number of conversations to keep, or 0 for no limit
+	 */
+	public void setMaxConversations(int maxConversations) {
+		this.maxConversations = maxConversations;
+	}
+
+	public int getMaxConversations() {
+		return maxConversations;
+	}
+
+	/**
+	 * @param maxConversationsPerHost
+	 *            the number of conversations to keep for any one host, or 0
+	 *            for no limit
+	 */
+	public void setMaxConversationsPerHost(int maxConversationsPerHost) {
+		this.maxConversationsPerHost = maxConversationsPerHost;
+	}
+
+	public int getMaxConversationsPerHost() {
+		return maxConversationsPerHost;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of deletions per policy in each pass
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param interval
+	 *            the time in milliseconds between passes, when there was
+	 *            nothing to delete
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Messages are saved before the conversation that links them, and a
+	 * response may take a long time to complete (large downloads, long
+	 * polling, event streams). So messages and contents that do not belong to
+	 * a conversation are only deleted once they are at least this old.
+	 * 
+	 * @param orphanAge
+	 *            the time in milliseconds, 24 hours by default
+	 */
+	public void setOrphanAge(long orphanAge) {
+		if (orphanAge < 0)
+			throw new IllegalArgumentException("orphanAge may not be negative");
+		this.orphanAge = orphanAge;
+	}
+
+	public long getOrphanAge() {
+		return orphanAge;
+	}
+
+	public void start() {
+		lock.lock();
+		try {
+			if (thread != null)
+				return;
+			running = true;
+			thread = new Thread(new Runnable() {
+				public void run() {
+					prune();
+				}
+			}, "RetentionManager");
+			thread.setDaemon(true);
+			thread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void stop() throws InterruptedException {
+		Thread t;
+		lock.lock();
+		try {
+			running = false;
+			stopped.signalAll();
+			t = thread;
+			thread = null;
+		} finally {
+			lock.unlock();
+		}
+		if (t != null)
+			t.join();
+	}
+
+	private void prune() {
+		while (true) {
+			long delay = interval;
+			try {
+				if (prune(batchSize) > 0)
+					delay = BACKLOG_DELAY;
+			} catch (DataAccessException dae) {
+				logger.log(Level.WARNING, "Error pruning conversations", dae);
+			}
+			lock.lock();
+			try {
+				if (running)
+					stopped.await(delay, TimeUnit.MILLISECONDS);
+				if (!running)
+					return;
+			} catch (InterruptedException ie) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Makes a single pass over the retention policies, deleting at most
+	 * <code>limit</code> conversations for each one
+	 * 
+	 * @param limit
+	 * @return the number of conversations summarized, and of conversations
+	 *         and orphaned rows deleted
+	 * @throws DataAccessException
+	 */
+	public synchronized int prune(int limit) throws DataAccessException {
+		int deleted = dao.addMissingSummaries(limit);
+		if (maxAge > 0)
+			deleted += delete(dao.listConversationsBefore(System
+					.currentTimeMillis()
+					- maxAge, limit));
+		if (maxConversations > 0) {
+			int excess = dao.getConversationCount() - maxConversations;
+			if (excess > 0)
+				deleted += delete(dao.listOldestConversations(Math.min(excess,
+						limit)));
+		}
+		if (maxConversationsPerHost > 0) {
+			Map<String, Integer> hosts = dao
+					.getHostsOver(maxConversationsPerHost);
+			// the limit applies to the policy, not to each host
+			int remaining = limit;
+			for (Map.Entry<String, Integer> e : hosts.entrySet()) {
+				if (remaining <= 0)
+					break;
+				int excess = e.getValue() - maxConversationsPerHost;
+				int count = delete(dao.listOldestConversations(e.getKey(),
+						Math.min(excess, remaining)));
+				deleted += count;
+				remaining -= count;
+			}
+		}
+		if (maxBytes > 0) {
+			// estimate how many conversations need to go from their summaries,
+			// and check again, since shared content may not have been freed
+			int remaining = limit;
+			long excess;
+			while (remaining > 0
+					&& (excess = dao.getContentBytes() - maxBytes) > 0) {
+				int count = 0;
+				for (Integer id : dao.listOldestConversations(remaining)) {
+					if (excess <= 0)
+						break;
+					ConversationSummary cs = dao.getConversationSummary(id);
+					if (!dao.deleteConversation(id))
+						continue;
+					count++;
+					if (cs != null)
+						excess -= Math.max(cs.getRequestContentSize(), 0)
+								+ Math.max(cs.getResponseContentSize(), 0);
+				}
+				if (count == 0)
+					break;
+				deleted += count;
+				remaining -= count;
+			}
+		}
+		// only consider rows that were saved at least orphanAge ago, in a
+		// previous pass, so that we don't delete messages whose conversation
+		// is still in flight
+		long now = System.currentTimeMillis();
+		long[] watermark = null;
+		while (!watermarks.isEmpty()
+				&& now - watermarks.getFirst()[0] >= orphanAge)
+			watermark = watermarks.removeFirst();
+		if (watermark != null) {
+			deleted += dao.deleteOrphans((int) watermark[1],
+					(int) watermark[2], limit);
+			// it may still be the best one next time
+			watermarks.addFirst(watermark);
+		}
+		// keep at most about 100 samples
+		long spacing = Math.max(interval, orphanAge / 100);
+		if (watermarks.isEmpty()
+				|| now - watermarks.getLast()[0] >= spacing)
+			watermarks.addLast(new long[] { now, dao.getMaxHeaderId(),
+					dao.getMaxContentId() });
+		if (deleted > 0)
+			logger.fine("Pruned " + deleted + " conversations and orphans");
+		return deleted;
+	}
+
+	private int delete(List<Integer> ids) {
+		int deleted = 0;
+		for (Integer id : ids)
+			if (dao.deleteConversation(id))
+				deleted++;
+		return deleted;
+	}
+
+}
@@ -0,0 +1,549 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.owasp.proxy.http.BufferedMessage;
+import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.MessageUtils;
+import org.springframework.dao.DataAccessException;
+
+/**
+ * An in-memory inverted index over the decoded request and response bodies of
+ * the conversations in a {@link MessageDAO}, supporting term and phrase
+ * queries.
+ * 
+ * Conversations are indexed incrementally in the order they were recorded, on
+ * a background thread, so a conversation can be found shortly after it has
+ * been saved, and is dropped from the index when it is deleted from the DAO.
+ * Deleted conversations are excluded from results straight away, and their
+ * postings are removed once they make up a quarter of the indexed
+ * conversations, or when {@link #compact()} is called.
+ * Terms are runs of letters and digits, and are matched without regard to
+ * case. Any other characters separate terms, so searching for
+ * "user@example.com" finds the phrase "user example com".
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class SearchIndex {
+
+	private static final Logger logger = Logger.getLogger(SearchIndex.class
+			.getName());
+
+	/** How long to pause between batches when there is more to index */
+	private static final long BACKLOG_DELAY = 10;
+
+	/** Terms longer than this are truncated */
+	private static final int MAX_TERM_LENGTH = 256;
+
+	/** Keeps phrases from matching across the request and response */
+	private static final int MESSAGE_GAP = 1;
+
+	/** Avoids compacting small indexes after every few deletions */
+	private static final int MIN_COMPACT = 64;
+
+	private MessageDAO dao;
+
+	private volatile int maxContentSize = 1024 * 1024;
+
+	private volatile int batchSize = 100;
+
+	private volatile long interval = 1000;
+
+	private volatile int indexed = 0;
+
+	private int documents = 0;
+
+	private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+
+	private final Set<Integer> deleted = new HashSet<Integer>();
+
+	private Thread thread = null;
+
+	private boolean running = false;
+
+	private final Lock lock = new ReentrantLock();
+
+	private final Condition stopped = lock.newCondition();
+
+	public SearchIndex(MessageDAO dao) {
+		this.dao = dao;
+		dao.addConversationListener(new ConversationListener() {
+			public void conversationDeleted(Conversation conversation) {
+				remove(conversation.getId());
+			}
+		});
+	}
+
+	/**
+	 * @param maxContentSize
+	 *            the size of the largest body that will be indexed
+	 */
+	public void setMaxContentSize(int maxContentSize) {
+		this.maxContentSize = maxContentSize;
+	}
+
+	public int getMaxContentSize() {
+		return maxContentSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of conversations to index in each pass
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param interval
+	 *            the time in milliseconds between passes, when there was
+	 *            nothing new to index
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return the id of the most recent conversation that has been indexed
+	 */
+	public int getIndexedConversation() {
+		return indexed;
+	}
+
+	/**
+	 * @return the number of distinct terms in the index
+	 */
+	public int getTermCount() {
+		indexLock.readLock().lock();
+		try {
+			return terms.size();
+		} finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public void start() {
+		lock.lock();
+		try {
+			if (thread != null)
+				return;
+			running = true;
+			thread = new Thread(new Runnable() {
+				public void run() {
+					update();
+				}
+			}, "SearchIndex");
+			thread.setDaemon(true);
+			thread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void stop() throws InterruptedException {
+		Thread t;
+		lock.lock();
+		try {
+			running = false;
+			stopped.signalAll();
+			t = thread;
+			thread = null;
+		} finally {
+			lock.unlock();
+		}
+		if (t != null)
+			t.join();
+	}
+
+	private void update() {
+		while (true) {
+			long delay = interval;
+			try {
+				if (update(batchSize) > 0)
+					delay = BACKLOG_DELAY;
+			} catch (DataAccessException dae) {
+				logger.log(Level.WARNING, "Error indexing conversations", dae);
+			}
+			lock.lock();
+			try {
+				if (running)
+					stopped.await(delay, TimeUnit.MILLISECONDS);
+				if (!running)
+					return;
+			} catch (InterruptedException ie) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Indexes at most <code>limit</code> of the conversations that have been
+	 * recorded since the last update
+	 * 
+	 * @param limit
+	 * @return the number of conversations that were indexed
+	 * @throws DataAccessException
+	 */
+	public synchronized int update(int limit) throws DataAccessException {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (ConversationSummary cs : dao.listSummaries(indexed, limit))
+			ids.add(Integer.valueOf((int) cs.getId()));
+		for (Integer id : ids) {
+			Conversation c = dao.getConversation(id);
+			if (c != null)
+				index(id, c);
+			indexed = id;
+		}
+		return ids.size();
+	}
+
+	private void index(int id, Conversation c) {
+		Map<String, IntList> positions = new HashMap<String, IntList>();
+		int position = 0;
+		if (isIndexable(c.getRequestId()))
+			position = tokenize(dao.loadRequest(c.getRequestId()), positions,
+					position);
+		if (isIndexable(c.getResponseId()))
+			tokenize(dao.loadResponse(c.getResponseId()), positions, position
+					+ MESSAGE_GAP);
+		indexLock.writeLock().lock();
+		try {
+			for (Map.Entry<String, IntList> e : positions.entrySet()) {
+				Postings postings = terms.get(e.getKey());
+				if (postings == null) {
+					postings = new Postings();
+					terms.put(e.getKey(), postings);
+				}
+				postings.add(id, e.getValue().toArray());
+			}
+			documents++;
+		} finally {
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks the size of the message content before the message is loaded,
+	 * since loading it reads the whole of the content into memory
+	 * 
+	 * @param headerId
+	 * @return true if the message has content no larger than maxContentSize
+	 */
+	private boolean isIndexable(int headerId) {
+		int contentId = dao.getMessageContentId(headerId);
+		if (contentId < 0)
+			return false;
+		int size = dao.getMessageContentSize(contentId);
+		return size > 0 && size <= maxContentSize;
+	}
+
+	private int tokenize(BufferedMessage message,
+			Map<String, IntList> positions, int position) {
+		if (message == null || message.getContent() == null
+				|| message.getContent().length > maxContentSize)
+			return position;
+		byte[] content;
+		try {
+			content = MessageUtils.decode(message);
+		} catch (MessageFormatException mfe) {
+			content = message.getContent();
+		}
+		if (content == null || content.length > maxContentSize)
+			return position;
+		List<String> tokens = tokenize(text(content));
+		for (String token : tokens) {
+			IntList list = positions.get(token);
+			if (list == null) {
+				list = new IntList();
+				positions.put(token, list);
+			}
+			list.add(position++);
+		}
+		return position;
+	}
+
+	private static String text(byte[] content) {
+		try {
+			return new String(content, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			// UTF-8 is always supported
+			throw new RuntimeException(uee);
+		}
+	}
+
+	/**
+	 * Splits the text into lower case terms
+	 * 
+	 * @param text
+	 * @return the terms, in order
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (token.length() < MAX_TERM_LENGTH)
+					token.append(Character.toLowerCase(c));
+			} else if (token.length() > 0) {
+				tokens.add(token.toString());
+				token.setLength(0);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Marks a conversation as deleted, so that it is no longer returned by
+	 * {@link #search(String, int)}, and compacts the index if enough
+	 * conversations have been deleted
+	 * 
+	 * @param id
+	 */
+	public void remove(int id) {
+		indexLock.writeLock().lock();
+		try {
+			deleted.add(Integer.valueOf(id));
+			if (deleted.size() >= MIN_COMPACT
+					&& deleted.size() * 4 >= documents)
+				compact();
+		} finally {
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the postings of deleted conversations from the index, and drops
+	 * terms that no longer occur in any conversation
+	 */
+	public void compact() {
+		indexLock.writeLock().lock();
+		try {
+			Iterator<Postings> it = terms.values().iterator();
+			while (it.hasNext()) {
+				Postings postings = it.next();
+				postings.removeAll(deleted);
+				if (postings.size == 0)
+					it.remove();
+			}
+			// conversations that have not been reached yet may still be
+			// indexed by an update in progress
+			int last = indexed;
+			Iterator<Integer> ids = deleted.iterator();
+			while (ids.hasNext()) {
+				if (ids.next().intValue() <= last) {
+					ids.remove();
+					documents--;
+				}
+			}
+			if (documents < 0)
+				documents = 0;
+		} finally {
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the conversations that contain all of the terms and phrases in the
+	 * query. Phrases are enclosed in double quotes, and a word that contains
+	 * separators is treated as a phrase too.
+	 * 
+	 * @param query
+	 * @param limit
+	 *            the maximum number of conversations to return, or -1 for all
+	 * @return the ids of the matching conversations, in order
+	 */
+	public List<Integer> search(String query, int limit) {
+		List<String[]> phrases = parse(query);
+		List<Integer> results = new ArrayList<Integer>();
+		if (phrases.isEmpty())
+			return results;
+		indexLock.readLock().lock();
+		try {
+			Postings[][] postings = new Postings[phrases.size()][];
+			Postings rarest = null;
+			for (int i = 0; i < postings.length; i++) {
+				String[] phrase = phrases.get(i);
+				postings[i] = new Postings[phrase.length];
+				for (int j = 0; j < phrase.length; j++) {
+					Postings p = terms.get(phrase[j]);
+					if (p == null)
+						return results;
+					if (rarest == null || p.size < rarest.size)
+						rarest = p;
+					postings[i][j] = p;
+				}
+			}
+			for (int d = 0; d < rarest.size; d++) {
+				if (limit > 0 && results.size() >= limit)
+					break;
+				int doc = rarest.docs[d];
+				if (deleted.contains(Integer.valueOf(doc)))
+					continue;
+				boolean match = true;
+				for (int i = 0; match && i < postings.length; i++)
+					match = matches(postings[i], doc);
+				if (match)
+					results.add(Integer.valueOf(doc));
+			}
+		} finally {
+			indexLock.readLock().unlock();
+		}
+		return results;
+	}
+
+	private static List<String[]> parse(String query) {
+		List<String[]> phrases = new ArrayList<String[]>();
+		if (query == null)
+			return phrases;
+		String[] parts = query.split("\"");
+		for (int i = 0; i < parts.length; i++) {
+			if (i % 2 == 1) {
+				// quoted
+				add(phrases, parts[i]);
+			} else {
+				String[] words = parts[i].trim().split("\\s+");
+				for (int j = 0; j < words.length; j++)
+					add(phrases, words[j]);
+			}
+		}
+		return phrases;
+	}
+
+	private static void add(List<String[]> phrases, String text) {
+		List<String> tokens = tokenize(text);
+		if (!tokens.isEmpty())
+			phrases.add(tokens.toArray(new String[tokens.size()]));
+	}
+
+	private static boolean matches(Postings[] phrase, int doc) {
+		int[][] positions = new int[phrase.length][];
+		for (int i = 0; i < phrase.length; i++) {
+			positions[i] = phrase[i].positions(doc);
+			if (positions[i] == null)
+				return false;
+		}
+		for (int p = 0; p < positions[0].length; p++) {
+			int start = positions[0][p];
+			boolean match = true;
+			for (int i = 1; match && i < positions.length; i++)
+				match = Arrays.binarySearch(positions[i], start + i) >= 0;
+			if (match)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The conversations containing a term, in ascending order, and the
+	 * positions of the term in each one
+	 */
+	private static class Postings {
+
+		private int size = 0;
+
+		private int[] docs = new int[2];
+
+		private int[][] positions = new int[2][];
+
+		void add(int doc, int[] docPositions) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			docs[size] = doc;
+			positions[size] = docPositions;
+			size++;
+		}
+
+		void removeAll(Set<Integer> removed) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if (!removed.contains(Integer.valueOf(docs[i]))) {
+					docs[kept] = docs[i];
+					positions[kept] = positions[i];
+					kept++;
+				}
+			}
+			Arrays.fill(positions, kept, size, null);
+			size = kept;
+		}
+
+		int[] positions(int doc) {
+			int i = Arrays.binarySearch(docs, 0, size, doc);
+			return i < 0 ? null : positions[i];
+		}
+
+	}
+
+	private static class IntList {
+
+		private int size = 0;
+
+		private int[] values = new int[4];
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+	}
+
+}
@@ -0,0 +1,314 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.http.dao.MessageDAO;
+
+/**
+ * A {@link RecordingHttpRequestHandler} that takes the database writes off the
+ * proxy worker threads. Completed conversations are placed on a bounded queue,
+ * which is drained by a single writer thread that saves them in batches using
+ * {@link MessageDAO#saveConversations(List, List)}.
+ * 
+ * What happens when the queue is full is controlled by the
+ * {@link OverflowPolicy}.
+ * 
+ * {@link #dispose()} is called by the connection handler as each client
+ * connection closes, so it does not affect the writer. The owner of the handler
+ * should call {@link #close()} once, when the proxy is shut down, to write any
+ * conversations still queued and stop the writer thread.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class AsyncRecordingHttpRequestHandler extends
+		RecordingHttpRequestHandler {
+
+	public enum OverflowPolicy {
+		/** Block the proxy worker thread until there is space in the queue */
+		BLOCK,
+		/** Discard the conversation without recording it */
+		DISCARD,
+		/** Record the conversation synchronously on the proxy worker thread */
+		CALLER_WRITES
+	}
+
+	private static final Logger logger = Logger
+			.getLogger(AsyncRecordingHttpRequestHandler.class.getName());
+
+	private final BlockingQueue<Pending> queue;
+
+	private final Thread writer;
+
+	private volatile boolean running = true;
+
+	private volatile int batchSize = 100;
+
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	private final Lock lock = new ReentrantLock();
+
+	private final Condition written = lock.newCondition();
+
+	private long submitted = 0, completed = 0, discarded = 0;
+
+	public AsyncRecordingHttpRequestHandler(MessageDAO dao,
+			HttpRequestHandler next, int maxContentSize, int queueSize) {
+		super(dao, next, maxContentSize);
+		queue = new ArrayBlockingQueue<Pending>(queueSize);
+		writer = new Thread(new Writer(), "AsyncRecordingHttpRequestHandler");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Sets the largest number of conversations that will be written in a
+	 * single transaction
+	 * 
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null)
+			throw new NullPointerException("overflowPolicy may not be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @return the number of conversations discarded because the queue was full
+	 */
+	public long getDiscarded() {
+		lock.lock();
+		try {
+			return discarded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of conversations waiting to be written
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.owasp.proxy.http.server.RecordingHttpRequestHandler#record(java.net
+	 * .InetAddress, org.owasp.proxy.http.MutableBufferedRequest,
+	 * org.owasp.proxy.http.MutableBufferedResponse)
+	 */
+	@Override
+	protected void record(InetAddress source, MutableBufferedRequest request,
+			MutableBufferedResponse response) {
+		if (!running) {
+			super.record(source, request, response);
+			return;
+		}
+		Pending p = new Pending(source, request, response);
+		boolean queued;
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				queue.put(p);
+				queued = true;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				queued = false;
+			}
+			break;
+		case DISCARD:
+			queued = queue.offer(p);
+			if (!queued) {
+				lock.lock();
+				try {
+					discarded++;
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			break;
+		default:
+			queued = queue.offer(p);
+		}
+		if (!queued) {
+			super.record(source, request, response);
+			return;
+		}
+		lock.lock();
+		try {
+			submitted++;
+		} finally {
+			lock.unlock();
+		}
+		// the writer may have exited between the check above and the put
+		if (!running && queue.remove(p))
+			writeSingly(p);
+	}
+
+	/**
+	 * Waits until all conversations submitted before this call have been
+	 * written
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			long target = submitted;
+			while (completed < target && writer.isAlive())
+				written.await(1, TimeUnit.SECONDS);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the writer thread, after writing any conversations still queued.
+	 * Conversations recorded after this call are written synchronously.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		running = false;
+		writer.join();
+		Pending p;
+		while ((p = queue.poll()) != null)
+			writeSingly(p);
+	}
+
+	private void writeSingly(Pending p) {
+		try {
+			super.record(p.source, p.request, p.response);
+		} catch (RuntimeException re) {
+			logger.log(Level.WARNING, "Error recording conversation", re);
+		} finally {
+			completed(1);
+		}
+	}
+
+	private void completed(int count) {
+		lock.lock();
+		try {
+			completed += count;
+			written.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void write(List<Pending> batch) {
+		List<MutableBufferedRequest> requests = new ArrayList<MutableBufferedRequest>(
+				batch.size());
+		List<MutableBufferedResponse> responses = new ArrayList<MutableBufferedResponse>(
+				batch.size());
+		for (Pending p : batch) {
+			requests.add(p.request);
+			responses.add(p.response);
+		}
+		try {
+			dao.saveConversations(requests, responses);
+		} catch (RuntimeException re) {
+			// the batch was rolled back, so try to save what we can. Every
+			// conversation is still counted, so that flush() can return
+			logger.log(Level.WARNING, "Error saving batch of " + batch.size()
+					+ " conversations, retrying individually", re);
+			for (Pending p : batch)
+				writeSingly(p);
+			return;
+		}
+		completed(batch.size());
+	}
+
+	private class Writer implements Runnable {
+
+		public void run() {
+			List<Pending> batch = new ArrayList<Pending>();
+			while (running || !queue.isEmpty()) {
+				try {
+					Pending p = queue.poll(1, TimeUnit.SECONDS);
+					if (p == null)
+						continue;
+					batch.add(p);
+					queue.drainTo(batch, batchSize - 1);
+					write(batch);
+				} catch (InterruptedException ie) {
+					logger.info("Writer interrupted, exiting");
+					return;
+				} catch (RuntimeException re) {
+					logger.log(Level.SEVERE, "Unexpected exception", re);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+
+	}
+
+	private static class Pending {
+
+		private InetAddress source;
+
+		private MutableBufferedRequest request;
+
+		private MutableBufferedResponse response;
+
+		public Pending(InetAddress source, MutableBufferedRequest request,
+				MutableBufferedResponse response) {
+			this.source = source;
+			this.request = request;
+			this.response = response;
+		}
+
+	}
+}
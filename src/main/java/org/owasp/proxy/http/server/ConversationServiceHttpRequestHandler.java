@@ -24,26 +24,31 @@ package org.owasp.proxy.http.server;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.URLDecoder;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.MessageHeader;
 import org.owasp.proxy.http.MessageUtils;
 import org.owasp.proxy.http.NamedValue;
 import org.owasp.proxy.http.RequestHeader;
 import org.owasp.proxy.http.ResponseHeader;
 import org.owasp.proxy.http.StreamingRequest;
 import org.owasp.proxy.http.StreamingResponse;
+import org.owasp.proxy.http.dao.Conversation;
+import org.owasp.proxy.http.dao.ConversationListener;
+import org.owasp.proxy.http.dao.ConversationQuery;
 import org.owasp.proxy.http.dao.ConversationSummary;
 import org.owasp.proxy.http.dao.MessageDAO;
+import org.owasp.proxy.http.dao.SearchIndex;
 import org.owasp.proxy.util.AsciiString;
+import org.owasp.proxy.util.StripedCache;
 import org.springframework.dao.DataAccessException;
 
-@SuppressWarnings("serial")
 public class ConversationServiceHttpRequestHandler implements
 		HttpRequestHandler {
 
@@ -53,6 +58,7 @@ public class ConversationServiceHttpRequestHandler implements
 			.getBytes("HTTP/1.0 200 Ok\r\nContent-Type: application/octet-stream\r\n\r\n");
 	private static final byte[] SUCCESS_HTML = AsciiString
 			.getBytes("HTTP/1.0 200 Ok\r\nContent-Type: text/html\r\n\r\n");
+	private static final String CONTENT_OCTET = "Content-Type: application/octet-stream\r\n";
 
 	private static final String CONVERSATIONS = "/conversations";
 	private static final String SUMMARIES = "/summaries";
@@ -63,6 +69,13 @@ public class ConversationServiceHttpRequestHandler implements
 	private static final String RESPONSE_HEADER = "/responseHeader";
 	private static final String REQUEST_CONTENT = "/requestContent";
 	private static final String RESPONSE_CONTENT = "/responseContent";
+	private static final String SEARCH = "/search";
+
+	/** The largest encoded body that will be decoded in memory and cached */
+	private static final int MAX_CACHED_CONTENT = 256 * 1024;
+
+	/** The number of rows fetched at a time when exporting */
+	private static final int EXPORT_PAGE_SIZE = 500;
 
 	private static final String INDEX_PAGE = "<html><a href='" + CONVERSATIONS
 			+ "'>Conversations</a><p>" + "<form target='" + CONVERSATIONS
@@ -72,19 +85,102 @@ public class ConversationServiceHttpRequestHandler implements
 	private String hostname;
 	private MessageDAO dao;
 	private HttpRequestHandler next;
+	private SearchIndex searchIndex = null;
+
+	private static final StripedCache.Weigher<MessageHeader> HEADER_WEIGHER = new StripedCache.Weigher<MessageHeader>() {
+		public int weigh(MessageHeader header) {
+			return header.getHeader().length;
+		}
+	};
 
-	private Map<Integer, ConversationSummary> summaryCache = new LinkedHashMap<Integer, ConversationSummary>() {
-		protected boolean removeEldestEntry(
-				Map.Entry<Integer, ConversationSummary> eldest) {
-			return size() > 1000;
+	private static final StripedCache.Weigher<byte[]> CONTENT_WEIGHER = new StripedCache.Weigher<byte[]>() {
+		public int weigh(byte[] content) {
+			return content.length;
 		}
 	};
 
+	private volatile StripedCache<Integer, ConversationSummary> summaryCache = new StripedCache<Integer, ConversationSummary>(
+			1000);
+
+	private volatile StripedCache<Integer, MessageHeader> headerCache = new StripedCache<Integer, MessageHeader>(
+			1000, 4 * 1024 * 1024, HEADER_WEIGHER);
+
+	private volatile StripedCache<Integer, byte[]> contentCache = new StripedCache<Integer, byte[]>(
+			100, 16 * 1024 * 1024, CONTENT_WEIGHER);
+
 	public ConversationServiceHttpRequestHandler(String hostname,
 			MessageDAO dao, HttpRequestHandler next) {
 		this.hostname = hostname;
 		this.dao = dao;
 		this.next = next;
+		dao.addConversationListener(new ConversationListener() {
+			public void conversationDeleted(Conversation conversation) {
+				invalidate(conversation);
+			}
+		});
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the number of conversation summaries to cache
+	 */
+	public void setSummaryCacheSize(int maxEntries) {
+		summaryCache = new StripedCache<Integer, ConversationSummary>(
+				maxEntries);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the number of parsed message headers to cache
+	 * @param maxBytes
+	 *            the total size of the cached headers
+	 */
+	public void setHeaderCacheSize(int maxEntries, long maxBytes) {
+		headerCache = new StripedCache<Integer, MessageHeader>(maxEntries,
+				maxBytes, HEADER_WEIGHER);
+	}
+
+	/**
+	 * Decoded message content is cached for messages that are requested with
+	 * decode=true, as long as the content fits comfortably in the cache.
+	 * 
+	 * @param maxEntries
+	 *            the number of decoded message bodies to cache
+	 * @param maxBytes
+	 *            the total size of the cached bodies
+	 */
+	public void setContentCacheSize(int maxEntries, long maxBytes) {
+		contentCache = new StripedCache<Integer, byte[]>(maxEntries, maxBytes,
+				CONTENT_WEIGHER);
+	}
+
+	public StripedCache<Integer, ConversationSummary> getSummaryCache() {
+		return summaryCache;
+	}
+
+	public StripedCache<Integer, MessageHeader> getHeaderCache() {
+		return headerCache;
+	}
+
+	public StripedCache<Integer, byte[]> getContentCache() {
+		return contentCache;
+	}
+
+	private void invalidate(Conversation conversation) {
+		summaryCache.remove(conversation.getId());
+		headerCache.remove(conversation.getRequestId());
+		headerCache.remove(conversation.getResponseId());
+		contentCache.remove(conversation.getRequestId());
+		contentCache.remove(conversation.getResponseId());
+	}
+
+	/**
+	 * @param searchIndex
+	 *            the index used to answer /search requests, or null if
+	 *            searching is not supported
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
 	}
 
 	/*
@@ -127,16 +223,38 @@ public class ConversationServiceHttpRequestHandler implements
 						"=");
 				resource = resource.substring(0, q);
 			}
-			if (resource.equals(CONVERSATIONS)) {
+			String format = NamedValue.findValue(parameters, "format");
+			if (format != null
+					&& (resource.equals(CONVERSATIONS) || resource
+							.equals(SUMMARIES))) {
+				ConversationQuery query = query(parameters);
+				if (query == null)
+					query = page(parameters);
+				return export(request, format, query, resource
+						.equals(SUMMARIES));
+			} else if (resource.equals(CONVERSATIONS)) {
+				ConversationQuery query = query(parameters);
+				if (query != null)
+					return findConversations(query);
 				String since = NamedValue.findValue(parameters, "since");
 				if (since != null)
 					return listConversations(Integer.parseInt(since));
 				return listConversations(0);
 			} else if (resource.equals(SUMMARIES)) {
+				ConversationQuery query = query(parameters);
+				if (query != null)
+					return findSummaries(query);
 				String since = NamedValue.findValue(parameters, "since");
-				if (since != null)
-					return getSummaries(Integer.parseInt(since));
-				return getSummaries(0);
+				String limit = NamedValue.findValue(parameters, "limit");
+				return getSummaries(since == null ? 0 : Integer
+						.parseInt(since), limit == null ? -1 : Integer
+						.parseInt(limit));
+			} else if (resource.equals(SEARCH)) {
+				String terms = decode(NamedValue.findValue(parameters, "q"));
+				String limit = NamedValue.findValue(parameters, "limit");
+				if (terms != null && searchIndex != null)
+					return search(terms, limit == null ? -1 : Integer
+							.parseInt(limit));
 			} else if (resource.equals(SUMMARY)) {
 				String id = NamedValue.findValue(parameters, "id");
 				if (id != null)
@@ -162,13 +280,13 @@ public class ConversationServiceHttpRequestHandler implements
 				String decode = NamedValue.findValue(parameters, "decode");
 				if (id != null)
 					return getRequestContent(Integer.parseInt(id),
-							"true".equals(decode));
+							"true".equals(decode), request.getHeader("Range"));
 			} else if (resource.equals(RESPONSE_CONTENT)) {
 				String id = NamedValue.findValue(parameters, "id");
 				String decode = NamedValue.findValue(parameters, "decode");
 				if (id != null)
 					return getResponseContent(Integer.parseInt(id),
-							"true".equals(decode));
+							"true".equals(decode), request.getHeader("Range"));
 			}
 		} catch (MessageFormatException mfe) {
 			mfe.printStackTrace();
@@ -176,8 +294,8 @@ public class ConversationServiceHttpRequestHandler implements
 		} catch (DataAccessException dae) {
 			dae.printStackTrace();
 			return err_500();
-		} catch (NumberFormatException nfe) {
-			nfe.printStackTrace();
+		} catch (IllegalArgumentException iae) {
+			iae.printStackTrace();
 			return err_400();
 		}
 		return err_404();
@@ -193,21 +311,237 @@ public class ConversationServiceHttpRequestHandler implements
 			return cs;
 
 		cs = dao.getConversationSummary(id);
-		summaryCache.put(id, cs);
+		if (cs != null)
+			summaryCache.put(id, cs);
 		return cs;
 	}
 
-	private Iterator<ConversationSummary> getConversationSummaries(
-			Iterator<Integer> ids) {
-		List<ConversationSummary> conversations = new LinkedList<ConversationSummary>();
-		while (ids.hasNext()) {
-			conversations.add(loadConversationSummary(ids.next()));
+	private StreamingResponse listConversations(int since) {
+		Iterator<Integer> it = dao.listConversationsSince(since).iterator();
+		StringBuilder buff = new StringBuilder();
+		buff.append("<conversations>");
+		while (it.hasNext()) {
+			buff.append("<conversation>").append(it.next())
+					.append("</conversation>");
 		}
-		return conversations.iterator();
+		buff.append("</conversations>");
+		return conversation(SUCCESS_XML, buff.toString());
 	}
 
-	private StreamingResponse listConversations(int since) {
-		Iterator<Integer> it = dao.listConversationsSince(since).iterator();
+	/**
+	 * Builds a query from the request parameters
+	 * 
+	 * @param parameters
+	 * @return the query, or null if no criteria other than since and limit
+	 *         were specified
+	 */
+	private static ConversationQuery query(NamedValue[] parameters) {
+		String host = decode(NamedValue.findValue(parameters, "host"));
+		String port = NamedValue.findValue(parameters, "port");
+		String method = decode(NamedValue.findValue(parameters, "method"));
+		String status = decode(NamedValue.findValue(parameters, "status"));
+		String contentType = decode(NamedValue.findValue(parameters,
+				"contentType"));
+		String path = decode(NamedValue.findValue(parameters, "path"));
+		String from = NamedValue.findValue(parameters, "from");
+		String to = NamedValue.findValue(parameters, "to");
+		if (host == null && port == null && method == null && status == null
+				&& contentType == null && path == null && from == null
+				&& to == null)
+			return null;
+		ConversationQuery query = new ConversationQuery();
+		query.setHost(host);
+		if (port != null)
+			query.setPort(Integer.parseInt(port));
+		query.setMethod(method);
+		query.setStatus(status);
+		query.setContentType(contentType);
+		query.setPathPrefix(path);
+		if (from != null)
+			query.setFrom(Long.parseLong(from));
+		if (to != null)
+			query.setTo(Long.parseLong(to));
+		return page(query, parameters);
+	}
+
+	private static ConversationQuery page(NamedValue[] parameters) {
+		return page(new ConversationQuery(), parameters);
+	}
+
+	private static ConversationQuery page(ConversationQuery query,
+			NamedValue[] parameters) {
+		String since = NamedValue.findValue(parameters, "since");
+		if (since != null)
+			query.setSince(Integer.parseInt(since));
+		String limit = NamedValue.findValue(parameters, "limit");
+		if (limit != null)
+			query.setLimit(Integer.parseInt(limit));
+		return query;
+	}
+
+	/*
+	 * Streams the matching conversations or summaries as JSON or NDJSON,
+	 * fetching them from the DAO a page at a time so that arbitrarily large
+	 * exports run in constant memory. The JSON object ends with a "next"
+	 * cursor, which can be passed as "since" to fetch the following page when
+	 * a limit was given. Each NDJSON line has an id that can be used in the
+	 * same way.
+	 */
+	private StreamingResponse export(StreamingRequest request, String format,
+			final ConversationQuery query, final boolean summaries)
+			throws MessageFormatException {
+		final boolean ndjson;
+		if ("ndjson".equals(format)) {
+			ndjson = true;
+		} else if ("json".equals(format)) {
+			ndjson = false;
+		} else {
+			return err_400();
+		}
+		final int limit = query.getLimit();
+		InputStream json = new PagedInputStream() {
+
+			private int exported = 0;
+
+			private boolean done = false;
+
+			protected boolean nextPage(StringBuilder buff) {
+				if (done)
+					return false;
+				if (exported == 0 && !ndjson)
+					buff.append(summaries ? "{\"summaries\":[" : "{\"conversations\":[");
+				int page = EXPORT_PAGE_SIZE;
+				if (limit > 0)
+					page = Math.min(page, limit - exported);
+				query.setLimit(page);
+				int count = 0;
+				if (summaries) {
+					for (ConversationSummary summary : dao.findSummaries(query)) {
+						separate(buff, ndjson, exported + count++);
+						json(buff, summary);
+						query.setSince((int) summary.getId());
+					}
+				} else {
+					for (Integer id : dao.findConversations(query)) {
+						separate(buff, ndjson, exported + count++);
+						if (ndjson) {
+							buff.append("{\"id\":").append(id).append("}");
+						} else {
+							buff.append(id);
+						}
+						query.setSince(id);
+					}
+				}
+				exported += count;
+				if (count < page || (limit > 0 && exported >= limit)) {
+					done = true;
+					if (ndjson) {
+						if (exported > 0)
+							buff.append("\n");
+					} else {
+						buff.append("],\"next\":");
+						if (count < page)
+							buff.append("null}");
+						else
+							buff.append(query.getSince()).append("}");
+					}
+				}
+				return true;
+			}
+
+		};
+		boolean chunked = !"HTTP/1.0".equals(request.getVersion());
+		String encoding = request.getHeader("Accept-Encoding");
+		boolean gzip = encoding != null
+				&& encoding.toLowerCase().indexOf("gzip") > -1;
+		StreamingResponse response = conversation((chunked ? "HTTP/1.1"
+				: "HTTP/1.0")
+				+ " 200 Ok\r\nContent-Type: "
+				+ (ndjson ? "application/x-ndjson" : "application/json")
+				+ "\r\n"
+				+ (gzip ? "Content-Encoding: gzip\r\n" : "")
+				+ (chunked ? "Transfer-Encoding: chunked\r\n"
+						: "Connection: close\r\n") + "\r\n", (InputStream) null);
+		response.setContent(MessageUtils.encode(response, json));
+		return response;
+	}
+
+	private static void separate(StringBuilder buff, boolean ndjson, int index) {
+		if (index == 0)
+			return;
+		buff.append(ndjson ? "\n" : ",");
+	}
+
+	private void json(StringBuilder buff, ConversationSummary summary) {
+		buff.append("{\"id\":").append(summary.getId());
+		buff.append(",\"requestId\":").append(summary.getRequestId());
+		buff.append(",\"responseId\":").append(summary.getResponseId());
+		if (summary.getTarget() != null) {
+			json(buff, "host", summary.getTarget().getHostName());
+			buff.append(",\"port\":").append(summary.getTarget().getPort());
+		}
+		buff.append(",\"ssl\":").append(summary.isSsl());
+		json(buff, "method", summary.getRequestMethod());
+		json(buff, "resource", summary.getRequestResource());
+		json(buff, "requestContentType", summary.getRequestContentType());
+		buff.append(",\"requestContentSize\":").append(
+				summary.getRequestContentSize());
+		json(buff, "status", summary.getResponseStatus());
+		json(buff, "reason", summary.getResponseReason());
+		json(buff, "responseContentType", summary.getResponseContentType());
+		buff.append(",\"responseContentSize\":").append(
+				summary.getResponseContentSize());
+		buff.append(",\"requestTime\":").append(
+				summary.getRequestSubmissionTime());
+		buff.append(",\"responseHeaderTime\":").append(
+				summary.getResponseHeaderTime());
+		buff.append(",\"responseContentTime\":").append(
+				summary.getResponseContentTime());
+		buff.append("}");
+	}
+
+	private static void json(StringBuilder buff, String name, String value) {
+		if (value == null)
+			return;
+		buff.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				buff.append('\\').append(c);
+			} else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				buff.append("\\u");
+				for (int j = hex.length(); j < 4; j++)
+					buff.append('0');
+				buff.append(hex);
+			} else {
+				buff.append(c);
+			}
+		}
+		buff.append("\"");
+	}
+
+	private static String decode(String value) {
+		if (value == null)
+			return null;
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			// UTF-8 is always supported
+			return value;
+		}
+	}
+
+	private StreamingResponse search(String q, int limit) {
+		return conversations(searchIndex.search(q, limit));
+	}
+
+	private StreamingResponse findConversations(ConversationQuery query) {
+		return conversations(dao.findConversations(query));
+	}
+
+	private StreamingResponse conversations(List<Integer> ids) {
+		Iterator<Integer> it = ids.iterator();
 		StringBuilder buff = new StringBuilder();
 		buff.append("<conversations>");
 		while (it.hasNext()) {
@@ -218,8 +552,14 @@ public class ConversationServiceHttpRequestHandler implements
 		return conversation(SUCCESS_XML, buff.toString());
 	}
 
+	private StreamingResponse findSummaries(ConversationQuery query) {
+		return summaries(dao.findSummaries(query));
+	}
+
 	private StreamingResponse getSummary(int id) {
 		ConversationSummary summary = loadConversationSummary(id);
+		if (summary == null)
+			return err_404();
 		StringBuilder buff = new StringBuilder();
 		buff.append("<summaries>");
 		xml(buff, summary);
@@ -227,9 +567,14 @@ public class ConversationServiceHttpRequestHandler implements
 		return conversation(SUCCESS_XML, buff.toString());
 	}
 
-	private StreamingResponse getSummaries(int since) {
-		Iterator<Integer> ids = dao.listConversationsSince(since).iterator();
-		Iterator<ConversationSummary> it = getConversationSummaries(ids);
+	private StreamingResponse getSummaries(int since, int limit) {
+		return summaries(dao.listSummaries(since, limit));
+	}
+
+	private StreamingResponse summaries(List<ConversationSummary> summaries) {
+		for (ConversationSummary summary : summaries)
+			summaryCache.put((int) summary.getId(), summary);
+		Iterator<ConversationSummary> it = summaries.iterator();
 		StringBuilder buff = new StringBuilder();
 		buff.append("<summaries>");
 		while (it.hasNext()) {
@@ -251,8 +596,10 @@ public class ConversationServiceHttpRequestHandler implements
 		buff.append("\" responseContentTime=\"").append(
 				summary.getResponseContentTime());
 		buff.append("\">");
-		tag(buff, "host", summary.getTarget().getHostName());
-		tag(buff, "port", summary.getTarget().getPort());
+		if (summary.getTarget() != null) {
+			tag(buff, "host", summary.getTarget().getHostName());
+			tag(buff, "port", summary.getTarget().getPort());
+		}
 		tag(buff, "ssl", summary.isSsl());
 		tag(buff, "resource", summary.getRequestResource());
 		tag(buff, "RequestContentType", summary.getRequestContentType());
@@ -260,7 +607,7 @@ public class ConversationServiceHttpRequestHandler implements
 		tag(buff, "status", summary.getResponseStatus());
 		tag(buff, "reason", summary.getResponseReason());
 		tag(buff, "ResponseContentType", summary.getResponseContentType());
-		tag(buff, "RequestContentSize", summary.getRequestContentSize());
+		tag(buff, "ResponseContentSize", summary.getResponseContentSize());
 		buff.append("</summary>");
 	}
 
@@ -312,23 +659,27 @@ public class ConversationServiceHttpRequestHandler implements
 	}
 
 	private StreamingResponse getRequest(int id) throws MessageFormatException {
-		RequestHeader r = dao.loadRequestHeader(id);
+		RequestHeader r = loadRequestHeader(id);
 		if (r == null)
 			return err_404();
-		
-		byte[] content = dao.loadMessageContent(id);
 
+		return message(id, r.getHeader());
+	}
+
+	private StreamingResponse message(int id, byte[] header) {
+		int contentId = dao.getMessageContentId(id);
+		InputStream content = null;
+		if (contentId > 0)
+			content = dao.loadMessageContentStream(contentId, 0, -1);
 		if (content == null)
-			return conversation(SUCCESS_OCTET, r.getHeader());
-		byte[] data = new byte[r.getHeader().length + content.length];
-		System.arraycopy(r.getHeader(), 0, data, 0, r.getHeader().length);
-		System.arraycopy(content, 0, data, r.getHeader().length, content.length);
-		return conversation(SUCCESS_OCTET, data);
+			return conversation(SUCCESS_OCTET, header);
+		return conversation(SUCCESS_OCTET, new SequenceInputStream(
+				stream(header), content));
 	}
 
 	private StreamingResponse getRequestHeader(int id)
 			throws MessageFormatException {
-		RequestHeader r = dao.loadRequestHeader(id);
+		RequestHeader r = loadRequestHeader(id);
 		if (r == null)
 			return err_404();
 
@@ -336,65 +687,175 @@ public class ConversationServiceHttpRequestHandler implements
 	}
 
 	private StreamingResponse getResponse(int id) throws MessageFormatException {
-		ResponseHeader r = dao.loadResponseHeader(id);
+		ResponseHeader r = loadResponseHeader(id);
 		if (r == null)
 			return err_404();
-		
-		byte[] content = dao.loadMessageContent(id);
 
-		if (content == null)
-			return conversation(SUCCESS_OCTET, r.getHeader());
-		byte[] data = new byte[r.getHeader().length + content.length];
-		System.arraycopy(r.getHeader(), 0, data, 0, r.getHeader().length);
-		System.arraycopy(content, 0, data, r.getHeader().length, content.length);
-		return conversation(SUCCESS_OCTET, data);
+		return message(id, r.getHeader());
 	}
 
 	private StreamingResponse getResponseHeader(int id)
 			throws MessageFormatException {
-		ResponseHeader r = dao.loadResponseHeader(id);
+		ResponseHeader r = loadResponseHeader(id);
 		if (r == null)
 			return err_404();
 
 		return conversation(SUCCESS_OCTET, r.getHeader());
 	}
 
-	private StreamingResponse getRequestContent(int id, boolean decode)
-			throws MessageFormatException {
+	private StreamingResponse getRequestContent(int id, boolean decode,
+			String range) throws MessageFormatException {
 		int contentId = dao.getMessageContentId(id);
-		if (contentId == -1)
+		if (contentId <= 0)
 			return err_404();
 
-		byte[] content = dao.loadMessageContent(contentId);
-		if (decode) {
-			RequestHeader request = dao.loadRequestHeader(id);
+		if (decode)
+			return decodedContent(id, loadRequestHeader(id), contentId);
+		return content(contentId, range);
+	}
+
+	private StreamingResponse getResponseContent(int id, boolean decode,
+			String range) throws MessageFormatException {
+		int contentId = dao.getMessageContentId(id);
+		if (contentId <= 0)
+			return err_404();
+
+		if (decode)
+			return decodedContent(id, loadResponseHeader(id), contentId);
+		return content(contentId, range);
+	}
+
+	private RequestHeader loadRequestHeader(int id) {
+		MessageHeader header = headerCache.get(id);
+		if (header instanceof RequestHeader)
+			return (RequestHeader) header;
+		RequestHeader request = dao.loadRequestHeader(id);
+		if (request != null)
+			headerCache.put(id, request);
+		return request;
+	}
+
+	private ResponseHeader loadResponseHeader(int id) {
+		MessageHeader header = headerCache.get(id);
+		if (header instanceof ResponseHeader)
+			return (ResponseHeader) header;
+		ResponseHeader response = dao.loadResponseHeader(id);
+		if (response != null)
+			headerCache.put(id, response);
+		return response;
+	}
+
+	/*
+	 * Small bodies are decoded in memory and cached, since they are likely to
+	 * be requested repeatedly by a UI. Larger ones are decoded as they are
+	 * streamed.
+	 */
+	private StreamingResponse decodedContent(int id, MessageHeader header,
+			int contentId) throws MessageFormatException {
+		byte[] decoded = contentCache.get(id);
+		if (decoded != null)
+			return conversation(SUCCESS_OCTET, decoded);
+		if (dao.getMessageContentSize(contentId) <= MAX_CACHED_CONTENT) {
+			byte[] content = dao.loadMessageContent(contentId);
+			if (content == null)
+				return err_404();
+			decoded = MessageUtils.decode(header, content);
+			contentCache.put(id, decoded);
+			return conversation(SUCCESS_OCTET, decoded);
+		}
+		InputStream content = dao.loadMessageContentStream(contentId, 0, -1);
+		if (content == null)
+			return err_404();
+		try {
+			return conversation(SUCCESS_OCTET, MessageUtils.decode(header,
+					content));
+		} catch (IOException ioe) {
 			try {
-				return conversation(SUCCESS_OCTET, MessageUtils.decode(request,
-						new ByteArrayInputStream(content)));
-			} catch (IOException ioe) {
-				return err_500();
+				content.close();
+			} catch (IOException ignore) {
 			}
+			return err_500();
 		}
-		return conversation(SUCCESS_OCTET, content);
 	}
 
-	private StreamingResponse getResponseContent(int id, boolean decode)
-			throws MessageFormatException {
-		int contentId = dao.getMessageContentId(id);
-		if (contentId == -1)
+	/*
+	 * Streams the raw content, honouring a single byte range if one was
+	 * requested. Ranges of the decoded content are not supported, since we
+	 * don't know its size without decoding it.
+	 */
+	private StreamingResponse content(int contentId, String range) {
+		int size = dao.getMessageContentSize(contentId);
+		if (size < 0)
 			return err_404();
+		int[] r = range == null ? null : parseRange(range, size);
+		if (r == null) {
+			InputStream content = dao.loadMessageContentStream(contentId, 0,
+					-1);
+			if (content == null)
+				return err_404();
+			return conversation("HTTP/1.0 200 Ok\r\n" + CONTENT_OCTET
+					+ "Accept-Ranges: bytes\r\nContent-Length: " + size
+					+ "\r\n\r\n", content);
+		}
+		if (r.length == 0)
+			return conversation(
+					"HTTP/1.0 416 Requested range not satisfiable\r\nContent-Range: bytes */"
+							+ size + "\r\n\r\n", "Requested range not satisfiable");
+		int length = r[1] - r[0] + 1;
+		InputStream content = dao.loadMessageContentStream(contentId, r[0],
+				length);
+		if (content == null)
+			return err_404();
+		return conversation("HTTP/1.0 206 Partial content\r\n"
+				+ CONTENT_OCTET + "Content-Range: bytes " + r[0] + "-" + r[1]
+				+ "/" + size + "\r\nContent-Length: " + length + "\r\n\r\n",
+				content);
+	}
 
-		byte[] content = dao.loadMessageContent(contentId);
-		if (decode) {
-			ResponseHeader response = dao.loadResponseHeader(id);
-			try {
-				return conversation(SUCCESS_OCTET, MessageUtils.decode(
-						response, new ByteArrayInputStream(content)));
-			} catch (IOException ioe) {
-				return err_500();
+	/**
+	 * Parses a Range header containing a single byte range.
+	 * 
+	 * @param range
+	 *            the value of the Range header
+	 * @param size
+	 *            the size of the entity
+	 * @return the first and last byte positions, an empty array if the range
+	 *         cannot be satisfied, or null if the header should be ignored
+	 */
+	static int[] parseRange(String range, int size) {
+		range = range.trim();
+		if (!range.startsWith("bytes="))
+			return null;
+		range = range.substring(6).trim();
+		int dash = range.indexOf('-');
+		if (dash < 0 || range.indexOf(',') > -1)
+			return null;
+		try {
+			String first = range.substring(0, dash).trim();
+			String last = range.substring(dash + 1).trim();
+			int start, end;
+			if (first.length() == 0) {
+				// suffix range, the last n bytes
+				if (last.length() == 0)
+					return null;
+				int suffix = Integer.parseInt(last);
+				if (suffix <= 0)
+					return new int[0];
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Integer.parseInt(first);
+				end = last.length() == 0 ? size - 1 : Math.min(Integer
+						.parseInt(last), size - 1);
+				if (end < start && last.length() > 0 && start < size)
+					return null;
 			}
+			if (start < 0 || start >= size)
+				return new int[0];
+			return new int[] { start, end };
+		} catch (IllegalArgumentException iae) {
+			return null;
 		}
-		return conversation(SUCCESS_OCTET, content);
 	}
 
 	private StreamingResponse err_400() {
@@ -415,6 +876,10 @@ public class ConversationServiceHttpRequestHandler implements
 		return conversation(AsciiString.getBytes(header), content);
 	}
 
+	private StreamingResponse conversation(String header, InputStream content) {
+		return conversation(AsciiString.getBytes(header), content);
+	}
+
 	private StreamingResponse conversation(byte[] header, String content) {
 		return conversation(header, stream(content));
 	}
@@ -430,6 +895,62 @@ public class ConversationServiceHttpRequestHandler implements
 		return response;
 	}
 
+	/**
+	 * Produces its content a page at a time, as it is read
+	 */
+	private static abstract class PagedInputStream extends InputStream {
+
+		private byte[] page = new byte[0];
+
+		private int pos = 0;
+
+		private boolean eof = false;
+
+		/**
+		 * Appends the next page of content to the buffer
+		 * 
+		 * @param buff
+		 * @return false if there is no more content
+		 */
+		protected abstract boolean nextPage(StringBuilder buff);
+
+		private boolean fill() throws IOException {
+			while (!eof && pos == page.length) {
+				StringBuilder buff = new StringBuilder();
+				try {
+					eof = !nextPage(buff);
+				} catch (DataAccessException dae) {
+					IOException ioe = new IOException(dae.getMessage());
+					ioe.initCause(dae);
+					throw ioe;
+				}
+				page = buff.toString().getBytes("UTF-8");
+				pos = 0;
+			}
+			return pos < page.length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return page[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int got = Math.min(len, page.length - pos);
+			System.arraycopy(page, pos, b, off, got);
+			pos += got;
+			return got;
+		}
+
+	}
+
 	private InputStream stream(byte[] content) {
 		return new ByteArrayInputStream(content);
 	}
@@ -27,6 +27,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.owasp.proxy.daemon.ServerGroup;
 import org.owasp.proxy.http.MessageFormatException;
@@ -34,28 +35,46 @@ import org.owasp.proxy.http.MessageUtils;
 import org.owasp.proxy.http.StreamingRequest;
 import org.owasp.proxy.http.StreamingResponse;
 import org.owasp.proxy.http.client.HttpClient;
+import org.owasp.proxy.http.client.HttpClientPool;
+import org.owasp.proxy.io.EofNotifyingInputStream;
 import org.owasp.proxy.io.TimingInputStream;
 
+/**
+ * Fetches requests from the upstream server. Upstream connections are leased
+ * from an {@link HttpClientPool} shared by all threads, and are returned to
+ * the pool once the response content has been completely read, so that they
+ * can be reused by any subsequent request to the same server.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
 public class DefaultHttpRequestHandler implements HttpRequestHandler {
 
 	private ProxySelector proxySelector = null;
 
 	private ServerGroup serverGroup = null;
 
-	private ThreadLocal<HttpClient> client = new ThreadLocal<HttpClient>() {
+	private HttpClientPool pool = new HttpClientPool() {
 
 		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see java.lang.ThreadLocal#initialValue()
+		 * @see org.owasp.proxy.http.client.HttpClientPool#createClient()
 		 */
 		@Override
-		protected HttpClient initialValue() {
-			return createClient();
+		protected HttpClient createClient() {
+			return DefaultHttpRequestHandler.this.createClient();
 		}
 
 	};
 
+	/**
+	 * The lease in progress for the request being handled by this thread, if
+	 * any. This is needed to send the request content on the same connection
+	 * after a "100 Continue" response.
+	 */
+	private ThreadLocal<Lease> lease = new ThreadLocal<Lease>();
+
 	public void setServerGroup(ServerGroup serverGroup) {
 		this.serverGroup = serverGroup;
 	}
@@ -64,6 +83,13 @@ public class DefaultHttpRequestHandler implements HttpRequestHandler {
 		this.proxySelector = proxySelector;
 	}
 
+	/**
+	 * @return the pool of upstream connections, e.g. to adjust its limits
+	 */
+	public HttpClientPool getClientPool() {
+		return pool;
+	}
+
 	protected HttpClient createClient() {
 		HttpClient client = new HttpClient() {
 
@@ -92,7 +118,11 @@ public class DefaultHttpRequestHandler implements HttpRequestHandler {
 	 * @see org.owasp.proxy.daemon.HttpRequestHandler#dispose()
 	 */
 	public void dispose() throws IOException {
-		client.get().disconnect();
+		Lease current = lease.get();
+		if (current != null) {
+			lease.remove();
+			current.discard();
+		}
 	}
 
 	/*
@@ -105,15 +135,47 @@ public class DefaultHttpRequestHandler implements HttpRequestHandler {
 	public StreamingResponse handleRequest(InetAddress source,
 			StreamingRequest request, boolean isContinue) throws IOException,
 			MessageFormatException {
-		HttpClient client = this.client.get();
+		Lease current = lease.get();
 		if (isContinue) {
-			client.sendRequestContent(request.getContent());
+			if (current == null)
+				throw new IllegalStateException(
+						"No request in progress to continue");
 		} else {
-			client.connect(request.getTarget(), request.isSsl());
-			client.sendRequestHeader(request.getHeader());
-			if (request.getContent() != null)
+			if (current != null)
+				current.discard();
+			current = new Lease(pool.lease(request.getTarget(), request
+					.isSsl()));
+			lease.set(current);
+		}
+		HttpClient client = current.client;
+		try {
+			if (isContinue) {
 				client.sendRequestContent(request.getContent());
+			} else {
+				client.connect(request.getTarget(), request.isSsl());
+				client.sendRequestHeader(request.getHeader());
+				if (request.getContent() != null)
+					client.sendRequestContent(request.getContent());
+			}
+			return readResponse(request, current);
+		} catch (IOException ioe) {
+			lease.remove();
+			current.discard();
+			throw ioe;
+		} catch (MessageFormatException mfe) {
+			lease.remove();
+			current.discard();
+			throw mfe;
+		} catch (RuntimeException re) {
+			lease.remove();
+			current.discard();
+			throw re;
 		}
+	}
+
+	private StreamingResponse readResponse(StreamingRequest request,
+			final Lease current) throws IOException, MessageFormatException {
+		HttpClient client = current.client;
 		request.setTime(client.getRequestTime());
 		StreamingResponse response = new StreamingResponse.Impl();
 		response.setHeader(client.getResponseHeader());
@@ -126,14 +188,49 @@ public class DefaultHttpRequestHandler implements HttpRequestHandler {
 			response.setHeaderTime(client.getResponseHeaderEndTime());
 			byte[] both = new byte[cont.length + header.length];
 			System.arraycopy(cont, 0, both, 0, cont.length);
-			System.arraycopy(header, 0, both, cont.length + 1, header.length);
+			System.arraycopy(header, 0, both, cont.length, header.length);
 			response.setHeader(both);
 		}
 		InputStream content = client.getResponseContent();
-		if (content != null)
+		if (content != null) {
+			// the lease remains associated with this thread until the next
+			// request or dispose(), so that it can be discarded if the
+			// content is never completely read
+			content = new EofNotifyingInputStream(content) {
+				@Override
+				protected void eof() {
+					current.release();
+				}
+			};
 			content = new TimingInputStream(content, response);
+		}
 		response.setContent(content);
 		return response;
 	}
 
+	/**
+	 * Tracks a client leased from the pool, to make sure that it is returned
+	 * exactly once, whichever thread reaches the end of the response content.
+	 */
+	private class Lease {
+
+		private HttpClient client;
+
+		private AtomicBoolean returned = new AtomicBoolean(false);
+
+		public Lease(HttpClient client) {
+			this.client = client;
+		}
+
+		public void release() {
+			if (returned.compareAndSet(false, true))
+				pool.release(client);
+		}
+
+		public void discard() {
+			if (returned.compareAndSet(false, true))
+				pool.discard(client);
+		}
+	}
+
 }
@@ -21,8 +21,8 @@
 
 package org.owasp.proxy.http.server;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,9 +44,10 @@ import org.owasp.proxy.http.RequestHeader;
 import org.owasp.proxy.http.StreamingRequest;
 import org.owasp.proxy.http.StreamingResponse;
 import org.owasp.proxy.io.ChunkedInputStream;
-import org.owasp.proxy.io.CopyInputStream;
 import org.owasp.proxy.io.EofNotifyingInputStream;
 import org.owasp.proxy.io.FixedLengthInputStream;
+import org.owasp.proxy.io.HeaderInputStream;
+import org.owasp.proxy.io.SocketWrapper;
 import org.owasp.proxy.model.URI;
 import org.owasp.proxy.ssl.EncryptedConnectionHandler;
 import org.owasp.proxy.util.AsciiString;
@@ -65,6 +66,47 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 			.getBytes("HTTP/1.0 500 OWASP Proxy Error\r\n"
 					+ "Content-Type: text/html\r\nConnection: close\r\n\r\n");
 
+	private final static byte[] OVERLOADED_RESPONSE = AsciiString
+			.getBytes("HTTP/1.0 503 Service Unavailable\r\n"
+					+ "Content-Type: text/html\r\nConnection: close\r\n"
+					+ "Retry-After: 1\r\n\r\n"
+					+ "<html><head><title>OWASP Proxy Overloaded</title></head>"
+					+ "<body><h1>OWASP Proxy Overloaded</h1>"
+					+ "The proxy is handling too many connections, "
+					+ "please try again later.</body></html>");
+
+	/**
+	 * A handler suitable for use with
+	 * {@link org.owasp.proxy.daemon.Server#setOverloadHandler(ConnectionHandler)}
+	 * , which returns a canned "503 Service Unavailable" response without
+	 * reading the request.
+	 */
+	public final static ConnectionHandler OVERLOAD_HANDLER = new ConnectionHandler() {
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.owasp.proxy.daemon.ConnectionHandler#handleConnection(java.net
+		 * .Socket)
+		 */
+		public void handleConnection(Socket socket) throws IOException {
+			OutputStream out = socket.getOutputStream();
+			out.write(OVERLOADED_RESPONSE);
+			out.flush();
+			// discard whatever part of the request has already arrived, so
+			// that closing the socket does not reset the connection before
+			// the client has read the response
+			InputStream in = socket.getInputStream();
+			int available = in.available();
+			while (available > 0) {
+				long skipped = in.skip(available);
+				if (skipped <= 0)
+					break;
+				available = in.available();
+			}
+		}
+	};
+
 	private final static String ERROR_MESSAGE1 = "<html><head><title>OWASP Proxy Error</title></head>"
 			+ "<body><h1>OWASP Proxy Error</h1>"
 			+ "OWASP Proxy encountered an error fetching the following request : <br/><pre>";
@@ -128,8 +170,8 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 		return response;
 	}
 
-	private void doConnect(Socket socket, MutableRequestHeader request)
-			throws IOException, GeneralSecurityException,
+	private void doConnect(Socket socket, HeaderInputStream in,
+			MutableRequestHeader request) throws IOException, GeneralSecurityException,
 			MessageFormatException {
 		String resource = request.getResource();
 		int colon = resource.indexOf(':');
@@ -156,48 +198,48 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 		} else {
 			out.write("HTTP/1.0 200 Ok\r\n\r\n".getBytes());
 			out.flush();
+			// the client may have sent more than just the CONNECT request
+			if (in.getBufferedCount() > 0)
+				socket = new SocketWrapper(socket, in, out);
 			// start over from the beginning to handle this
 			// connection as an SSL connection
 			connectHandler.handleConnection(socket, target);
 		}
 	}
 
-	private StreamingRequest readRequest(InputStream in) throws IOException,
-			MessageFormatException {
+	private StreamingRequest readRequest(HeaderInputStream in)
+			throws IOException, MessageFormatException {
 		logger.fine("Entering readRequest()");
 		// read the whole header.
-		ByteArrayOutputStream copy = new ByteArrayOutputStream();
-		CopyInputStream cis = new CopyInputStream(in, copy);
+		byte[] headerBytes;
 		try {
-			String line;
-			do {
-				line = cis.readLine();
-			} while (line != null && !"".equals(line));
+			headerBytes = in.readHeader();
 		} catch (IOException e) {
-			byte[] headerBytes = copy.toByteArray();
-			if (headerBytes == null || headerBytes.length == 0)
+			if (in.getBufferedCount() == 0)
 				return null;
 			throw new MessageFormatException("Incomplete request header", e,
-					headerBytes);
+					in.getBufferedBytes());
 		}
 
-		byte[] headerBytes = copy.toByteArray();
-
 		// empty request line, connection closed?
-		if (headerBytes == null || headerBytes.length == 0)
+		if (headerBytes == null)
 			return null;
 
-		StreamingRequest request = new StreamingRequest.Impl();
-		request.setHeader(headerBytes);
+		int[] lineOffsets = in.getLineOffsets();
+		if (!isCRLF(headerBytes, lineOffsets))
+			headerBytes = toCRLF(headerBytes, lineOffsets);
+		StreamingRequest.Impl request = new StreamingRequest.Impl();
+		request.setHeader(headerBytes, lineOffsets);
 
+		InputStream content;
 		String transferCoding = request.getHeader("Transfer-Encoding");
 		String contentLength = request.getHeader("Content-Length");
 		if (transferCoding != null
 				&& transferCoding.trim().equalsIgnoreCase("chunked")) {
-			in = new ChunkedInputStream(in, true); // don't unchunk
+			content = new ChunkedInputStream(in, true); // don't unchunk
 		} else if (contentLength != null) {
 			try {
-				in = new FixedLengthInputStream(in, Integer
+				content = new FixedLengthInputStream(in, Integer
 						.parseInt(contentLength));
 			} catch (NumberFormatException nfe) {
 				IOException ioe = new IOException(
@@ -206,13 +248,51 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 				throw ioe;
 			}
 		} else {
-			in = null;
+			content = null;
 		}
 
-		request.setContent(in);
+		request.setContent(content);
 		return request;
 	}
 
+	/**
+	 * @return true if every line in the header is terminated by CRLF
+	 */
+	private static boolean isCRLF(byte[] header, int[] lineOffsets) {
+		for (int i = 1; i < lineOffsets.length; i += 2) {
+			int next = i + 1 < lineOffsets.length ? lineOffsets[i + 1]
+					: header.length;
+			if (next - lineOffsets[i] != 2)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrites a header which uses bare LF line terminators to use CRLF, so
+	 * that it can be parsed and forwarded like any other. The line offsets are
+	 * updated in place to match the new header.
+	 */
+	private static byte[] toCRLF(byte[] header, int[] lineOffsets) {
+		int lines = lineOffsets.length / 2;
+		int length = 0;
+		for (int i = 0; i < lines; i++)
+			length += lineOffsets[i * 2 + 1] - lineOffsets[i * 2] + 2;
+		byte[] crlf = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < lines; i++) {
+			int start = lineOffsets[i * 2];
+			int len = lineOffsets[i * 2 + 1] - start;
+			System.arraycopy(header, start, crlf, pos, len);
+			lineOffsets[i * 2] = pos;
+			pos += len;
+			lineOffsets[i * 2 + 1] = pos;
+			crlf[pos++] = '\r';
+			crlf[pos++] = '\n';
+		}
+		return crlf;
+	}
+
 	private void extractTargetFromResource(MutableRequestHeader request)
 			throws MessageFormatException {
 		String resource = request.getResource();
@@ -260,8 +340,17 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 		try {
 			InetAddress source = socket.getInetAddress();
 
-			InputStream in = socket.getInputStream();
-			OutputStream out = socket.getOutputStream();
+			// reused for every request on this connection
+			HeaderInputStream in = new HeaderInputStream(socket
+					.getInputStream(), 4096, true);
+			// so that the response header and the start of the content are
+			// sent together. Written separately, the client's delayed ACK of
+			// the header holds back the content (Nagle), costing ~40ms per
+			// response. writeResponse() flushes whenever the content stream
+			// has nothing more immediately available, and before returning
+			// or throwing
+			OutputStream out = new BufferedOutputStream(socket
+					.getOutputStream());
 
 			boolean close;
 			String version = null, connection = null;
@@ -283,7 +372,7 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 					return;
 
 				if ("CONNECT".equals(request.getMethod())) {
-					doConnect(socket, request);
+					doConnect(socket, in, request);
 					return;
 				} else if (!request.getResource().startsWith("/")) {
 					extractTargetFromResource(request);
@@ -332,6 +421,7 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 					if ("100".equals(response.getStatus())) {
 						try {
 							out.write(response.getHeader());
+							out.flush();
 						} catch (IOException ioe) { // client gone
 							return;
 						}
@@ -381,7 +471,8 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 		} catch (MessageFormatException mfe) {
 			logger.info(mfe.getMessage());
 			mfe.printStackTrace();
-			logger.info("Header was " + new String(mfe.getHeader()));
+			if (mfe.getHeader() != null)
+				logger.info("Header was " + new String(mfe.getHeader()));
 			logger.info("Target was " + target);
 		} finally {
 			try {
@@ -408,23 +499,36 @@ public class HttpProxyConnectionHandler implements ConnectionHandler,
 				byte[] buff = new byte[4096];
 				int got;
 				while ((got = content.read(buff)) > -1) {
+					// don't hold on to content that is being streamed
+					boolean more = content.available() > 0;
 					try {
 						out.write(buff, 0, got);
 						count += got;
+						if (!more)
+							out.flush();
 					} catch (IOException ioe) { // client gone
 						content.close();
 						return false;
 					}
 				}
-				out.flush();
 			} catch (IOException ioe) { // server closed
 				logger.fine("Request was " + request);
 				logger.fine("Incomplete response content because "
 						+ ioe.getMessage());
 				logger.fine("Read " + count + " bytes");
+				// pass on whatever we did manage to relay before giving up
+				try {
+					out.flush();
+				} catch (IOException ignore) { // client gone too
+				}
 				throw ioe;
 			}
 		}
+		try {
+			out.flush();
+		} catch (IOException ioe) { // client gone
+			return false;
+		}
 		return true;
 	}
 
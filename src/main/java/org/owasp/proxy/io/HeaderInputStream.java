@@ -0,0 +1,384 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import org.owasp.proxy.http.MessageFormatException;
+
+/**
+ * Reads HTTP message headers from a stream in bulk, rather than a byte at a
+ * time. Data is read into a buffer which is kept for the life of the stream,
+ * and scanned for the blank line that ends the header. Any bytes read past the
+ * end of the header are returned by subsequent reads from this stream, before
+ * reading further data from the underlying stream, so that this stream can be
+ * used directly as the source of the message content.
+ * 
+ * In strict mode, a header is only considered complete when terminated by
+ * CRLFCRLF. In lenient mode, as used when reading requests from clients, lines
+ * may be terminated by either CRLF or a bare LF, blank lines preceding the
+ * header are ignored, and the start and end of each line are recorded while
+ * scanning, so that the header does not need to be split into lines again
+ * afterwards (see {@link #getLineOffsets()}).
+ * 
+ * If a {@link SocketTimeoutException} occurs while reading a header, any
+ * partial header remains buffered, and will be returned by the next call to
+ * {@link #readHeader()}.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class HeaderInputStream extends InputStream {
+
+	private static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	private static final int DEFAULT_MAX_HEADER_SIZE = 1024 * 1024;
+
+	private InputStream in;
+
+	private byte[] buff;
+
+	// the position of the next unread byte in the buffer
+	private int pos = 0;
+
+	// the number of valid bytes in the buffer
+	private int limit = 0;
+
+	// the position from which to continue scanning for the end of the header
+	private int scan = 0;
+
+	private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+	private long headerStartTime = 0;
+
+	// whether a header has been partially scanned
+	private boolean inHeader = false;
+
+	private boolean lenient;
+
+	// the start of the line currently being scanned, in lenient mode
+	private int lineStart = 0;
+
+	// the start and end offsets of each line scanned, relative to pos
+	private int[] lines = null;
+
+	private int lineCount = 0;
+
+	public HeaderInputStream(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE, false);
+	}
+
+	public HeaderInputStream(InputStream in, int bufferSize) {
+		this(in, bufferSize, false);
+	}
+
+	/**
+	 * @param in
+	 *            the stream to read from
+	 * @param bufferSize
+	 *            the initial size of the buffer
+	 * @param lenient
+	 *            true to accept bare LF line terminators and leading blank
+	 *            lines, and record the offsets of each line
+	 */
+	public HeaderInputStream(InputStream in, int bufferSize, boolean lenient) {
+		this.in = in;
+		this.buff = new byte[bufferSize];
+		this.lenient = lenient;
+		if (lenient)
+			lines = new int[32];
+	}
+
+	/**
+	 * @param maxHeaderSize
+	 *            the maximum size of header that will be accepted
+	 */
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * @return the time at which the first byte of the most recent header
+	 *         became available
+	 */
+	public long getHeaderStartTime() {
+		return headerStartTime;
+	}
+
+	/**
+	 * @return the number of bytes that have already been read from the
+	 *         underlying stream, but not yet consumed
+	 */
+	public int getBufferedCount() {
+		return limit - pos;
+	}
+
+	/**
+	 * @return a copy of the bytes that have already been read from the
+	 *         underlying stream, but not yet consumed, e.g. the part of a
+	 *         header that was read before an IOException
+	 */
+	public byte[] getBufferedBytes() {
+		byte[] buffered = new byte[limit - pos];
+		System.arraycopy(buff, pos, buffered, 0, buffered.length);
+		return buffered;
+	}
+
+	/**
+	 * Reads the next message header from the stream.
+	 * 
+	 * @return the header, including the terminating blank line, or null if the
+	 *         stream ended before any bytes were read
+	 * @throws MessageFormatException
+	 *             if the stream ended part way through the header, or the
+	 *             header exceeds the maximum size
+	 * @throws IOException
+	 */
+	public byte[] readHeader() throws IOException, MessageFormatException {
+		if (!inHeader) {
+			if (pos == limit) {
+				pos = limit = 0;
+				headerStartTime = 0;
+			} else {
+				headerStartTime = System.currentTimeMillis();
+			}
+			scan = lineStart = pos;
+			lineCount = 0;
+			inHeader = true;
+		}
+		while (true) {
+			int end = lenient ? findLineEnd() : findEnd();
+			if (end > -1) {
+				byte[] header = new byte[end - pos];
+				System.arraycopy(buff, pos, header, 0, header.length);
+				pos = scan = end;
+				inHeader = false;
+				return header;
+			}
+			if (!fill()) {
+				int count = limit - pos;
+				byte[] partial = new byte[count];
+				System.arraycopy(buff, pos, partial, 0, count);
+				pos = limit = scan = 0;
+				inHeader = false;
+				if (count == 0)
+					return null;
+				throw new MessageFormatException("Unexpected end of stream",
+						partial);
+			}
+		}
+	}
+
+	/**
+	 * Scans the buffer for the end of the header, starting where the previous
+	 * scan left off.
+	 * 
+	 * @return the position after the end of the header, or -1 if the end of
+	 *         the header is not yet in the buffer
+	 */
+	private int findEnd() {
+		// the first CRLFCRLF must start at least one byte into the header
+		int i = Math.max(scan, pos + 4);
+		for (; i < limit; i++) {
+			if (buff[i] == '\n' && buff[i - 1] == '\r' && buff[i - 2] == '\n'
+					&& buff[i - 3] == '\r') {
+				return i + 1;
+			}
+		}
+		scan = limit;
+		return -1;
+	}
+
+	/**
+	 * Scans the buffer line by line for the blank line ending the header,
+	 * recording the offsets of each line, and accepting both CRLF and LF as
+	 * line terminators.
+	 * 
+	 * @return the position after the end of the header, or -1 if the end of
+	 *         the header is not yet in the buffer
+	 * @throws MessageFormatException
+	 *             if a CR is not followed by LF
+	 */
+	private int findLineEnd() throws MessageFormatException {
+		for (int i = scan; i < limit; i++) {
+			byte b = buff[i];
+			if (b == '\r') {
+				if (i + 1 == limit) {
+					// wait to see what follows the CR
+					scan = i;
+					return -1;
+				}
+				if (buff[i + 1] != '\n') {
+					byte[] partial = new byte[i + 2 - pos];
+					System.arraycopy(buff, pos, partial, 0, partial.length);
+					throw new MessageFormatException("Unexpected character 0x"
+							+ Integer.toHexString(buff[i + 1] & 0xFF)
+							+ " after CR", partial);
+				}
+			} else if (b == '\n') {
+				int end = i > lineStart && buff[i - 1] == '\r' ? i - 1 : i;
+				if (end == lineStart && lineCount == 0) {
+					// ignore blank lines preceding the header
+					pos = lineStart = i + 1;
+					continue;
+				}
+				addLine(lineStart - pos, end - pos);
+				if (end == lineStart)
+					return i + 1;
+				lineStart = i + 1;
+			}
+		}
+		scan = limit;
+		return -1;
+	}
+
+	private void addLine(int start, int end) {
+		if (lines.length < (lineCount + 1) * 2) {
+			int[] bigger = new int[lines.length * 2];
+			System.arraycopy(lines, 0, bigger, 0, lineCount * 2);
+			lines = bigger;
+		}
+		lines[lineCount * 2] = start;
+		lines[lineCount * 2 + 1] = end;
+		lineCount++;
+	}
+
+	/**
+	 * Returns the offsets of the lines in the most recent header read in
+	 * lenient mode. The array contains a pair of offsets for each line,
+	 * including the final blank line: the offset of the first character of
+	 * the line, and the offset of its line terminator.
+	 * 
+	 * @return the line offsets, or null if not in lenient mode
+	 */
+	public int[] getLineOffsets() {
+		if (!lenient)
+			return null;
+		int[] offsets = new int[lineCount * 2];
+		System.arraycopy(lines, 0, offsets, 0, offsets.length);
+		return offsets;
+	}
+
+	/**
+	 * Reads more data into the buffer, making space if necessary.
+	 * 
+	 * @return false if the end of the stream was reached
+	 */
+	private boolean fill() throws IOException, MessageFormatException {
+		if (limit == buff.length) {
+			if (pos > 0) {
+				System.arraycopy(buff, pos, buff, 0, limit - pos);
+				scan -= pos;
+				lineStart -= pos;
+				limit -= pos;
+				pos = 0;
+			} else {
+				if (buff.length >= maxHeaderSize) {
+					byte[] partial = new byte[limit];
+					System.arraycopy(buff, 0, partial, 0, limit);
+					throw new MessageFormatException("Header too large", partial);
+				}
+				byte[] bigger = new byte[Math.min(buff.length * 2,
+						maxHeaderSize)];
+				System.arraycopy(buff, 0, bigger, 0, limit);
+				buff = bigger;
+			}
+		}
+		int got = in.read(buff, limit, buff.length - limit);
+		if (got == -1)
+			return false;
+		if (headerStartTime == 0 && got > 0)
+			headerStartTime = System.currentTimeMillis();
+		limit += got;
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		if (pos < limit)
+			return buff[pos++] & 0xFF;
+		return in.read();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos < limit) {
+			int count = Math.min(len, limit - pos);
+			System.arraycopy(buff, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+		return in.read(b, off, len);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		if (pos < limit) {
+			int count = (int) Math.min(n, limit - pos);
+			pos += count;
+			return count;
+		}
+		return in.skip(n);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		return (limit - pos) + in.available();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -39,10 +39,18 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.ssl.KeyManager;
@@ -51,6 +59,7 @@ import javax.net.ssl.X509KeyManager;
 import javax.security.auth.x500.X500Principal;
 
 import org.owasp.proxy.util.Base64;
+import org.owasp.proxy.util.StripedCache;
 import org.owasp.proxy.util.SunCertificateUtils;
 
 public class AutoGeneratingContextSelector implements SSLContextSelector {
@@ -61,15 +70,33 @@ public class AutoGeneratingContextSelector implements SSLContextSelector {
 	private static Logger logger = Logger
 			.getLogger(AutoGeneratingContextSelector.class.getName());
 
-	private boolean reuseKeys = false;
+	private volatile boolean reuseKeys = false;
 
-	private Map<String, SSLContext> contextCache = new HashMap<String, SSLContext>();
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final long DEFAULT_CACHE_TTL = 12L * 60L * 60L * 1000L;
+
+	/**
+	 * The contexts for each host, or the pending result if one is still being
+	 * created. Each context has its own session cache, so the number of hosts
+	 * kept is bounded.
+	 */
+	private volatile StripedCache<String, Future<SSLContext>> contextCache = createContextCache(
+			DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+
+	private volatile Executor executor = null;
+
+	private volatile KeyPairPool keyPairPool = null;
+
+	private volatile boolean wildcardCertificates = false;
+
+	private volatile CertificateStore certificateStore = null;
 
 	private PrivateKey caKey;
 
 	private X509Certificate[] caCerts;
 
-	private Set<BigInteger> serials = new HashSet<BigInteger>();
+	private final AtomicLong lastSerial = new AtomicLong();
 
 	/**
 	 * creates a {@link AutoGeneratingContextSelector} that will create a RSA
@@ -217,10 +244,163 @@ public class AutoGeneratingContextSelector implements SSLContextSelector {
 	 *            true to reuse the CA key pair, false to generate a new key
 	 *            pair for each host
 	 */
-	public synchronized void setReuseKeys(boolean reuse) {
+	public void setReuseKeys(boolean reuse) {
 		reuseKeys = reuse;
 	}
 
+	/**
+	 * Limits the number of hosts whose contexts are kept in memory. Contexts
+	 * that are evicted or expire are recreated from the
+	 * {@link CertificateStore} if there is one, or generated again otherwise.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of hosts
+	 * @param timeToLive
+	 *            the time in milliseconds that a context is kept, or 0 to keep
+	 *            it until it is evicted
+	 */
+	public void setContextCacheSize(int maxEntries, long timeToLive) {
+		contextCache = createContextCache(maxEntries, timeToLive);
+	}
+
+	/**
+	 * @return the cache of contexts, for its statistics
+	 */
+	public StripedCache<String, Future<SSLContext>> getContextCache() {
+		return contextCache;
+	}
+
+	private static StripedCache<String, Future<SSLContext>> createContextCache(
+			int maxEntries, long timeToLive) {
+		StripedCache<String, Future<SSLContext>> cache = new StripedCache<String, Future<SSLContext>>(
+				maxEntries);
+		cache.setTimeToLive(timeToLive);
+		return cache;
+	}
+
+	/**
+	 * Sets the store that host certificates are saved to once they have been
+	 * generated, and reused from when the same host is seen again, even after
+	 * a restart. Without a store, certificates are only kept in memory.
+	 * 
+	 * @param certificateStore
+	 */
+	public void setCertificateStore(CertificateStore certificateStore) {
+		this.certificateStore = certificateStore;
+	}
+
+	/**
+	 * Sets the pool that key pairs for new hosts are taken from, when the CA
+	 * keys are not being reused. This also determines the algorithm and size
+	 * of the keys. By default, a small pool of 1024 bit RSA keys is created
+	 * the first time it is needed.
+	 * 
+	 * @param keyPairPool
+	 */
+	public void setKeyPairPool(KeyPairPool keyPairPool) {
+		this.keyPairPool = keyPairPool;
+		if (keyPairPool != null)
+			keyPairPool.start();
+	}
+
+	private KeyPairPool getKeyPairPool() throws GeneralSecurityException {
+		KeyPairPool pool = keyPairPool;
+		if (pool == null) {
+			synchronized (this) {
+				if (keyPairPool == null)
+					setKeyPairPool(new KeyPairPool("RSA", 1024, 4));
+				pool = keyPairPool;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Determines whether hosts that share a parent domain also share a
+	 * certificate. If enabled, a.cdn.example.com and b.cdn.example.com are
+	 * both served a certificate for *.cdn.example.com, so that only one key
+	 * pair, certificate and SSLContext is needed for all of them.
+	 * 
+	 * Wildcards are never issued directly below a top level domain, or below
+	 * what looks like a country's second level domain, such as co.uk, since
+	 * clients reject those. IP addresses always get their own certificate.
+	 * 
+	 * @param wildcardCertificates
+	 */
+	public void setWildcardCertificates(boolean wildcardCertificates) {
+		this.wildcardCertificates = wildcardCertificates;
+	}
+
+	public boolean isWildcardCertificates() {
+		return wildcardCertificates;
+	}
+
+	/**
+	 * Determines the name that the certificate for a host is issued to, and
+	 * that its context is cached under
+	 * 
+	 * @param host
+	 * @return the host name, or a wildcard name that matches it
+	 */
+	protected String getCertificateName(String host) {
+		host = host.toLowerCase();
+		if (!wildcardCertificates || SunCertificateUtils.isIPAddress(host))
+			return host;
+		int dot = host.indexOf('.');
+		if (dot < 1)
+			return host;
+		String parent = host.substring(dot + 1);
+		String[] labels = parent.split("\\.");
+		if (labels.length < 2)
+			return host;
+		if (labels.length == 2 && labels[1].length() == 2
+				&& labels[0].length() <= 3)
+			// e.g. co.uk, com.au
+			return host;
+		return "*." + parent;
+	}
+
+	/**
+	 * Sets the executor used to generate the keys and certificates for new
+	 * hosts. By default, a pool with one thread per processor is used, so that
+	 * a burst of new hosts cannot monopolise the machine.
+	 * 
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private Executor getExecutor() {
+		Executor e = executor;
+		if (e == null) {
+			synchronized (this) {
+				if (executor == null)
+					executor = createExecutor();
+				e = executor;
+			}
+		}
+		return e;
+	}
+
+	private static Executor createExecutor() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private AtomicInteger threadCount = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "AutoGeneratingContextSelector-"
+								+ threadCount.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -228,20 +408,57 @@ public class AutoGeneratingContextSelector implements SSLContextSelector {
 	 * org.owasp.proxy.daemon.CertificateProvider#getSocketFactory(java.lang
 	 * .String, int)
 	 */
-	public synchronized SSLContext select(InetSocketAddress target) {
-		String host = target.getHostName();
-		SSLContext sslContext = contextCache.get(host);
-		if (sslContext == null) {
-			try {
-				X509KeyManager km = createKeyMaterial(host);
-				sslContext = SSLContext.getInstance("SSLv3");
-				sslContext.init(new KeyManager[] { km }, null, null);
-				contextCache.put(host, sslContext);
-			} catch (GeneralSecurityException gse) {
-				logger.warning("Error obtaining the SSLContext: "
-						+ gse.getLocalizedMessage());
+	public SSLContext select(InetSocketAddress target) {
+		final String host = getCertificateName(target.getHostName());
+		StripedCache<String, Future<SSLContext>> contextCache = this.contextCache;
+		Future<SSLContext> future = contextCache.get(host);
+		if (future == null) {
+			// only the first thread to ask for a new host creates its context,
+			// the others wait for the same result
+			FutureTask<SSLContext> task = new FutureTask<SSLContext>(
+					new Callable<SSLContext>() {
+						public SSLContext call() throws Exception {
+							return createContext(host);
+						}
+					});
+			future = contextCache.putIfAbsent(host, task);
+			if (future == null) {
+				future = task;
+				try {
+					getExecutor().execute(task);
+				} catch (RuntimeException re) {
+					// e.g. the executor has been shut down
+					task.run();
+				}
 			}
 		}
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ee) {
+			// allow a later attempt to try again
+			contextCache.remove(host, future);
+			logger.log(Level.WARNING, "Error obtaining the SSLContext for "
+					+ host, ee.getCause());
+			return null;
+		}
+	}
+
+	private SSLContext createContext(String host)
+			throws GeneralSecurityException {
+		CertificateStore store = certificateStore;
+		X509KeyManager km = null;
+		if (store != null)
+			km = store.load(host, caCerts[0]);
+		if (km == null) {
+			km = createKeyMaterial(host);
+			if (store != null)
+				store.save(host, km);
+		}
+		SSLContext sslContext = SSLContext.getInstance("SSLv3");
+		sslContext.init(new KeyManager[] { km }, null, null);
 		return sslContext;
 	}
 
@@ -256,41 +473,45 @@ public class AutoGeneratingContextSelector implements SSLContextSelector {
 		if (reuseKeys) {
 			keyPair = new KeyPair(caCerts[0].getPublicKey(), caKey);
 		} else {
-			KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
-			keygen.initialize(1024);
-			keyPair = keygen.generateKeyPair();
+			keyPair = getKeyPairPool().take();
 		}
 
 		X500Principal subject = getSubjectPrincipal(host);
 		Date begin = new Date();
 		Date ends = new Date(begin.getTime() + DEFAULT_VALIDITY);
 
+		String[] altNames;
+		if (host.startsWith("*.")) {
+			altNames = new String[] { host, host.substring(2) };
+		} else {
+			altNames = new String[] { host };
+		}
+
 		X509Certificate cert = SunCertificateUtils.sign(subject,
 				keyPair.getPublic(), caCerts[0].getSubjectX500Principal(),
 				caCerts[0].getPublicKey(), caKey, begin, ends,
-				getNextSerialNo());
+				getNextSerialNo(), altNames);
 
 		X509Certificate[] chain = new X509Certificate[caCerts.length + 1];
 		System.arraycopy(caCerts, 0, chain, 1, caCerts.length);
 		chain[0] = cert;
 
-		X509KeyManager km = new SingleX509KeyManager(host,
-				keyPair.getPrivate(), chain);
-		try {
-			KeystoreUtils.saveToKeyStore(new FileOutputStream(host + ".p12"),
-					km, host, "PKCS12", "password".toCharArray());
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
-		return km;
+		return new SingleX509KeyManager(host.toLowerCase(), keyPair
+				.getPrivate(), chain);
 	}
 
+	/**
+	 * Serial numbers are based on the current time, and are strictly
+	 * increasing, so that they are unique without having to remember the ones
+	 * that have been issued
+	 */
 	protected BigInteger getNextSerialNo() {
-		BigInteger serial = BigInteger.valueOf(System.currentTimeMillis());
-		while (serials.contains(serial))
-			serial = serial.add(BigInteger.ONE);
-		serials.add(serial);
-		return serial;
+		while (true) {
+			long last = lastSerial.get();
+			long next = Math.max(last + 1, System.currentTimeMillis());
+			if (lastSerial.compareAndSet(last, next))
+				return BigInteger.valueOf(next);
+		}
 	}
 
 }
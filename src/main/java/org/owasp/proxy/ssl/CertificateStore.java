@@ -0,0 +1,239 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ssl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.X509KeyManager;
+
+/**
+ * Keeps the keys and certificates generated for each host in a directory, so
+ * that they can be reused after a restart instead of being generated again.
+ * 
+ * Each host is stored in its own PKCS12 keystore, named after the host, so
+ * looking up a host is a single file access, and nothing needs to be read
+ * until a host is actually requested. Saving is done on a background thread,
+ * so that it does not delay the handshake that needed the certificate.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class CertificateStore {
+
+	private static final Logger logger = Logger
+			.getLogger(CertificateStore.class.getName());
+
+	private static final String TYPE = "PKCS12";
+
+	private static final String SUFFIX = ".p12";
+
+	private File directory;
+
+	private char[] password;
+
+	private volatile long minimumValidity = 24L * 60L * 60L * 1000L;
+
+	private ExecutorService writer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CertificateStore");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * @param directory
+	 *            the directory to keep the keystores in, which is created if
+	 *            necessary
+	 * @param password
+	 *            the password used to protect each keystore
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public CertificateStore(File directory, char[] password) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		this.directory = directory;
+		this.password = password.clone();
+	}
+
+	/**
+	 * Certificates that expire within this time are not reused
+	 * 
+	 * @param minimumValidity
+	 *            the time in milliseconds
+	 */
+	public void setMinimumValidity(long minimumValidity) {
+		this.minimumValidity = minimumValidity;
+	}
+
+	public long getMinimumValidity() {
+		return minimumValidity;
+	}
+
+	/**
+	 * Loads the key and certificate chain previously saved for the host
+	 * 
+	 * @param host
+	 * @param issuer
+	 *            the current CA certificate, which must have signed the saved
+	 *            certificate
+	 * @return the key material, or null if there is none, or it is about to
+	 *         expire, or was issued by a different CA
+	 */
+	public X509KeyManager load(String host, X509Certificate issuer) {
+		File file = getFile(host);
+		if (!file.exists())
+			return null;
+		String alias = alias(host);
+		try {
+			InputStream in = new FileInputStream(file);
+			X509KeyManager km;
+			try {
+				km = KeystoreUtils.loadFromKeyStore(in, TYPE, alias, password);
+			} finally {
+				in.close();
+			}
+			X509Certificate[] chain = km.getCertificateChain(alias);
+			if (chain == null || chain.length == 0)
+				return null;
+			Date now = new Date();
+			chain[0].checkValidity(now);
+			chain[0].checkValidity(new Date(now.getTime() + minimumValidity));
+			chain[0].verify(issuer.getPublicKey());
+			return km;
+		} catch (GeneralSecurityException gse) {
+			logger.fine("Not reusing the certificate for " + host + ": "
+					+ gse.getLocalizedMessage());
+			return null;
+		} catch (IOException ioe) {
+			logger.log(Level.WARNING, "Error reading " + file, ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the key material for the host in the background, replacing any
+	 * existing entry
+	 * 
+	 * @param host
+	 * @param km
+	 */
+	public void save(final String host, final X509KeyManager km) {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					write(host, km);
+				} catch (Exception e) {
+					logger.log(Level.WARNING, "Error saving the certificate for "
+							+ host, e);
+				}
+			}
+		});
+	}
+
+	private void write(String host, X509KeyManager km)
+			throws GeneralSecurityException, IOException {
+		File file = getFile(host);
+		// write a temporary file first, so that readers never see a partial
+		// keystore
+		File tmp = new File(directory, file.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			KeystoreUtils.saveToKeyStore(out, km, alias(host), TYPE, password);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows does not replace existing files
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * Waits for any pending saves to complete
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (ExecutionException ee) {
+			// can't happen
+		}
+	}
+
+	/**
+	 * Completes any pending saves, and stops the background thread
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		flush();
+		writer.shutdown();
+	}
+
+	private String alias(String host) {
+		return host.toLowerCase();
+	}
+
+	/*
+	 * Host names are usually safe to use as file names, but escape anything
+	 * else, just in case
+	 */
+	File getFile(String host) {
+		String name = alias(host);
+		StringBuilder file = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-'
+					|| c == '.' && i > 0) {
+				file.append(c);
+			} else {
+				file.append(String.format("%%%04x", Integer.valueOf(c)));
+			}
+		}
+		file.append(SUFFIX);
+		return new File(directory, file.toString());
+	}
+
+}
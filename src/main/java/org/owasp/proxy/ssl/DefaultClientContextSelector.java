@@ -29,9 +29,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -40,11 +37,34 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.owasp.proxy.util.StripedCache;
+
+/**
+ * Selects the SSLContext used to connect to a server.
+ * 
+ * Contexts are shared by all hosts that use the same client key manager, which
+ * is normally none at all, so that a single SSL session cache serves every
+ * host, and sessions can be resumed regardless of how many hosts have been
+ * visited in between. Subclasses that return a different key manager for
+ * particular hosts get a context per key manager, of which a bounded number
+ * are kept.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
 public class DefaultClientContextSelector implements SSLContextSelector {
 
+	/** The cache key for hosts that have no client key manager */
+	private static final Object NO_KEY_MANAGER = new Object();
+
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+
+	private static final long DEFAULT_CACHE_TTL = 12L * 60L * 60L * 1000L;
+
 	private X509TrustManager trustManager;
 
-	private Map<String, SSLContext> contextMap = new LinkedHashMap<String, SSLContext>();
+	private volatile StripedCache<Object, SSLContext> contextCache = createContextCache(
+			DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
 
 	private X509KeyManager keyManager = null;
 
@@ -61,18 +81,49 @@ public class DefaultClientContextSelector implements SSLContextSelector {
 		return keyManager;
 	}
 
+	/**
+	 * Limits the number of contexts kept for different client key managers
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of contexts
+	 * @param timeToLive
+	 *            the time in milliseconds that a context is kept, or 0 to keep
+	 *            it until it is evicted
+	 */
+	public void setContextCacheSize(int maxEntries, long timeToLive) {
+		contextCache = createContextCache(maxEntries, timeToLive);
+	}
+
+	/**
+	 * @return the cache of contexts, for its statistics
+	 */
+	public StripedCache<Object, SSLContext> getContextCache() {
+		return contextCache;
+	}
+
+	private static StripedCache<Object, SSLContext> createContextCache(
+			int maxEntries, long timeToLive) {
+		StripedCache<Object, SSLContext> cache = new StripedCache<Object, SSLContext>(
+				maxEntries);
+		cache.setTimeToLive(timeToLive);
+		return cache;
+	}
+
 	public SSLContext select(InetSocketAddress target) {
-		String host = target.getHostName();
-		SSLContext context = contextMap.get(host);
+		X509KeyManager km = getKeyManager(target);
+		Object key = km == null ? NO_KEY_MANAGER : km;
+		StripedCache<Object, SSLContext> contextCache = this.contextCache;
+		SSLContext context = contextCache.get(key);
 		if (context != null)
 			return context;
 		try {
 			context = SSLContext.getInstance("SSL");
-			X509KeyManager km = getKeyManager(target);
 			KeyManager[] kms = km == null ? null : new KeyManager[] { km };
 			context.init(kms, new TrustManager[] { getTrustManager() },
 					new SecureRandom());
-			contextMap.put(host, context);
+			SSLContext existing = contextCache.putIfAbsent(key, context);
+			if (existing != null)
+				context = existing;
 		} catch (NoSuchAlgorithmException e) {
 			// should never happen
 			e.printStackTrace();
@@ -85,6 +136,8 @@ public class DefaultClientContextSelector implements SSLContextSelector {
 
 	public void setTrustManager(X509TrustManager trustManager) {
 		this.trustManager = trustManager;
+		// existing contexts use the previous trust manager
+		contextCache.clear();
 	}
 
 	private void initTrustManager() {
@@ -132,12 +185,16 @@ public class DefaultClientContextSelector implements SSLContextSelector {
 
 		private X509TrustManager trustManager;
 
-		private HashMap<X509Certificate, X509Certificate[]> trusted, untrusted;
+		// only used to avoid logging the same certificate repeatedly
+		private StripedCache<X509Certificate, X509Certificate[]> trusted,
+				untrusted;
 
 		public LoggingTrustManager(X509TrustManager trustManager) {
 			this.trustManager = trustManager;
-			trusted = new HashMap<X509Certificate, X509Certificate[]>();
-			untrusted = new HashMap<X509Certificate, X509Certificate[]>();
+			trusted = new StripedCache<X509Certificate, X509Certificate[]>(
+					DEFAULT_CACHE_SIZE);
+			untrusted = new StripedCache<X509Certificate, X509Certificate[]>(
+					DEFAULT_CACHE_SIZE);
 		}
 
 		public X509Certificate[] getAcceptedIssuers() {
@@ -145,8 +202,8 @@ public class DefaultClientContextSelector implements SSLContextSelector {
 		}
 
 		public void checkClientTrusted(X509Certificate[] certs, String authType) {
-			if (trusted.containsKey(certs[0])
-					|| untrusted.containsKey(certs[0]))
+			if (trusted.get(certs[0]) != null
+					|| untrusted.get(certs[0]) != null)
 				return;
 			String dn = certs[0].getSubjectX500Principal().getName();
 			try {
@@ -159,8 +216,8 @@ public class DefaultClientContextSelector implements SSLContextSelector {
 		}
 
 		public void checkServerTrusted(X509Certificate[] certs, String authType) {
-			if (trusted.containsKey(certs[0])
-					|| untrusted.containsKey(certs[0]))
+			if (trusted.get(certs[0]) != null
+					|| untrusted.get(certs[0]) != null)
 				return;
 			String dn = certs[0].getSubjectX500Principal().getName();
 			try {
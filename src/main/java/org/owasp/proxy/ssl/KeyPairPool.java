@@ -0,0 +1,187 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ssl;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of freshly generated key pairs ready for use, so that
+ * certificates for new hosts can be created without waiting for a key pair to
+ * be generated.
+ * 
+ * Whenever a key pair is taken, the pool is topped up again on a background
+ * thread. If the pool is empty when a key pair is needed, one is generated on
+ * the calling thread instead.
+ * 
+ * Any algorithm supported by {@link KeyPairGenerator} can be used, e.g.
+ * ("RSA", 2048) or ("EC", 256) for the NIST P-256 curve.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class KeyPairPool {
+
+	private static final Logger logger = Logger.getLogger(KeyPairPool.class
+			.getName());
+
+	private final String algorithm;
+
+	private final int keySize;
+
+	private final BlockingQueue<KeyPair> pool;
+
+	private final AtomicBoolean filling = new AtomicBoolean(false);
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param algorithm
+	 *            the key algorithm, e.g. "RSA" or "EC"
+	 * @param keySize
+	 *            the key size in bits
+	 * @param capacity
+	 *            the number of key pairs to keep ready
+	 * @throws GeneralSecurityException
+	 *             if the algorithm or key size is not supported
+	 */
+	public KeyPairPool(String algorithm, int keySize, int capacity)
+			throws GeneralSecurityException {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.algorithm = algorithm;
+		this.keySize = keySize;
+		this.pool = new ArrayBlockingQueue<KeyPair>(capacity);
+		// fail early if the parameters are not supported
+		getGenerator();
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getKeySize() {
+		return keySize;
+	}
+
+	/**
+	 * @return the number of key pairs that are ready for use
+	 */
+	public int getAvailable() {
+		return pool.size();
+	}
+
+	/**
+	 * @return the number of key pairs that were taken from the pool
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of key pairs that had to be generated on demand,
+	 *         because the pool was empty
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Starts filling the pool in the background
+	 */
+	public void start() {
+		closed = false;
+		refill();
+	}
+
+	/**
+	 * Stops refilling the pool, and discards the key pairs in it
+	 */
+	public void close() {
+		closed = true;
+		pool.clear();
+	}
+
+	/**
+	 * Takes a key pair from the pool, or generates one if the pool is empty.
+	 * Either way, a background refill of the pool is started.
+	 * 
+	 * @return a key pair that has not been handed out before
+	 * @throws GeneralSecurityException
+	 */
+	public KeyPair take() throws GeneralSecurityException {
+		KeyPair keyPair = pool.poll();
+		refill();
+		if (keyPair != null) {
+			hits.incrementAndGet();
+			return keyPair;
+		}
+		misses.incrementAndGet();
+		return getGenerator().generateKeyPair();
+	}
+
+	private KeyPairGenerator getGenerator() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+		generator.initialize(keySize);
+		return generator;
+	}
+
+	private void refill() {
+		if (closed || pool.remainingCapacity() == 0
+				|| !filling.compareAndSet(false, true))
+			return;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				fill();
+			}
+		}, "KeyPairPool-" + algorithm + "-" + keySize);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	private void fill() {
+		try {
+			KeyPairGenerator generator = getGenerator();
+			while (!closed && pool.remainingCapacity() > 0)
+				pool.offer(generator.generateKeyPair());
+		} catch (GeneralSecurityException gse) {
+			logger.log(Level.WARNING, "Error generating key pairs", gse);
+		} finally {
+			filling.set(false);
+		}
+		// a key pair may have been taken after we stopped filling, but before
+		// we cleared the flag
+		if (!closed && pool.remainingCapacity() > 0)
+			refill();
+	}
+
+}
@@ -24,6 +24,7 @@ package org.owasp.proxy.tcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Handles one side of the communications between client and target, reading
@@ -32,13 +33,16 @@ import java.io.OutputStream;
  * @author rogan
  * 
  */
-class RelayInterceptor<C, S> extends Thread implements StreamHandle {
+class RelayInterceptor<C, S> implements Runnable, StreamHandle {
 
 	private StreamInterceptor<C, S> interceptor;
 	private InputStream in;
 	private OutputStream out;
-	private boolean done = false;
-	private Object lock = new Object();
+	private volatile boolean done = false;
+
+	// a latch rather than wait/notify, so that virtual threads waiting for
+	// the interceptor to close the stream do not pin their carrier thread
+	private CountDownLatch closed = new CountDownLatch(1);
 
 	private Runnable closer = null;
 
@@ -47,8 +51,6 @@ class RelayInterceptor<C, S> extends Thread implements StreamHandle {
 		this.interceptor = interceptor;
 		this.in = in;
 		this.out = out;
-		setName("Interceptor");
-		setDaemon(true);
 	}
 
 	public void setCloseHandler(Runnable closer) {
@@ -68,11 +70,7 @@ class RelayInterceptor<C, S> extends Thread implements StreamHandle {
 			interceptor.inputClosed(this);
 		}
 		try {
-			while (!done) {
-				synchronized (lock) {
-					lock.wait(1000);
-				}
-			}
+			closed.await();
 		} catch (InterruptedException ie) {
 			// we're done, return
 		}
@@ -91,8 +89,6 @@ class RelayInterceptor<C, S> extends Thread implements StreamHandle {
 			ioe.printStackTrace();
 		}
 		done = true;
-		synchronized (lock) {
-			lock.notify();
-		}
+		closed.countDown();
 	}
 }
@@ -24,9 +24,13 @@ package org.owasp.proxy.tcp;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import org.owasp.proxy.util.VirtualThreads;
+
 public class StreamRelay<C, S> implements Runnable {
 
-	private RelayInterceptor<C, S> cs, sc;
+	private RelayInterceptor<C, S> csRelay, scRelay;
+
+	private Thread cs, sc;
 
 	/**
 	 * This class reads information from the client InputStream, and writes it
@@ -52,19 +56,24 @@ public class StreamRelay<C, S> implements Runnable {
 	public StreamRelay(StreamInterceptor<C, S> interceptor, C clientLabel,
 			InputStream ci, OutputStream co, S serverLabel, InputStream si,
 			OutputStream so) {
-		cs = new RelayInterceptor<C, S>(interceptor, ci, so);
-		cs.setName("Client");
-		sc = new RelayInterceptor<C, S>(interceptor, si, co);
-		sc.setName("Server");
-		interceptor.connected(cs, sc, clientLabel, serverLabel);
+		csRelay = new RelayInterceptor<C, S>(interceptor, ci, so);
+		scRelay = new RelayInterceptor<C, S>(interceptor, si, co);
+		interceptor.connected(csRelay, scRelay, clientLabel, serverLabel);
 	}
 
 	public void setCloseHandlers(Runnable cch, Runnable sch) {
-		cs.setCloseHandler(cch);
-		sc.setCloseHandler(sch);
+		csRelay.setCloseHandler(cch);
+		scRelay.setCloseHandler(sch);
 	}
 
+	/**
+	 * Relays data in both directions until both streams have been closed. The
+	 * relay threads are virtual threads if this method is called from a
+	 * virtual thread, and daemon platform threads otherwise.
+	 */
 	public void run() {
+		cs = VirtualThreads.newThread(csRelay, "Client");
+		sc = VirtualThreads.newThread(scRelay, "Server");
 		cs.start();
 		sc.start();
 		while (cs.isAlive() || sc.isAlive()) {
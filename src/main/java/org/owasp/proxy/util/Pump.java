@@ -26,13 +26,24 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 
+/**
+ * Copies data from an InputStream to an OutputStream until the InputStream is
+ * exhausted. A Pump can be started as a (daemon) thread in its own right.
+ * {@link #connect(Socket, Socket)} relays data in both directions between two
+ * sockets, running each Pump on a thread of the same kind (virtual or
+ * platform) as the calling thread.
+ * 
+ * @see VirtualThreads#newThread(Runnable, String)
+ */
 public class Pump extends Thread {
 	private InputStream in;
 	private OutputStream out;
 
 	public static void connect(Socket a, Socket b) throws IOException {
-		Pump ab = new Pump(a.getInputStream(), b.getOutputStream());
-		Pump ba = new Pump(b.getInputStream(), a.getOutputStream());
+		Thread ab = VirtualThreads.newThread(new Pump(a.getInputStream(), b
+				.getOutputStream()), "Pump: " + a.getRemoteSocketAddress());
+		Thread ba = VirtualThreads.newThread(new Pump(b.getInputStream(), a
+				.getOutputStream()), "Pump: " + b.getRemoteSocketAddress());
 		ab.start();
 		ba.start();
 		while (ab.isAlive()) {
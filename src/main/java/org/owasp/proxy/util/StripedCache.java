@@ -0,0 +1,330 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache that evicts the least recently used entries
+ * once it holds more than a maximum number of entries, or once the total
+ * weight of its values exceeds a maximum.
+ * 
+ * The entries are spread over a number of independently locked stripes, each
+ * of which is an access ordered {@link LinkedHashMap} holding its share of the
+ * entries and weight. This keeps threads that access different keys from
+ * contending for a single lock, at the cost of the eviction order only being
+ * LRU within each stripe.
+ * 
+ * Entries can also be given a time to live, after which they are treated as
+ * absent.
+ * 
+ * @author Rogan Dawes
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class StripedCache<K, V> {
+
+	/**
+	 * Determines how much a value counts towards the maximum weight of the
+	 * cache
+	 */
+	public interface Weigher<V> {
+
+		int weigh(V value);
+
+	}
+
+	private static final int MAX_STRIPES = 16;
+
+	private final List<Stripe> stripes;
+
+	private final Weigher<? super V> weigher;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			evictions = new AtomicLong(), expirations = new AtomicLong();
+
+	private volatile long timeToLive = 0;
+
+	/**
+	 * Creates a cache bounded only by the number of entries
+	 * 
+	 * @param maxEntries
+	 */
+	public StripedCache(int maxEntries) {
+		this(maxEntries, 0, null);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the maximum number of entries to keep
+	 * @param maxWeight
+	 *            the maximum total weight of the values, or 0 for no limit
+	 * @param weigher
+	 *            determines the weight of each value, required if maxWeight
+	 *            is greater than 0
+	 */
+	public StripedCache(int maxEntries, long maxWeight,
+			Weigher<? super V> weigher) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be positive");
+		if (maxWeight > 0 && weigher == null)
+			throw new IllegalArgumentException(
+					"A weigher is required to limit the weight");
+		this.weigher = maxWeight > 0 ? weigher : null;
+		int count = Math.min(MAX_STRIPES, Integer.highestOneBit(maxEntries));
+		stripes = new ArrayList<Stripe>(count);
+		for (int i = 0; i < count; i++)
+			stripes.add(new Stripe((maxEntries + count - 1) / count,
+					maxWeight > 0 ? (maxWeight + count - 1) / count : 0));
+	}
+
+	/**
+	 * @param timeToLive
+	 *            the time in milliseconds after which an entry expires, or 0
+	 *            if entries do not expire
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	private Stripe stripe(Object key) {
+		int h = key.hashCode();
+		// spread the bits, since the stripe is chosen by the low bits
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return stripes.get(h & (stripes.size() - 1));
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value, or null if there is none
+	 */
+	public V get(K key) {
+		V value = stripe(key).get(key);
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Caches the value, evicting older entries if necessary. Values that
+	 * would exceed the weight of a whole stripe on their own are not cached.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void put(K key, V value) {
+		if (value == null)
+			throw new NullPointerException("Cannot cache null values");
+		stripe(key).put(key, value, weigher == null ? 0 : weigher.weigh(value));
+	}
+
+	/**
+	 * Caches the value, unless there is already a value for the key
+	 * 
+	 * @param key
+	 * @param value
+	 * @return the existing value, or null if the value was added
+	 */
+	public V putIfAbsent(K key, V value) {
+		if (value == null)
+			throw new NullPointerException("Cannot cache null values");
+		return stripe(key).putIfAbsent(key, value,
+				weigher == null ? 0 : weigher.weigh(value));
+	}
+
+	/**
+	 * @param key
+	 * @return the value that was removed, or null if there was none
+	 */
+	public V remove(K key) {
+		return stripe(key).remove(key);
+	}
+
+	/**
+	 * Removes the entry for the key, only if it is the specified value
+	 * 
+	 * @param key
+	 * @param value
+	 * @return true if the entry was removed
+	 */
+	public boolean remove(K key, V value) {
+		return stripe(key).remove(key, value);
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * @return the number of entries in the cache
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	/**
+	 * @return the total weight of the values in the cache
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for (Stripe stripe : stripes)
+			weight += stripe.weight();
+		return weight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	private class Stripe {
+
+		private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(
+				16, 0.75f, true);
+
+		private final int maxEntries;
+
+		private final long maxWeight;
+
+		private long weight = 0;
+
+		Stripe(int maxEntries, long maxWeight) {
+			this.maxEntries = maxEntries;
+			this.maxWeight = maxWeight;
+		}
+
+		synchronized V get(Object key) {
+			Entry<V> e = map.get(key);
+			if (e == null)
+				return null;
+			long ttl = timeToLive;
+			if (ttl > 0 && System.currentTimeMillis() - e.created >= ttl) {
+				remove(key);
+				expirations.incrementAndGet();
+				return null;
+			}
+			return e.value;
+		}
+
+		synchronized V putIfAbsent(K key, V value, int w) {
+			V existing = get(key);
+			if (existing != null)
+				return existing;
+			put(key, value, w);
+			return null;
+		}
+
+		synchronized void put(K key, V value, int w) {
+			if (maxWeight > 0 && w > maxWeight) {
+				remove(key);
+				return;
+			}
+			Entry<V> old = map.put(key, new Entry<V>(value, w));
+			if (old != null)
+				weight -= old.weight;
+			weight += w;
+			Iterator<Entry<V>> it = map.values().iterator();
+			while (it.hasNext()
+					&& (map.size() > maxEntries || (maxWeight > 0 && weight > maxWeight))) {
+				Entry<V> eldest = it.next();
+				it.remove();
+				weight -= eldest.weight;
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized V remove(Object key) {
+			Entry<V> e = map.remove(key);
+			if (e == null)
+				return null;
+			weight -= e.weight;
+			return e.value;
+		}
+
+		synchronized boolean remove(Object key, V value) {
+			Entry<V> e = map.get(key);
+			if (e == null || e.value != value)
+				return false;
+			remove(key);
+			return true;
+		}
+
+		synchronized void clear() {
+			map.clear();
+			weight = 0;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+
+	}
+
+	private static class Entry<V> {
+
+		final V value;
+
+		final int weight;
+
+		final long created = System.currentTimeMillis();
+
+		Entry(V value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+
+	}
+
+}
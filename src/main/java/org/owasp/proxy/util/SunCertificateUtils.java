@@ -34,6 +34,7 @@ import java.util.Vector;
 
 import javax.security.auth.x500.X500Principal;
 
+import sun.security.util.DerValue;
 import sun.security.util.ObjectIdentifier;
 import sun.security.x509.AlgorithmId;
 import sun.security.x509.AuthorityKeyIdentifierExtension;
@@ -44,10 +45,15 @@ import sun.security.x509.CertificateSerialNumber;
 import sun.security.x509.CertificateValidity;
 import sun.security.x509.CertificateVersion;
 import sun.security.x509.CertificateX509Key;
+import sun.security.x509.DNSName;
 import sun.security.x509.ExtendedKeyUsageExtension;
+import sun.security.x509.GeneralName;
+import sun.security.x509.GeneralNames;
+import sun.security.x509.IPAddressName;
 import sun.security.x509.KeyIdentifier;
 import sun.security.x509.KeyUsageExtension;
 import sun.security.x509.NetscapeCertTypeExtension;
+import sun.security.x509.SubjectAlternativeNameExtension;
 import sun.security.x509.SubjectKeyIdentifierExtension;
 import sun.security.x509.X500Name;
 import sun.security.x509.X509CertImpl;
@@ -61,6 +67,19 @@ public class SunCertificateUtils {
 			X500Principal issuer, PublicKey caPubKey, PrivateKey caKey,
 			Date begin, Date ends, BigInteger serialNo)
 					throws GeneralSecurityException {
+		return sign(subject, pubKey, issuer, caPubKey, caKey, begin, ends,
+				serialNo, null);
+	}
+
+	/**
+	 * Signs a certificate that is also valid for the alternative names given,
+	 * which may be host names, wildcards such as "*.example.com", or IP
+	 * addresses
+	 */
+	public static X509Certificate sign(X500Principal subject, PublicKey pubKey,
+			X500Principal issuer, PublicKey caPubKey, PrivateKey caKey,
+			Date begin, Date ends, BigInteger serialNo, String[] altNames)
+			throws GeneralSecurityException {
 
 		try {
 			X500Name subjectName = new X500Name(subject.getName());
@@ -81,7 +100,7 @@ public class SunCertificateUtils {
 			AlgorithmId algID = signer.getAlgorithmId();
 			info.set(X509CertInfo.ALGORITHM_ID, new CertificateAlgorithmId(
 					algID));
-			info.set(X509CertInfo.SUBJECT, issuerName);
+			info.set(X509CertInfo.SUBJECT, subjectName);
 			info.set(X509CertInfo.KEY, new CertificateX509Key(pubKey));
 			info.set(X509CertInfo.VALIDITY, valid);
 			info.set(X509CertInfo.ISSUER, issuerName);
@@ -89,6 +108,9 @@ public class SunCertificateUtils {
 			// add Extensions
 			CertificateExtensions ext = (subject == issuer) ? getCACertificateExtensions()
 					: getCertificateExtensions(pubKey, caPubKey);
+			if (altNames != null && altNames.length > 0)
+				ext.set(SubjectAlternativeNameExtension.NAME,
+						getSubjectAlternativeNames(altNames));
 			info.set(X509CertInfo.EXTENSIONS, ext);
 
 			X509CertImpl cert = new X509CertImpl(info);
@@ -101,6 +123,36 @@ public class SunCertificateUtils {
 		}
 	}
 
+	private static SubjectAlternativeNameExtension getSubjectAlternativeNames(
+			String[] altNames) throws IOException {
+		GeneralNames names = new GeneralNames();
+		for (int i = 0; i < altNames.length; i++) {
+			if (isIPAddress(altNames[i])) {
+				names.add(new GeneralName(new IPAddressName(altNames[i])));
+			} else {
+				// DNSName(String) rejects wildcards, so encode it ourselves
+				names.add(new GeneralName(new DNSName(new DerValue(
+						DerValue.tag_IA5String, altNames[i]))));
+			}
+		}
+		return new SubjectAlternativeNameExtension(names);
+	}
+
+	/**
+	 * @param host
+	 * @return true if the host is an IPv4 or IPv6 address literal
+	 */
+	public static boolean isIPAddress(String host) {
+		if (host.indexOf(':') > -1)
+			return true;
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+		return host.length() > 0;
+	}
+
 	private static CertificateExtensions getCACertificateExtensions()
 			throws IOException {
 		CertificateExtensions ext = new CertificateExtensions();
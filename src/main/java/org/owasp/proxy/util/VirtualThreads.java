@@ -0,0 +1,200 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads used to run blocking I/O tasks, such as handling a
+ * connection or relaying data between two sockets.
+ * 
+ * When running on a JVM that supports virtual threads (Java 21 and later),
+ * these tasks can be run in virtual threads instead of platform threads, which
+ * allows very large numbers of mostly idle connections to be handled without
+ * requiring a platform thread for each one. Since this library is compiled to
+ * run on older JVMs, the virtual thread API is accessed reflectively, and
+ * platform threads are used when it is not available.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class VirtualThreads {
+
+	private final static Logger logger = Logger.getLogger(VirtualThreads.class
+			.getName());
+
+	private static Method ofVirtual = null;
+
+	private static Method name = null;
+
+	private static Method unstarted = null;
+
+	private static Method isVirtual = null;
+
+	static {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (Exception e) {
+			ofVirtual = null;
+			logger.fine("Virtual threads are not supported by this JVM");
+		}
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if this JVM is able to create virtual threads
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * @param thread
+	 *            the thread to check
+	 * @return true if the thread is a virtual thread
+	 */
+	public static boolean isVirtual(Thread thread) {
+		if (isVirtual == null)
+			return false;
+		try {
+			return ((Boolean) isVirtual.invoke(thread)).booleanValue();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a new, unstarted, virtual thread
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param threadName
+	 *            the name of the thread
+	 * @return the thread
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not supported by this JVM
+	 */
+	public static Thread newVirtualThread(Runnable task, String threadName) {
+		if (!isSupported())
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by this JVM");
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = name.invoke(builder, threadName);
+			return (Thread) unstarted.invoke(builder, task);
+		} catch (InvocationTargetException ite) {
+			Throwable cause = ite.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new UnsupportedOperationException(cause);
+		} catch (IllegalAccessException iae) {
+			throw new UnsupportedOperationException(iae);
+		}
+	}
+
+	/**
+	 * Creates a new, unstarted, thread of the same kind as the current thread.
+	 * i.e. if the current thread is a virtual thread, the new thread will also
+	 * be virtual, otherwise it will be a daemon platform thread. This allows
+	 * helper threads (such as those relaying data between two sockets) to
+	 * follow the mode selected for the connection handler that creates them.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param threadName
+	 *            the name of the thread
+	 * @return the thread
+	 */
+	public static Thread newThread(Runnable task, String threadName) {
+		if (isVirtual(Thread.currentThread()))
+			return newVirtualThread(task, threadName);
+		Thread t = new Thread(task, threadName);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * Creates a ThreadFactory that returns virtual threads.
+	 * 
+	 * @param prefix
+	 *            the prefix for the names of the threads
+	 * @return the ThreadFactory
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not supported by this JVM
+	 */
+	public static ThreadFactory newThreadFactory(final String prefix) {
+		if (!isSupported())
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by this JVM");
+		return new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger();
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+			 */
+			public Thread newThread(Runnable r) {
+				return newVirtualThread(r, prefix
+						+ threadCount.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Creates an Executor that runs each task in a new virtual thread. This is
+	 * suitable for passing to the {@link org.owasp.proxy.daemon.Server} and
+	 * {@link org.owasp.proxy.daemon.Proxy} constructors.
+	 * 
+	 * @param prefix
+	 *            the prefix for the names of the threads
+	 * @return the Executor
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not supported by this JVM
+	 */
+	public static Executor newExecutor(String prefix) {
+		final ThreadFactory factory = newThreadFactory(prefix);
+		return new Executor() {
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+			 */
+			public void execute(Runnable command) {
+				factory.newThread(command).start();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ServerTest {
+
+	private static class EchoHandler implements ConnectionHandler {
+
+		private AtomicInteger handled = new AtomicInteger();
+
+		public void handleConnection(Socket socket) throws IOException {
+			handled.incrementAndGet();
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			byte[] buff = new byte[1024];
+			int got;
+			while ((got = in.read(buff)) > -1)
+				out.write(buff, 0, got);
+		}
+	}
+
+	private static class BlockingHandler implements ConnectionHandler {
+
+		private CountDownLatch release = new CountDownLatch(1);
+
+		private AtomicInteger handled = new AtomicInteger();
+
+		public void handleConnection(Socket socket) throws IOException {
+			handled.incrementAndGet();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+			}
+			socket.getOutputStream().write('x');
+		}
+	}
+
+	private static final ConnectionHandler REJECT = new ConnectionHandler() {
+		public void handleConnection(Socket socket) throws IOException {
+			socket.getOutputStream().write('r');
+		}
+	};
+
+	private void waitFor(AtomicInteger counter, int value)
+			throws InterruptedException {
+		for (int i = 0; i < 50 && counter.get() < value; i++)
+			Thread.sleep(100);
+		assertEquals(value, counter.get());
+	}
+
+	private void echo(Socket socket, String message) throws IOException {
+		socket.getOutputStream().write(message.getBytes());
+		byte[] buff = new byte[message.length()];
+		InputStream in = socket.getInputStream();
+		int read = 0, got;
+		while (read < buff.length
+				&& (got = in.read(buff, read, buff.length - read)) > -1)
+			read += got;
+		assertEquals(message, new String(buff, 0, read));
+	}
+
+	@Test
+	public void testSelectorEcho() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9997);
+		EchoHandler handler = new EchoHandler();
+		Server server = new Server(listen, null, handler, 2);
+		server.start();
+		try {
+			Socket[] sockets = new Socket[10];
+			for (int i = 0; i < sockets.length; i++)
+				sockets[i] = new Socket("localhost", 9997);
+			Thread.sleep(200);
+			assertEquals("Idle connections were dispatched", 0,
+					handler.handled.get());
+			for (int i = 0; i < sockets.length; i++) {
+				echo(sockets[i], "Hello " + i);
+				echo(sockets[i], "Again " + i);
+			}
+			assertEquals(sockets.length, handler.handled.get());
+			for (int i = 0; i < sockets.length; i++)
+				sockets[i].close();
+		} finally {
+			assertTrue("Server didn't stop", server.stop());
+		}
+		assertTrue(server.isStopped());
+	}
+
+	@Test
+	public void testSelectorIdleTimeout() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9997);
+		EchoHandler handler = new EchoHandler();
+		Server server = new Server(listen, null, handler, 1);
+		server.setSocketTimeout(500);
+		server.start();
+		try {
+			Socket socket = new Socket("localhost", 9997);
+			socket.setSoTimeout(5000);
+			assertEquals("Idle connection was not closed", -1, socket
+					.getInputStream().read());
+			assertEquals(0, handler.handled.get());
+			socket.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testRejectOverload() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9997);
+		BlockingHandler handler = new BlockingHandler();
+		Server server = new Server(listen, handler);
+		server.setMaxConnections(2);
+		server.setOverloadPolicy(Server.OverloadPolicy.REJECT);
+		server.setOverloadHandler(REJECT);
+		server.start();
+		try {
+			Socket a = new Socket("localhost", 9997);
+			Socket b = new Socket("localhost", 9997);
+			waitFor(handler.handled, 2);
+			Socket c = new Socket("localhost", 9997);
+			c.setSoTimeout(5000);
+			assertEquals((int) 'r', c.getInputStream().read());
+			assertEquals(-1, c.getInputStream().read());
+			assertEquals(1L, server.getShedConnections());
+			assertEquals(2, server.getActiveConnections());
+			handler.release.countDown();
+			assertEquals((int) 'x', a.getInputStream().read());
+			assertEquals((int) 'x', b.getInputStream().read());
+			a.close();
+			b.close();
+			c.close();
+		} finally {
+			handler.release.countDown();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testQueueOverload() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9997);
+		BlockingHandler handler = new BlockingHandler();
+		Server server = new Server(listen, handler);
+		server.setMaxConnections(1);
+		server.setMaxQueued(1);
+		server.start();
+		try {
+			Socket a = new Socket("localhost", 9997);
+			waitFor(handler.handled, 1);
+			Socket b = new Socket("localhost", 9997);
+			Socket c = new Socket("localhost", 9997);
+			c.setSoTimeout(5000);
+			assertEquals(-1, c.getInputStream().read());
+			assertEquals(1, server.getQueuedConnections());
+			assertEquals(1L, server.getShedConnections());
+			handler.release.countDown();
+			assertEquals((int) 'x', a.getInputStream().read());
+			b.setSoTimeout(5000);
+			assertEquals((int) 'x', b.getInputStream().read());
+			assertEquals(2, handler.handled.get());
+			a.close();
+			b.close();
+			c.close();
+		} finally {
+			handler.release.countDown();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMaxConnectionsPerSource() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9997);
+		BlockingHandler handler = new BlockingHandler();
+		Server server = new Server(listen, handler);
+		server.setMaxConnectionsPerSource(1);
+		server.setOverloadPolicy(Server.OverloadPolicy.CLOSE);
+		server.start();
+		try {
+			Socket a = new Socket("localhost", 9997);
+			waitFor(handler.handled, 1);
+			Socket b = new Socket("localhost", 9997);
+			b.setSoTimeout(5000);
+			assertEquals(-1, b.getInputStream().read());
+			assertEquals(1L, server.getShedConnections());
+			handler.release.countDown();
+			assertEquals((int) 'x', a.getInputStream().read());
+			a.close();
+			b.close();
+		} finally {
+			handler.release.countDown();
+			server.stop();
+		}
+	}
+
+}
@@ -199,4 +199,48 @@ public class MessageHeaderTest {
 		assertEquals(5, m.getHeaderLines().length);
 		assertEquals(3, m.getHeaders().length);
 	}
+
+	@Test
+	public void testLineOffsets() throws Exception {
+		byte[] header = AsciiString.getBytes(get3 + CRLFCRLF);
+		int[] offsets = { 0, 14, 16, 31, 33, 44, 46, 46 };
+		MutableMessageHeader.Impl m = new MutableMessageHeader.Impl();
+		m.setHeader(header, offsets);
+		assertEquals(get, m.getStartLine());
+		assertEquals("localhost", m.getHeader("Host"));
+		assertEquals("a=b", m.getHeader("Cookie"));
+		m.setHeader("Cookie", "c=d");
+		assertEquals("c=d", m.getHeader("Cookie"));
+		assertEquals(get3.replace("a=b", "c=d") + CRLFCRLF, AsciiString
+				.create(m.getHeader()));
+	}
+
+	@Test
+	public void testSplice() throws Exception {
+		MutableMessageHeader.Impl m = new MutableMessageHeader.Impl();
+		m.setHeader(AsciiString.getBytes(post + CRLFCRLF));
+		m.setHeader("content-length", "5");
+		m.setHeader("X-New", "x");
+		assertEquals("x", m.deleteHeader("x-new"));
+		m.setStartLine("PUT / HTTP/1.1");
+		m.addHeader("Cookie", "c=d");
+		assertEquals(2, m.getHeaders("cookie").length);
+		assertEquals("PUT / HTTP/1.1\r\nHost: localhost\r\nCookie: a=b\r\n"
+				+ "content-length: 5\r\nCookie: c=d" + CRLFCRLF, AsciiString
+				.create(m.getHeader()));
+
+		// no separator, and no trailing blank line
+		m.setHeader(AsciiString.getBytes(get + CRLF + "Broken" + CRLF
+				+ "Host:localhost" + CRLF));
+		assertEquals(get, m.getStartLine());
+		NamedValue[] headers = m.getHeaders();
+		assertEquals(1, headers.length);
+		assertEquals("Broken", headers[0].getName());
+		assertEquals(null, headers[0].getValue());
+		assertEquals(null, m.getHeader("Host"));
+		m.addHeader("Host", "localhost");
+		assertEquals(get + CRLF + "Broken" + CRLF + "Host: localhost"
+				+ CRLFCRLF, AsciiString.create(m.getHeader()));
+	}
+
 }
@@ -66,4 +66,19 @@ public class MutableResponseHeaderTest {
 		Assert.assertEquals("new location", resp.getHeader("Location"));
 		System.out.write(resp.getHeader());
 	}
+
+	@Test
+	public void test100ContinueFields() throws Exception {
+		MutableResponseHeader.Impl resp = new MutableResponseHeader.Impl();
+		resp.setHeader(AsciiString.getBytes(cont + ok));
+		Assert.assertNull(resp.getHeader("Header"));
+		Assert.assertEquals("text/html", resp.getHeader("content-type"));
+		Assert.assertEquals(1, resp.getHeaders().length);
+		resp.setHeader("Content-Type", "text/plain");
+		resp.addHeader("Content-Length", "0");
+		Assert.assertEquals("text/plain", resp.deleteHeader("content-type"));
+		Assert.assertEquals(cont + "HTTP/1.0 200 Ok\r\n"
+				+ "Content-Length: 0\r\n\r\n", AsciiString.create(resp
+				.getHeader()));
+	}
 }
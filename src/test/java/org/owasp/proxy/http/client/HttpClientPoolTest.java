@@ -0,0 +1,161 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.owasp.proxy.daemon.ConnectionHandler;
+import org.owasp.proxy.daemon.Server;
+import org.owasp.proxy.io.CopyInputStream;
+import org.owasp.proxy.util.AsciiString;
+
+public class HttpClientPoolTest {
+
+	private static Server server;
+
+	private static AtomicInteger connections = new AtomicInteger();
+
+	private static InetSocketAddress target = new InetSocketAddress(
+			"localhost", 9995);
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		server = new Server(target, new ConnectionHandler() {
+			public void handleConnection(Socket socket) throws IOException {
+				connections.incrementAndGet();
+				CopyInputStream in = new CopyInputStream(socket
+						.getInputStream(), new ByteArrayOutputStream());
+				OutputStream out = socket.getOutputStream();
+				while (true) {
+					String line;
+					do {
+						line = in.readLine();
+					} while (line != null && !"".equals(line));
+					if (line == null)
+						return;
+					out.write(AsciiString
+							.getBytes("HTTP/1.1 200 Ok\r\nContent-Length: 2\r\n\r\nok"));
+					out.flush();
+				}
+			}
+		});
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+	}
+
+	private void get(HttpClient client) throws Exception {
+		client.connect(target, false);
+		client.sendRequestHeader(AsciiString
+				.getBytes("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+		client.getResponseHeader();
+		InputStream content = client.getResponseContent();
+		while (content.read() > -1)
+			;
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		HttpClientPool pool = new HttpClientPool();
+		int before = connections.get();
+		HttpClient client = pool.lease(target, false);
+		get(client);
+		pool.release(client);
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(0, pool.getLeasedCount());
+
+		HttpClient again = pool.lease(target, false);
+		assertSame(client, again);
+		get(again);
+		assertEquals("Connection was not reused", before + 1, connections
+				.get());
+
+		HttpClient other = pool.lease(target, true);
+		assertNotSame(client, other);
+		assertEquals(2, pool.getLeasedCount());
+		pool.discard(other);
+		pool.release(again);
+		pool.close();
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testIncompleteNotReused() throws Exception {
+		HttpClientPool pool = new HttpClientPool();
+		HttpClient client = pool.lease(target, false);
+		client.connect(target, false);
+		client.sendRequestHeader(AsciiString
+				.getBytes("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+		pool.release(client);
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(HttpClient.State.DISCONNECTED, client.getState());
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+		HttpClientPool pool = new HttpClientPool();
+		pool.setIdleTimeout(100);
+		HttpClient client = pool.lease(target, false);
+		get(client);
+		pool.release(client);
+		Thread.sleep(200);
+		HttpClient again = pool.lease(target, false);
+		assertNotSame(client, again);
+		assertEquals(HttpClient.State.DISCONNECTED, client.getState());
+		pool.release(again);
+	}
+
+	@Test
+	public void testMaxPerRoute() throws Exception {
+		HttpClientPool pool = new HttpClientPool();
+		pool.setMaxPerRoute(1);
+		pool.setLeaseTimeout(100);
+		HttpClient client = pool.lease(target, false);
+		try {
+			pool.lease(target, false);
+			fail("Expected the lease to time out");
+		} catch (IOException expected) {
+		}
+		pool.release(client);
+		client = pool.lease(target, false);
+		assertEquals(1, pool.getLeasedCount());
+		pool.release(client);
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.proxy.http.BufferedRequest;
+import org.owasp.proxy.http.BufferedResponse;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.util.AsciiString;
+
+public class FileMessageDAOTest {
+
+	private File directory;
+
+	private FileMessageDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("messages", "");
+		directory.delete();
+		dao = new FileMessageDAO(directory);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.close();
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			files[i].delete();
+		directory.delete();
+	}
+
+	private int save(int i, byte[] content) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setSsl(i % 2 == 0);
+		request.setTime(i);
+		request.setHeader(AsciiString.getBytes("GET /" + i
+				+ " HTTP/1.0\r\nHost: localhost\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString
+				.getBytes("HTTP/1.0 200 Ok\r\nContent-Type: text/plain\r\n\r\n"));
+		response.setHeaderTime(i + 1);
+		response.setContentTime(i + 2);
+		response.setContent(content);
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	private byte[] content(int i) {
+		byte[] content = new byte[200];
+		Arrays.fill(content, (byte) ('a' + i % 26));
+		return content;
+	}
+
+	private void reopen() throws Exception {
+		dao.close();
+		dao = new FileMessageDAO(directory);
+	}
+
+	private void verify(int id, int i) {
+		Conversation c = dao.getConversation(id);
+		BufferedRequest request = dao.loadRequest(c.getRequestId());
+		assertEquals("GET /" + i + " HTTP/1.0\r\nHost: localhost\r\n\r\n",
+				AsciiString.create(request.getHeader()));
+		assertEquals(i % 2 == 0, request.isSsl());
+		assertEquals((long) i, request.getTime());
+		assertEquals(80, request.getTarget().getPort());
+		assertNull(request.getContent());
+		BufferedResponse response = dao.loadResponse(c.getResponseId());
+		assertEquals((long) i + 1, response.getHeaderTime());
+		assertEquals((long) i + 2, response.getContentTime());
+		assertTrue(Arrays.equals(content(i), response.getContent()));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		int[] ids = new int[10];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = save(i, content(i));
+		for (int i = 0; i < ids.length; i++)
+			verify(ids[i], i);
+		ConversationSummary summary = dao.getConversationSummary(ids[3]);
+		assertEquals("/3", summary.getRequestResource());
+		assertEquals("200", summary.getResponseStatus());
+		assertEquals(200, summary.getResponseContentSize());
+		assertEquals(3, dao.listSummaries(ids[6], -1).size());
+		assertEquals(ids[7], (int) dao.listSummaries(ids[6], 2).get(0)
+				.getId());
+
+		ConversationQuery query = new ConversationQuery();
+		query.setFrom(3);
+		query.setTo(6);
+		assertEquals(3, dao.findSummaries(query).size());
+		query.setPathPrefix("/4");
+		assertEquals(ids[4], dao.findConversations(query).get(0).intValue());
+		query = new ConversationQuery();
+		query.setHost("localhost");
+		query.setContentType("TEXT/");
+		query.setLimit(4);
+		assertEquals(4, dao.findConversations(query).size());
+		query.setStatus("404");
+		assertEquals(0, dao.findSummaries(query).size());
+
+		int streamed = dao.saveMessageContent(new ByteArrayInputStream(
+				content(7)));
+		assertTrue(Arrays.equals(content(7), dao.loadMessageContent(streamed)));
+		assertEquals(200, dao.getMessageContentSize(streamed));
+
+		reopen();
+		assertEquals(10, dao.listConversations().size());
+		for (int i = 0; i < ids.length; i++)
+			verify(ids[i], i);
+		assertTrue(Arrays.equals(content(7), dao.loadMessageContent(streamed)));
+		assertEquals(ids[9] + 1, save(10, content(10)));
+	}
+
+	@Test
+	public void testRollingAndCompaction() throws Exception {
+		dao.setSegmentSize(2048);
+		int[] ids = new int[40];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = save(i, content(i));
+		int segments = dao.getSegmentCount();
+		assertTrue(segments > 5);
+		for (int i = 0; i < ids.length; i++)
+			if (i % 4 != 0)
+				assertTrue(dao.deleteConversation(ids[i]));
+		assertFalse(dao.deleteConversation(ids[1]));
+		assertTrue(dao.compact() > 0);
+		assertTrue(dao.getSegmentCount() < segments);
+
+		reopen();
+		assertEquals(10, dao.listConversations().size());
+		for (int i = 0; i < ids.length; i += 4)
+			verify(ids[i], i);
+		assertNull(dao.getConversation(ids[1]));
+		// compacting again should clean up the remaining tombstones
+		dao.compact();
+		reopen();
+		assertEquals(10, dao.listConversations().size());
+		assertNull(dao.getConversation(ids[2]));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buff = new byte[7];
+		int got;
+		while ((got = in.read(buff)) > -1)
+			out.write(buff, 0, got);
+		in.close();
+		return AsciiString.create(out.toByteArray());
+	}
+
+	@Test
+	public void testContentStream() throws Exception {
+		dao.setSegmentSize(2048);
+		String text = "0123456789abcdefghij";
+		int id = dao.saveMessageContent(AsciiString.getBytes(text));
+		// still in the active segment, which is read from the file
+		assertEquals(text, read(dao.loadMessageContentStream(id, 0, -1)));
+		assertEquals("5678", read(dao.loadMessageContentStream(id, 5, 4)));
+		assertEquals("j", read(dao.loadMessageContentStream(id, 19, 10)));
+		assertEquals("", read(dao.loadMessageContentStream(id, 25, -1)));
+		// reading between writes to the active segment
+		for (int i = 0; i < 20; i++) {
+			save(i, content(i));
+			assertEquals(text, AsciiString.create(dao.loadMessageContent(id)));
+		}
+		assertTrue(dao.getSegmentCount() > 1);
+		// now in a sealed segment, which is mapped
+		assertEquals(text, read(dao.loadMessageContentStream(id, 0, -1)));
+		assertEquals("5678", read(dao.loadMessageContentStream(id, 5, 4)));
+		reopen();
+		assertEquals("abcdefghij", read(dao.loadMessageContentStream(id, 10,
+				-1)));
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		int first = save(0, content(0));
+		int second = save(1, content(1));
+		dao.close();
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		// lose the end of the last conversation record
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		dao = new FileMessageDAO(directory);
+		assertEquals(1, dao.listConversations().size());
+		verify(first, 0);
+		assertNull(dao.getConversation(second));
+		int third = save(2, content(2));
+		verify(third, 2);
+		reopen();
+		assertEquals(2, dao.listConversations().size());
+		verify(third, 2);
+	}
+
+}
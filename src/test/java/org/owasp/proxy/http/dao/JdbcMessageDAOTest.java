@@ -25,10 +25,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -144,6 +151,368 @@ public class JdbcMessageDAOTest {
 		dump();
 	}
 
+	@Test
+	public void testSaveConversations() {
+		int before = dao.listConversations().size();
+		List<MutableBufferedRequest> requests = new ArrayList<MutableBufferedRequest>();
+		List<MutableBufferedResponse> responses = new ArrayList<MutableBufferedResponse>();
+		for (int i = 0; i < 3; i++) {
+			MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+			request.setTarget(InetSocketAddress.createUnresolved("localhost",
+					80));
+			request.setHeader(AsciiString.getBytes("POST /" + i
+					+ " HTTP/1.0\r\nHost: localhost\r\n\r\n"));
+			request.setContent(AsciiString.getBytes("request " + i));
+			request.setTime(i);
+			MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+			response.setHeader(AsciiString
+					.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+			if (i != 1)
+				response.setContent(AsciiString.getBytes("response " + i));
+			requests.add(request);
+			responses.add(response);
+		}
+		dao.saveConversations(requests, responses);
+
+		assertEquals(before + 3, dao.listConversations().size());
+		for (int i = 0; i < 3; i++) {
+			MutableBufferedRequest request = requests.get(i);
+			MutableBufferedResponse response = responses.get(i);
+			RequestHeader reqh = dao.loadRequestHeader(request.getId());
+			assertTrue(Arrays.equals(request.getHeader(), reqh.getHeader()));
+			assertEquals(request.getTime(), reqh.getTime());
+			assertTrue(Arrays.equals(request.getContent(), dao
+					.loadMessageContent(dao.getMessageContentId(request
+							.getId()))));
+			byte[] content = dao.loadMessageContent(dao
+					.getMessageContentId(response.getId()));
+			if (i == 1)
+				assertNull(content);
+			else
+				assertTrue(Arrays.equals(response.getContent(), content));
+		}
+	}
+
+	@Test
+	public void testListSummaries() {
+		int first = saveConversation("/summary?a=1", AsciiString
+				.getBytes("first"));
+		List<MutableBufferedRequest> requests = new ArrayList<MutableBufferedRequest>();
+		List<MutableBufferedResponse> responses = new ArrayList<MutableBufferedResponse>();
+		for (int i = 0; i < 3; i++) {
+			MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+			request.setTarget(InetSocketAddress.createUnresolved("example.com",
+					443));
+			request.setSsl(true);
+			request.setHeader(AsciiString.getBytes("POST /batch/" + i
+					+ " HTTP/1.0\r\nContent-Type: text/plain\r\n\r\n"));
+			request.setContent(AsciiString.getBytes("body " + i));
+			request.setTime(1000 * (i + 1));
+			MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+			response.setHeader(AsciiString
+					.getBytes("HTTP/1.0 404 Not found\r\n\r\n"));
+			requests.add(request);
+			responses.add(response);
+		}
+		dao.saveConversations(requests, responses);
+
+		ConversationSummary cs = dao.getConversationSummary(first);
+		assertEquals("GET", cs.getRequestMethod());
+		assertEquals("/summary?a=1", cs.getRequestResource());
+		assertEquals("200", cs.getResponseStatus());
+		assertEquals(5, cs.getResponseContentSize());
+		assertEquals(0, cs.getRequestContentSize());
+
+		List<ConversationSummary> summaries = dao.listSummaries(first, 2);
+		assertEquals(2, summaries.size());
+		cs = summaries.get(0);
+		assertEquals(requests.get(0).getId(), (int) cs.getRequestId());
+		assertEquals(responses.get(0).getId(), (int) cs.getResponseId());
+		assertEquals("POST", cs.getRequestMethod());
+		assertEquals("/batch/0", cs.getRequestResource());
+		assertEquals("example.com", cs.getTarget().getHostName());
+		assertEquals(443, cs.getTarget().getPort());
+		assertTrue(cs.isSsl());
+		assertEquals("text/plain", cs.getRequestContentType());
+		assertEquals(6, cs.getRequestContentSize());
+		assertEquals("404", cs.getResponseStatus());
+		assertEquals("Not found", cs.getResponseReason());
+		assertEquals(1000L, cs.getRequestSubmissionTime());
+		assertTrue(summaries.get(1).getId() > cs.getId());
+
+		assertEquals(3, dao.listSummaries(first, -1).size());
+		assertTrue(dao.deleteConversation((int) cs.getId()));
+		assertEquals(2, dao.listSummaries(first, -1).size());
+	}
+
+	@Test
+	public void testFindSummaries() {
+		int first = saveConversation("/find/start", AsciiString
+				.getBytes("start"));
+		List<MutableBufferedRequest> requests = new ArrayList<MutableBufferedRequest>();
+		List<MutableBufferedResponse> responses = new ArrayList<MutableBufferedResponse>();
+		for (int i = 0; i < 4; i++) {
+			MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+			request.setTarget(InetSocketAddress.createUnresolved(
+					i % 2 == 0 ? "a.example.com" : "b.example.com",
+					i < 2 ? 80 : 8080));
+			request.setHeader(AsciiString.getBytes((i == 3 ? "POST" : "GET")
+					+ " /find/" + (i < 2 ? "img_" : "img%") + i
+					+ " HTTP/1.0\r\n\r\n"));
+			request.setTime(1000 * (i + 1));
+			MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+			response.setHeader(AsciiString.getBytes("HTTP/1.0 "
+					+ (i == 1 ? "404 Not found" : "200 Ok")
+					+ "\r\nContent-Type: "
+					+ (i == 2 ? "image/png" : "text/html; charset=utf-8")
+					+ "\r\n\r\n"));
+			requests.add(request);
+			responses.add(response);
+		}
+		dao.saveConversations(requests, responses);
+
+		ConversationQuery query = new ConversationQuery();
+		query.setSince(first);
+		assertEquals(4, dao.findSummaries(query).size());
+
+		query.setHost("a.example.com");
+		List<ConversationSummary> summaries = dao.findSummaries(query);
+		assertEquals(2, summaries.size());
+		assertEquals("/find/img_0", summaries.get(0).getRequestResource());
+		query.setPort(8080);
+		assertEquals(1, dao.findSummaries(query).size());
+		query.setPort(0);
+		query.setHost(null);
+
+		query.setMethod("POST");
+		assertEquals(1, dao.findConversations(query).size());
+		query.setMethod(null);
+
+		query.setStatus("404");
+		summaries = dao.findSummaries(query);
+		assertEquals(1, summaries.size());
+		assertEquals("b.example.com", summaries.get(0).getTarget()
+				.getHostName());
+		query.setStatus(null);
+
+		query.setContentType("text/html");
+		assertEquals(3, dao.findSummaries(query).size());
+		// matched without regard to case, as by ConversationQuery.matches()
+		query.setContentType("Text/HTML");
+		summaries = dao.findSummaries(query);
+		assertEquals(3, summaries.size());
+		assertTrue(query.matches(summaries.get(0)));
+		query.setContentType(null);
+
+		// LIKE wildcards in the prefix are matched literally
+		query.setPathPrefix("/find/img_");
+		assertEquals(2, dao.findSummaries(query).size());
+		query.setPathPrefix("/find/img%");
+		assertEquals(2, dao.findSummaries(query).size());
+		query.setPathPrefix(null);
+
+		query.setFrom(2000);
+		query.setTo(4000);
+		List<Integer> ids = dao.findConversations(query);
+		assertEquals(2, ids.size());
+		assertTrue(ids.get(0).intValue() < ids.get(1).intValue());
+		query.setLimit(1);
+		assertEquals(1, dao.findSummaries(query).size());
+	}
+
+	private int saveConversation(String path, byte[] content) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setHeader(AsciiString.getBytes("GET " + path
+				+ " HTTP/1.0\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		response.setContent(content);
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	@Test
+	public void testContentDeduplication() {
+		byte[] cont = AsciiString.getBytes("var shared = true;");
+		int c1 = saveConversation("/a.js", cont);
+		int c2 = saveConversation("/b.js", cont);
+		int contentId = dao.getMessageContentId(dao.getConversation(c1)
+				.getResponseId());
+		assertEquals(contentId, dao.getMessageContentId(dao
+				.getConversation(c2).getResponseId()));
+
+		// streamed content is only recognised once it has been written
+		int streamed = dao.saveMessageContent(new ByteArrayInputStream(cont));
+		assertEquals(contentId, streamed);
+		int other = dao.saveMessageContent(new ByteArrayInputStream(AsciiString
+				.getBytes("var shared = false;")));
+		assertTrue(other != contentId);
+		assertEquals(19, dao.getMessageContentSize(other));
+
+		assertTrue(dao.deleteConversation(c1));
+		assertTrue(Arrays.equals(cont, dao.loadMessageContent(contentId)));
+		assertTrue(dao.deleteConversation(c2));
+		assertTrue(Arrays.equals(cont, dao.loadMessageContent(contentId)));
+		assertTrue(dao.deleteConversation(saveConversation("/c.js", cont)));
+		// the reference taken by the streamed save is still outstanding
+		assertTrue(Arrays.equals(cont, dao.loadMessageContent(contentId)));
+		assertTrue(!dao.deleteConversation(c1));
+
+		int c3 = saveConversation("/d.js", AsciiString.getBytes("unique"));
+		int uniqueId = dao.getMessageContentId(dao.getConversation(c3)
+				.getResponseId());
+		assertTrue(dao.deleteConversation(c3));
+		assertNull(dao.loadMessageContent(uniqueId));
+	}
+
+	@Test
+	public void testUpgradeTables() throws Exception {
+		DriverManagerDataSource old = new DriverManagerDataSource();
+		old.setDriverClassName("org.h2.Driver");
+		old.setUrl("jdbc:h2:mem:upgrade;DB_CLOSE_DELAY=-1");
+		old.setUsername("sa");
+		old.setPassword("");
+		JdbcMessageDAO upgraded = new JdbcMessageDAO();
+		upgraded.setDataSource(old);
+		try {
+			// the contents table as it was before deduplication and
+			// compression were introduced
+			upgraded.getJdbcTemplate().execute(
+					"CREATE TABLE contents ("
+							+ "id INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,"
+							+ "content LONGVARBINARY NOT NULL,"
+							+ "size INTEGER NOT NULL)");
+			upgraded.getJdbcTemplate().execute(
+					"INSERT INTO contents (content, size) VALUES (X'6f6c64', 3)");
+			upgraded.createTables();
+			// and again, once it is up to date
+			upgraded.createTables();
+
+			assertEquals("old", AsciiString.create(upgraded
+					.loadMessageContent(1)));
+			byte[] cont = AsciiString.getBytes("new content");
+			int id = upgraded.saveMessageContent(cont);
+			assertEquals(id, upgraded.saveMessageContent(cont));
+			assertEquals(id, upgraded.saveMessageContent(new ByteArrayInputStream(
+					cont)));
+			assertTrue(Arrays.equals(cont, upgraded.loadMessageContent(id)));
+			assertEquals(3, upgraded.getJdbcTemplate().queryForInt(
+					"SELECT refs FROM contents WHERE id = " + id));
+		} finally {
+			upgraded.getJdbcTemplate().execute("SHUTDOWN");
+		}
+	}
+
+	@Test
+	public void testSummaryBackfill() throws Exception {
+		int id = saveConversation("/unsummarized", null);
+		// as if recorded before summaries were kept
+		dao.getJdbcTemplate().execute("DELETE FROM summaries WHERE id = " + id);
+		assertTrue(dao.listSummaries(id - 1, -1).isEmpty());
+		dao.createTables();
+		List<ConversationSummary> summaries = dao.listSummaries(id - 1, -1);
+		assertEquals(1, summaries.size());
+		assertEquals("/unsummarized", summaries.get(0).getRequestResource());
+	}
+
+	@Test
+	public void testCompressedContent() throws Exception {
+		StringBuilder buff = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			buff.append("<tr><td>row ").append(i).append("</td></tr>\n");
+		byte[] cont = AsciiString.getBytes(buff.toString());
+		dao.setCompressContent(true);
+		try {
+			int id = dao.saveMessageContent(cont);
+			assertTrue(Arrays.equals(cont, dao.loadMessageContent(id)));
+			assertEquals(cont.length, dao.getMessageContentSize(id));
+			assertEquals(1, dao.getJdbcTemplate().queryForInt(
+					"SELECT codec FROM contents WHERE id = " + id));
+			int stored = dao.getJdbcTemplate().queryForInt(
+					"SELECT LENGTH(content) FROM contents WHERE id = " + id);
+			assertTrue(stored < cont.length);
+
+			id = dao.saveMessageContent(new ByteArrayInputStream(AsciiString
+					.getBytes(buff.toString() + "streamed")));
+			assertEquals(buff.toString() + "streamed", AsciiString.create(dao
+					.loadMessageContent(id)));
+			assertEquals(1, dao.getJdbcTemplate().queryForInt(
+					"SELECT codec FROM contents WHERE id = " + id));
+
+			// streamed content that is too small, or already compressed, is
+			// stored as is
+			id = dao.saveMessageContent(new ByteArrayInputStream(AsciiString
+					.getBytes("short and streamed")));
+			assertEquals(0, dao.getJdbcTemplate().queryForInt(
+					"SELECT codec FROM contents WHERE id = " + id));
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+			gzip.write(AsciiString.getBytes(buff.toString() + "gzipped"));
+			gzip.close();
+			id = dao.saveMessageContent(new ByteArrayInputStream(gzipped
+					.toByteArray()));
+			assertEquals(0, dao.getJdbcTemplate().queryForInt(
+					"SELECT codec FROM contents WHERE id = " + id));
+			assertTrue(Arrays.equals(gzipped.toByteArray(), dao
+					.loadMessageContent(id)));
+
+			// already encoded content is stored as is
+			MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+			response.setHeader(AsciiString
+					.getBytes("HTTP/1.0 200 Ok\r\nContent-Encoding: gzip\r\n\r\n"));
+			response.setContent(AsciiString.getBytes(buff.toString()
+					+ "encoded"));
+			dao.saveResponse(response);
+			id = dao.getMessageContentId(response.getId());
+			assertEquals(0, dao.getJdbcTemplate().queryForInt(
+					"SELECT codec FROM contents WHERE id = " + id));
+			assertTrue(Arrays.equals(response.getContent(), dao
+					.loadMessageContent(id)));
+		} finally {
+			dao.setCompressContent(false);
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buff = new byte[7];
+		int got;
+		while ((got = in.read(buff)) > -1)
+			out.write(buff, 0, got);
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testContentStream() throws Exception {
+		StringBuilder buff = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			buff.append("line ").append(i).append("\n");
+		String text = buff.toString();
+		int plain = dao.saveMessageContent(AsciiString.getBytes(text));
+		dao.setCompressContent(true);
+		int compressed;
+		try {
+			compressed = dao.saveMessageContent(AsciiString.getBytes(text
+					+ "compressed"));
+		} finally {
+			dao.setCompressContent(false);
+		}
+		assertEquals(text, AsciiString.create(read(dao
+				.loadMessageContentStream(plain, 0, -1))));
+		assertEquals(text.substring(10, 30), AsciiString.create(read(dao
+				.loadMessageContentStream(plain, 10, 20))));
+		assertEquals(text.substring(text.length() - 5), AsciiString
+				.create(read(dao.loadMessageContentStream(plain, text
+						.length() - 5, 100))));
+		assertEquals("ompressed", AsciiString.create(read(dao
+				.loadMessageContentStream(compressed, text.length() + 1, -1))));
+		assertEquals(0, read(dao.loadMessageContentStream(plain, 0, 0)).length);
+		assertNull(dao.loadMessageContentStream(-5, 0, -1));
+	}
+
 	private static void dump(String sql) {
 		logger.fine("\n" + sql);
 		SqlRowSet rs = dao.getJdbcTemplate().queryForRowSet(sql);
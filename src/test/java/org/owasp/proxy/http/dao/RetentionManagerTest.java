@@ -0,0 +1,220 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class RetentionManagerTest {
+
+	private static int database = 0;
+
+	private JdbcMessageDAO dao;
+
+	private RetentionManager rm;
+
+	@Before
+	public void setUp() throws Exception {
+		Logger dslogger = Logger.getLogger(DriverManagerDataSource.class
+				.getName());
+		dslogger.setLevel(Level.OFF);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:retention" + (database++)
+				+ ";DB_CLOSE_DELAY=-1");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dao = new JdbcMessageDAO();
+		dao.setDataSource(dataSource);
+		dao.createTables();
+		rm = new RetentionManager(dao);
+		rm.setInterval(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		rm.stop();
+		dao.getJdbcTemplate().execute("SHUTDOWN");
+	}
+
+	private MutableBufferedRequest request(String host, long time) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved(host, 80));
+		request.setHeader(AsciiString.getBytes("GET / HTTP/1.0\r\n\r\n"));
+		request.setTime(time);
+		return request;
+	}
+
+	private int save(String host, long time, String content) {
+		MutableBufferedRequest request = request(host, time);
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		response.setContent(AsciiString.getBytes(content));
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	@Test
+	public void testMaxConversations() throws Exception {
+		int[] ids = new int[10];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = save("a", 1000, "content " + i);
+		rm.setMaxConversations(4);
+		assertEquals(3, rm.prune(3));
+		assertEquals(7, dao.getConversationCount());
+		assertNull(dao.getConversation(ids[2]));
+		rm.prune(10);
+		assertEquals(4, dao.getConversationCount());
+		assertTrue(dao.getConversation(ids[6]) != null);
+		assertEquals(0, rm.prune(10));
+	}
+
+	@Test
+	public void testMaxAgeAndHost() throws Exception {
+		long now = System.currentTimeMillis();
+		int old = save("a", now - 60000, "old");
+		for (int i = 0; i < 5; i++)
+			save("b", now, "b" + i);
+		int recent = save("a", now, "recent");
+		rm.setMaxAge(30000);
+		rm.setMaxConversationsPerHost(3);
+		rm.prune(10);
+		assertNull(dao.getConversation(old));
+		assertTrue(dao.getConversation(recent) != null);
+		assertEquals(1, dao.listOldestConversations("a", -1).size());
+		assertEquals(3, dao.listOldestConversations("b", -1).size());
+	}
+
+	@Test
+	public void testPerHostBatch() throws Exception {
+		String[] hosts = { "a", "b", "c" };
+		for (int h = 0; h < hosts.length; h++)
+			for (int i = 0; i < 5; i++)
+				save(hosts[h], 1000, hosts[h] + i);
+		rm.setMaxConversationsPerHost(2);
+		// the batch is shared by all the hosts over the limit
+		assertEquals(4, rm.prune(4));
+		assertEquals(11, dao.getConversationCount());
+		rm.prune(100);
+		assertEquals(6, dao.getConversationCount());
+	}
+
+	@Test
+	public void testMaxBytes() throws Exception {
+		for (int i = 0; i < 10; i++)
+			save("a", 1000, "0123456789" + i);
+		assertEquals(110L, dao.getContentBytes());
+		rm.setMaxBytes(50);
+		rm.prune(100);
+		assertTrue(dao.getContentBytes() <= 50);
+		assertEquals(4, dao.getConversationCount());
+	}
+
+	@Test
+	public void testOrphans() throws Exception {
+		MutableBufferedRequest request = request("a", 1000);
+		request.setContent(AsciiString.getBytes("orphan"));
+		dao.saveRequest(request);
+		int contentId = dao.getMessageContentId(request.getId());
+		int unused = dao.saveMessageContent(AsciiString.getBytes("unused"));
+		int kept = save("a", 1000, "kept");
+
+		rm.setOrphanAge(0);
+		// the first pass only sets the watermark
+		rm.prune(10);
+		assertTrue(dao.loadRequestHeader(request.getId()) != null);
+		rm.prune(10);
+		assertNull(dao.loadRequestHeader(request.getId()));
+		assertNull(dao.loadMessageContent(contentId));
+		assertNull(dao.loadMessageContent(unused));
+		assertTrue(dao.getConversation(kept) != null);
+		assertTrue(dao.loadResponse(dao.getConversation(kept).getResponseId())
+				.getContent() != null);
+	}
+
+	@Test
+	public void testInFlightMessages() throws Exception {
+		// a request whose response has not completed yet
+		MutableBufferedRequest request = request("a", 1000);
+		dao.saveRequest(request);
+		rm.setOrphanAge(60000);
+		for (int i = 0; i < 3; i++)
+			rm.prune(10);
+		assertTrue(dao.loadRequestHeader(request.getId()) != null);
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		dao.saveResponse(response);
+		assertTrue(dao.saveConversation(request.getId(), response.getId()) > 0);
+	}
+
+	@Test
+	public void testMissingSummaries() throws Exception {
+		for (int i = 0; i < 5; i++)
+			save("a", 1000, "a" + i);
+		for (int i = 0; i < 5; i++)
+			save("b", 1000, "b" + i);
+		// as if recorded before summaries were kept
+		dao.getJdbcTemplate().execute("DELETE FROM summaries");
+		rm.setMaxConversationsPerHost(3);
+		rm.prune(100);
+		rm.prune(100);
+		assertEquals(3, dao.listOldestConversations("a", -1).size());
+		assertEquals(3, dao.listOldestConversations("b", -1).size());
+		assertEquals(6, dao.getConversationCount());
+
+		// summaries without a host are limited too, rather than never
+		// matching the host they are counted under
+		dao.getJdbcTemplate().execute("UPDATE summaries SET host = NULL");
+		rm.setMaxConversationsPerHost(2);
+		rm.prune(100);
+		assertEquals(2, dao.getConversationCount());
+		assertEquals(0, rm.prune(100));
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+		for (int i = 0; i < 20; i++)
+			save("a", 1000, "content " + i);
+		rm.setMaxConversations(5);
+		rm.setBatchSize(4);
+		rm.start();
+		for (int i = 0; i < 100 && dao.getConversationCount() > 5; i++)
+			Thread.sleep(50);
+		rm.stop();
+		assertEquals(5, dao.getConversationCount());
+	}
+
+}
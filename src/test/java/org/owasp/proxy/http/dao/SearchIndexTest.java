@@ -0,0 +1,196 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class SearchIndexTest {
+
+	private static int database = 0;
+
+	private JdbcMessageDAO dao;
+
+	private SearchIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		Logger dslogger = Logger.getLogger(DriverManagerDataSource.class
+				.getName());
+		dslogger.setLevel(Level.OFF);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:search" + (database++)
+				+ ";DB_CLOSE_DELAY=-1");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dao = new JdbcMessageDAO();
+		dao.setDataSource(dataSource);
+		dao.createTables();
+		index = new SearchIndex(dao);
+		index.setInterval(10);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		index.stop();
+		dao.getJdbcTemplate().execute("SHUTDOWN");
+	}
+
+	private int save(String requestContent, String responseHeader,
+			byte[] responseContent) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setHeader(AsciiString.getBytes("POST / HTTP/1.0\r\n\r\n"));
+		request.setContent(AsciiString.getBytes(requestContent));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes(responseHeader));
+		response.setContent(responseContent);
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	private int save(String requestContent, String responseContent) {
+		return save(requestContent, "HTTP/1.0 200 Ok\r\n\r\n", AsciiString
+				.getBytes(responseContent));
+	}
+
+	@Test
+	public void testTokenize() {
+		assertEquals(Arrays.asList("user", "example", "com", "42"),
+				SearchIndex.tokenize("User@Example.COM, 42!"));
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		int login = save("user=alice&password=s3cret",
+				"Welcome back, alice@example.com");
+		int other = save("user=bob", "Hello bob, the secret is elsewhere");
+		ByteArrayOutputStream gz = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(gz);
+		out.write(AsciiString.getBytes("api_key=AKIA1234 for alice"));
+		out.close();
+		int compressed = save("q=1",
+				"HTTP/1.0 200 Ok\r\nContent-Encoding: gzip\r\n\r\n", gz
+						.toByteArray());
+
+		assertEquals(3, index.update(10));
+		assertEquals(compressed, index.getIndexedConversation());
+
+		assertEquals(Arrays.asList(login, compressed), index.search("ALICE",
+				-1));
+		assertEquals(Arrays.asList(login), index.search("alice s3cret", -1));
+		assertEquals(Arrays.asList(login), index.search("alice@example.com",
+				-1));
+		assertEquals(Arrays.asList(compressed), index.search("akia1234", -1));
+		assertEquals(Arrays.asList(other), index.search("\"the secret\"", -1));
+		assertTrue(index.search("\"secret the\"", -1).isEmpty());
+		assertTrue(index.search("nothing", -1).isEmpty());
+		assertEquals(1, index.search("alice", 1).size());
+
+		// phrases do not span the request and response
+		assertTrue(index.search("\"s3cret welcome\"", -1).isEmpty());
+
+		dao.deleteConversation(login);
+		assertEquals(Arrays.asList(compressed), index.search("alice", -1));
+	}
+
+	@Test
+	public void testLargeContentNotLoaded() throws Exception {
+		int small = save("q=1", "small body");
+		save("q=2", "a large body that exceeds the limit");
+		final List<Integer> loaded = new ArrayList<Integer>();
+		JdbcMessageDAO watched = new JdbcMessageDAO() {
+			@Override
+			public MutableBufferedResponse loadResponse(int id) {
+				loaded.add(Integer.valueOf(id));
+				return super.loadResponse(id);
+			}
+		};
+		watched.setDataSource(dao.getDataSource());
+		SearchIndex limited = new SearchIndex(watched);
+		limited.setMaxContentSize(16);
+		assertEquals(2, limited.update(10));
+		assertEquals(Arrays.asList(small), limited.search("body", -1));
+		// the large response is skipped without being read into memory
+		assertEquals(Arrays.asList(Integer.valueOf(dao.getConversation(small)
+				.getResponseId())), loaded);
+		assertTrue(limited.search("limit", -1).isEmpty());
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		int kept = save("q=common", "shared");
+		int[] ids = new int[100];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = save("q=common", "unique" + i);
+		index.update(-1);
+		int terms = index.getTermCount();
+		assertTrue(terms > ids.length);
+
+		// postings are removed once enough conversations are deleted
+		for (int i = 0; i < ids.length; i++)
+			dao.deleteConversation(ids[i]);
+		assertTrue(index.getTermCount() < terms);
+		assertEquals(Arrays.asList(kept), index.search("common", -1));
+		assertTrue(index.search("unique99", -1).isEmpty());
+		index.compact();
+		assertEquals(terms - ids.length, index.getTermCount());
+
+		dao.deleteConversation(kept);
+		index.compact();
+		assertEquals(0, index.getTermCount());
+	}
+
+	@Test
+	public void testBackgroundIndexing() throws Exception {
+		index.start();
+		int id = save("token=abcdef", "ok");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (index.getIndexedConversation() < id
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		List<Integer> found = index.search("abcdef", -1);
+		assertEquals(Arrays.asList(id), found);
+		index.remove(id);
+		assertTrue(index.search("abcdef", -1).isEmpty());
+	}
+
+}
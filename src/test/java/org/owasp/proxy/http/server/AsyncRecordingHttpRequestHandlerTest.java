@@ -0,0 +1,151 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.http.dao.JdbcMessageDAO;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class AsyncRecordingHttpRequestHandlerTest {
+
+	private static JdbcMessageDAO dao = null;
+
+	/** the number of conversations written in batches by the writer thread */
+	private static AtomicInteger batched = new AtomicInteger();
+
+	/** makes batched writes fail with an unexpected exception */
+	private static volatile boolean failBatches = false;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Logger dslogger = Logger.getLogger(DriverManagerDataSource.class
+				.getName());
+		dslogger.setLevel(Level.OFF);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:asyncrecording;DB_CLOSE_DELAY=-1");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dao = new JdbcMessageDAO() {
+			@Override
+			public void saveConversations(
+					List<MutableBufferedRequest> requests,
+					List<MutableBufferedResponse> responses) {
+				if (failBatches)
+					throw new IllegalStateException("batch failed");
+				super.saveConversations(requests, responses);
+				batched.addAndGet(requests.size());
+			}
+		};
+		dao.setDataSource(dataSource);
+		dao.createTables();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		dao.getJdbcTemplate().execute("SHUTDOWN");
+	}
+
+	private void record(RecordingHttpRequestHandler rh, int i) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setHeader(AsciiString.getBytes("GET /" + i
+				+ " HTTP/1.0\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		response.setContent(AsciiString.getBytes("content " + i));
+		rh.record(null, request, response);
+	}
+
+	@Test
+	public void testFlushAndClose() throws Exception {
+		int before = dao.listConversations().size();
+		int batchedBefore = batched.get();
+		AsyncRecordingHttpRequestHandler rh = new AsyncRecordingHttpRequestHandler(
+				dao, new DefaultHttpRequestHandler(), 1024, 10);
+		rh.setBatchSize(4);
+		// the connection handler disposes of the handler as each connection
+		// closes, which must not stop the writer
+		for (int connection = 0; connection < 5; connection++) {
+			for (int i = 0; i < 5; i++)
+				record(rh, connection * 5 + i);
+			rh.dispose();
+		}
+		rh.flush();
+		assertEquals(before + 25, dao.listConversations().size());
+		assertEquals(batchedBefore + 25, batched.get());
+		for (int i = 0; i < 5; i++)
+			record(rh, i);
+		rh.close();
+		assertEquals(before + 30, dao.listConversations().size());
+		assertEquals(0, rh.getQueued());
+		// once closed, conversations are written synchronously
+		record(rh, 0);
+		assertEquals(before + 31, dao.listConversations().size());
+		assertEquals(0, rh.getQueued());
+	}
+
+	@Test
+	public void testBatchFailure() throws Exception {
+		int before = dao.listConversations().size();
+		AsyncRecordingHttpRequestHandler rh = new AsyncRecordingHttpRequestHandler(
+				dao, new DefaultHttpRequestHandler(), 1024, 10);
+		failBatches = true;
+		try {
+			for (int i = 0; i < 5; i++)
+				record(rh, i);
+			// returns once the conversations have been saved individually
+			rh.flush();
+			assertEquals(before + 5, dao.listConversations().size());
+		} finally {
+			failBatches = false;
+			rh.close();
+		}
+	}
+
+	@Test
+	public void testDiscard() throws Exception {
+		AsyncRecordingHttpRequestHandler rh = new AsyncRecordingHttpRequestHandler(
+				dao, new DefaultHttpRequestHandler(), 1024, 1);
+		rh.setOverflowPolicy(AsyncRecordingHttpRequestHandler.OverflowPolicy.DISCARD);
+		int before = dao.listConversations().size();
+		for (int i = 0; i < 50; i++)
+			record(rh, i);
+		rh.close();
+		assertEquals(before + 50 - rh.getDiscarded(), (long) dao.listConversations()
+				.size());
+	}
+
+}
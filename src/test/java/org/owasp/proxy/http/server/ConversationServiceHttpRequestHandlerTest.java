@@ -0,0 +1,242 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.GZIPInputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.owasp.proxy.http.MutableBufferedRequest;
+import org.owasp.proxy.http.MutableBufferedResponse;
+import org.owasp.proxy.http.StreamingRequest;
+import org.owasp.proxy.http.StreamingResponse;
+import org.owasp.proxy.http.dao.JdbcMessageDAO;
+import org.owasp.proxy.io.ChunkedInputStream;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class ConversationServiceHttpRequestHandlerTest {
+
+	private static JdbcMessageDAO dao = null;
+
+	private static ConversationServiceHttpRequestHandler rh = null;
+
+	private static int responseId;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Logger dslogger = Logger.getLogger(DriverManagerDataSource.class
+				.getName());
+		dslogger.setLevel(Level.OFF);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource();
+		dataSource.setDriverClassName("org.h2.Driver");
+		dataSource.setUrl("jdbc:h2:mem:conversationservice;DB_CLOSE_DELAY=-1");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dao = new JdbcMessageDAO();
+		dao.setDataSource(dataSource);
+		dao.createTables();
+		rh = new ConversationServiceHttpRequestHandler("service", dao, null);
+
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setHeader(AsciiString.getBytes("GET / HTTP/1.0\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		response.setContent(AsciiString.getBytes("0123456789"));
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		dao.saveConversation(request.getId(), response.getId());
+		responseId = response.getId();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		dao.getJdbcTemplate().execute("SHUTDOWN");
+	}
+
+	private StreamingResponse get(String resource, String range)
+			throws Exception {
+		StreamingRequest request = new StreamingRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("service", 80));
+		request.setHeader(AsciiString.getBytes("GET " + resource
+				+ " HTTP/1.0\r\n"
+				+ (range == null ? "" : "Range: " + range + "\r\n") + "\r\n"));
+		return rh.handleRequest(null, request, false);
+	}
+
+	private String content(StreamingResponse response) throws Exception {
+		return content(response.getContent());
+	}
+
+	private String content(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buff = new byte[1024];
+		int got;
+		while ((got = in.read(buff)) > -1)
+			out.write(buff, 0, got);
+		return AsciiString.create(out.toByteArray());
+	}
+
+	@Test
+	public void testResponseContent() throws Exception {
+		String resource = "/responseContent?id=" + responseId;
+		StreamingResponse response = get(resource, null);
+		assertEquals("200", response.getStatus());
+		assertEquals("10", response.getHeader("Content-Length"));
+		assertEquals("0123456789", content(response));
+
+		response = get(resource, "bytes=2-5");
+		assertEquals("206", response.getStatus());
+		assertEquals("bytes 2-5/10", response.getHeader("Content-Range"));
+		assertEquals("2345", content(response));
+
+		response = get(resource, "bytes=-3");
+		assertEquals("bytes 7-9/10", response.getHeader("Content-Range"));
+		assertEquals("789", content(response));
+
+		response = get(resource, "bytes=8-");
+		assertEquals("89", content(response));
+
+		response = get(resource, "bytes=10-");
+		assertEquals("416", response.getStatus());
+		assertEquals("bytes */10", response.getHeader("Content-Range"));
+
+		// multiple ranges are not supported, so the whole entity is returned
+		response = get(resource, "bytes=0-1,4-5");
+		assertEquals("200", response.getStatus());
+		assertEquals("0123456789", content(response));
+	}
+
+	@Test
+	public void testResponse() throws Exception {
+		StreamingResponse response = get("/response?id=" + responseId, null);
+		assertEquals("HTTP/1.0 200 Ok\r\n\r\n0123456789", content(response));
+		response = get("/responseContent?id=" + responseId, null);
+		assertNull(response.getHeader("Content-Range"));
+		response.getContent().close();
+	}
+
+	@Test
+	public void testCacheInvalidation() throws Exception {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("localhost", 80));
+		request.setHeader(AsciiString.getBytes("GET /cached HTTP/1.0\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		response.setContent(AsciiString.getBytes("cached"));
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		int id = dao.saveConversation(request.getId(), response.getId());
+
+		assertEquals("200", get("/summary?id=" + id, null).getStatus());
+		String decoded = "/responseContent?decode=true&id=" + response.getId();
+		assertEquals("cached", content(get(decoded, null)));
+		long hits = rh.getContentCache().getHitCount();
+		assertEquals("cached", content(get(decoded, null)));
+		assertEquals(hits + 1, rh.getContentCache().getHitCount());
+		assertEquals("200", get("/responseHeader?id=" + response.getId(),
+				null).getStatus());
+
+		dao.deleteConversation(id);
+		assertEquals("404", get("/summary?id=" + id, null).getStatus());
+		assertEquals("404", get("/responseHeader?id=" + response.getId(),
+				null).getStatus());
+		assertEquals("404", get(decoded, null).getStatus());
+	}
+
+	@Test
+	public void testSummaryWithoutHost() throws Exception {
+		int id = save("/unparsed");
+		// as recorded when the request header could not be parsed
+		dao.getJdbcTemplate().execute(
+				"UPDATE summaries SET host = NULL WHERE id = " + id);
+		StreamingResponse response = get("/summary?id=" + id, null);
+		assertEquals("200", response.getStatus());
+		String xml = content(response);
+		assertTrue(xml, xml.indexOf("<host>") == -1);
+		assertTrue(xml, xml.indexOf("unparsed</resource>") > -1);
+	}
+
+	private int save(String resource) {
+		MutableBufferedRequest request = new MutableBufferedRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("export", 443));
+		request.setSsl(true);
+		request.setHeader(AsciiString.getBytes("GET " + resource
+				+ " HTTP/1.0\r\n\r\n"));
+		MutableBufferedResponse response = new MutableBufferedResponse.Impl();
+		response.setHeader(AsciiString.getBytes("HTTP/1.0 200 Ok\r\n\r\n"));
+		dao.saveRequest(request);
+		dao.saveResponse(response);
+		return dao.saveConversation(request.getId(), response.getId());
+	}
+
+	@Test
+	public void testExport() throws Exception {
+		int first = save("/\"quoted\"");
+		int second = save("/2");
+		int third = save("/3");
+		String query = "host=export&since=" + (first - 1);
+
+		StreamingResponse response = get("/summaries?format=json&limit=2&"
+				+ query, null);
+		assertEquals("200", response.getStatus());
+		assertEquals("application/json", response.getHeader("Content-Type"));
+		String json = content(response);
+		assertTrue(json, json.startsWith("{\"summaries\":[{\"id\":" + first
+				+ ","));
+		assertTrue(json, json.indexOf("\"resource\":\"/\\\"quoted\\\"\"") > -1);
+		assertTrue(json, json.indexOf("\"host\":\"export\",\"port\":443") > -1);
+		assertTrue(json, json.endsWith("],\"next\":" + second + "}"));
+
+		response = get("/summaries?format=ndjson&host=export&since=" + second,
+				null);
+		String ndjson = content(response);
+		assertTrue(ndjson, ndjson.startsWith("{\"id\":" + third + ","));
+		assertTrue(ndjson, ndjson.endsWith("}\n"));
+		assertEquals(ndjson.length() - 1, ndjson.indexOf('\n'));
+
+		StreamingRequest request = new StreamingRequest.Impl();
+		request.setTarget(InetSocketAddress.createUnresolved("service", 80));
+		request.setHeader(AsciiString.getBytes("GET /conversations?format=json&"
+				+ query + " HTTP/1.1\r\nAccept-Encoding: gzip, deflate\r\n\r\n"));
+		response = rh.handleRequest(null, request, false);
+		assertEquals("chunked", response.getHeader("Transfer-Encoding"));
+		assertEquals("gzip", response.getHeader("Content-Encoding"));
+		assertEquals("{\"conversations\":[" + first + "," + second + ","
+				+ third + "],\"next\":null}", content(new GZIPInputStream(
+				new ChunkedInputStream(response.getContent()))));
+
+		assertEquals("400", get("/summaries?format=xml", null).getStatus());
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.http.server;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.junit.Test;
+import org.owasp.proxy.daemon.Server;
+import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.StreamingRequest;
+import org.owasp.proxy.http.StreamingResponse;
+import org.owasp.proxy.util.AsciiString;
+
+public class HttpProxyConnectionHandlerTest {
+
+	/**
+	 * A response whose content fails part way through, as if the server
+	 * closed the connection early
+	 */
+	private static class TruncatingRequestHandler implements
+			HttpRequestHandler {
+
+		public StreamingResponse handleRequest(InetAddress source,
+				StreamingRequest request, boolean isContinue)
+				throws IOException, MessageFormatException {
+			StreamingResponse response = new StreamingResponse.Impl();
+			response.setHeader(AsciiString
+					.getBytes("HTTP/1.1 200 Ok\r\nContent-Length: 100\r\n\r\n"));
+			response.setContent(new InputStream() {
+				private byte[] partial = AsciiString.getBytes("partial");
+
+				private int pos = 0;
+
+				@Override
+				public int read() throws IOException {
+					if (pos < partial.length)
+						return partial[pos++];
+					throw new IOException("Server closed the connection");
+				}
+
+				@Override
+				public int available() {
+					// claim that more is on the way
+					return 1;
+				}
+			});
+			return response;
+		}
+
+		public void dispose() throws IOException {
+		}
+	}
+
+	@Test
+	public void testPartialContentRelayed() throws Exception {
+		InetSocketAddress listen = new InetSocketAddress("localhost", 9996);
+		Server server = new Server(listen, new HttpProxyConnectionHandler(
+				new TruncatingRequestHandler()));
+		server.start();
+		try {
+			Socket socket = new Socket("localhost", 9996);
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(
+					AsciiString.getBytes("GET http://localhost/ HTTP/1.1\r\n"
+							+ "Host: localhost\r\n\r\n"));
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			byte[] buff = new byte[1024];
+			int got;
+			while ((got = in.read(buff)) > -1)
+				received.write(buff, 0, got);
+			socket.close();
+			String response = AsciiString.create(received.toByteArray());
+			assertTrue(response, response.startsWith("HTTP/1.1 200 Ok\r\n"));
+			assertTrue(response, response.endsWith("\r\n\r\npartial"));
+		} finally {
+			server.stop();
+		}
+	}
+
+}
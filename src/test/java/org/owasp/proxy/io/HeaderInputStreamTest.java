@@ -0,0 +1,209 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+import org.owasp.proxy.http.MessageFormatException;
+
+public class HeaderInputStreamTest {
+
+	private static final String HEADER = "HTTP/1.1 200 Ok\r\nContent-Length: 4\r\n\r\n";
+
+	/**
+	 * Returns at most a few bytes per read, and optionally times out once
+	 * before returning any data past the specified position
+	 */
+	private static class TrickleInputStream extends InputStream {
+
+		private byte[] data;
+
+		private int pos = 0, chunk, timeoutAt;
+
+		public TrickleInputStream(String data, int chunk, int timeoutAt) {
+			this.data = data.getBytes();
+			this.chunk = chunk;
+			this.timeoutAt = timeoutAt;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pos >= data.length)
+				return -1;
+			if (pos == timeoutAt) {
+				timeoutAt = -1;
+				throw new SocketTimeoutException();
+			}
+			int count = Math.min(Math.min(len, chunk), data.length - pos);
+			if (timeoutAt > pos)
+				count = Math.min(count, timeoutAt - pos);
+			System.arraycopy(data, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+	}
+
+	private String readAll(InputStream in) throws IOException {
+		StringBuilder buff = new StringBuilder();
+		int got;
+		while ((got = in.read()) > -1)
+			buff.append((char) got);
+		return buff.toString();
+	}
+
+	@Test
+	public void testHeaderAndContent() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new ByteArrayInputStream(
+				(HEADER + "body").getBytes()));
+		assertEquals(HEADER, new String(in.readHeader()));
+		assertEquals(4, in.getBufferedCount());
+		assertEquals("body", readAll(in));
+		assertNull(in.readHeader());
+	}
+
+	@Test
+	public void testTrickle() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new TrickleInputStream(
+				HEADER + "body" + HEADER, 3, -1), 8);
+		assertEquals(HEADER, new String(in.readHeader()));
+		byte[] body = new byte[4];
+		int read = 0;
+		while (read < 4)
+			read += in.read(body, read, 4 - read);
+		assertEquals("body", new String(body));
+		assertEquals(HEADER, new String(in.readHeader()));
+		assertNull(in.readHeader());
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new ByteArrayInputStream(
+				(HEADER + HEADER).getBytes()));
+		assertEquals(HEADER, new String(in.readHeader()));
+		assertEquals(HEADER, new String(in.readHeader()));
+		assertNull(in.readHeader());
+	}
+
+	@Test
+	public void testTimeoutResumes() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new TrickleInputStream(
+				HEADER, 100, 10));
+		try {
+			in.readHeader();
+			fail("Expected a timeout");
+		} catch (SocketTimeoutException expected) {
+		}
+		assertEquals(10, in.getBufferedCount());
+		assertEquals(HEADER, new String(in.readHeader()));
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new ByteArrayInputStream(
+				"HTTP/1.1 200 Ok\r\n".getBytes()));
+		try {
+			in.readHeader();
+			fail("Expected a MessageFormatException");
+		} catch (MessageFormatException expected) {
+			assertEquals("HTTP/1.1 200 Ok\r\n", new String(expected
+					.getHeader()));
+		}
+	}
+
+	@Test
+	public void testMaxHeaderSize() throws Exception {
+		StringBuilder big = new StringBuilder("HTTP/1.1 200 Ok\r\n");
+		while (big.length() < 100)
+			big.append("X-Padding: 0123456789\r\n");
+		HeaderInputStream in = new HeaderInputStream(new ByteArrayInputStream(
+				big.append("\r\n").toString().getBytes()), 16);
+		in.setMaxHeaderSize(64);
+		try {
+			in.readHeader();
+			fail("Expected a MessageFormatException");
+		} catch (MessageFormatException expected) {
+		}
+	}
+
+	@Test
+	public void testLenientLineOffsets() throws Exception {
+		String request = "\r\nGET / HTTP/1.0\nHost: localhost\r\n\n";
+		HeaderInputStream in = new HeaderInputStream(new TrickleInputStream(
+				request + "body", 3, 20), 8, true);
+		try {
+			in.readHeader();
+			fail("Expected a timeout");
+		} catch (SocketTimeoutException expected) {
+		}
+		byte[] header = in.readHeader();
+		assertEquals(request.substring(2), new String(header));
+		int[] offsets = in.getLineOffsets();
+		assertEquals(6, offsets.length);
+		assertEquals("GET / HTTP/1.0", new String(header, offsets[0],
+				offsets[1] - offsets[0]));
+		assertEquals("Host: localhost", new String(header, offsets[2],
+				offsets[3] - offsets[2]));
+		assertEquals(offsets[4], offsets[5]);
+		assertEquals("body", readAll(in));
+	}
+
+	@Test
+	public void testBufferedBytes() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new TrickleInputStream(
+				HEADER, 4, 10), 64);
+		try {
+			in.readHeader();
+			fail("Expected a timeout");
+		} catch (SocketTimeoutException expected) {
+		}
+		assertEquals(HEADER.substring(0, 10), new String(in
+				.getBufferedBytes()));
+		assertEquals(10, in.getBufferedCount());
+	}
+
+	@Test
+	public void testLenientBareCR() throws Exception {
+		HeaderInputStream in = new HeaderInputStream(new ByteArrayInputStream(
+				"GET / HTTP/1.0\rHost: localhost\r\n\r\n".getBytes()), 64,
+				true);
+		try {
+			in.readHeader();
+			fail("Expected a MessageFormatException");
+		} catch (MessageFormatException expected) {
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.security.auth.x500.X500Principal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AutoGeneratingContextSelectorTest {
+
+	private static final String[] HOSTS = { "a.example", "b.example",
+			"c.example" };
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("certs", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			files[i].delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testConcurrentSelect() throws Exception {
+		final AtomicInteger minted = new AtomicInteger();
+		final AutoGeneratingContextSelector selector = new AutoGeneratingContextSelector(
+				new X500Principal("cn=Test CA,ou=UNTRUSTED,o=UNTRUSTED")) {
+			protected X500Principal getSubjectPrincipal(String host) {
+				minted.incrementAndGet();
+				return super.getSubjectPrincipal(host);
+			}
+		};
+		selector.setReuseKeys(true);
+
+		int threads = 12;
+		final SSLContext[] contexts = new SSLContext[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						contexts[index] = selector
+								.select(InetSocketAddress.createUnresolved(
+										HOSTS[index % HOSTS.length], 443));
+					} catch (InterruptedException ie) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+
+		assertEquals("Each host should be minted exactly once", HOSTS.length,
+				minted.get());
+		for (int t = 0; t < threads; t++) {
+			assertNotNull(contexts[t]);
+			assertSame(contexts[t % HOSTS.length], contexts[t]);
+		}
+		assertTrue(contexts[0] != contexts[1]);
+
+		// cached hosts are returned without minting again
+		assertSame(contexts[0], selector.select(InetSocketAddress
+				.createUnresolved(HOSTS[0], 8443)));
+		assertEquals(HOSTS.length, minted.get());
+	}
+
+	@Test
+	public void testCertificateStore() throws Exception {
+		X500Principal caName = new X500Principal(
+				"cn=Test CA,ou=UNTRUSTED,o=UNTRUSTED");
+		AutoGeneratingContextSelector selector = new AutoGeneratingContextSelector(
+				caName);
+		selector.setReuseKeys(true);
+		CertificateStore store = new CertificateStore(directory, "secret"
+				.toCharArray());
+		selector.setCertificateStore(store);
+		assertNotNull(selector.select(InetSocketAddress.createUnresolved(
+				"Stored.Example", 443)));
+		store.flush();
+		File file = store.getFile("stored.example");
+		assertTrue(file.exists());
+		assertEquals("stored.example.p12", file.getName());
+		assertEquals("%002a.example.p12", store.getFile("*.example").getName());
+
+		// a restart with the same CA reuses the saved certificate
+		File ca = new File(directory, "ca.p12");
+		selector.save(ca, "PKCS12", "ca".toCharArray(), "ca".toCharArray(),
+				"ca");
+		final AtomicInteger minted = new AtomicInteger();
+		AutoGeneratingContextSelector restarted = new AutoGeneratingContextSelector(
+				ca, "PKCS12", "ca".toCharArray(), "ca".toCharArray(), "ca") {
+			protected X500Principal getSubjectPrincipal(String host) {
+				minted.incrementAndGet();
+				return super.getSubjectPrincipal(host);
+			}
+		};
+		restarted.setCertificateStore(store);
+		assertNotNull(restarted.select(InetSocketAddress.createUnresolved(
+				"stored.example", 443)));
+		assertEquals(0, minted.get());
+
+		// but certificates from another CA are replaced
+		AutoGeneratingContextSelector other = new AutoGeneratingContextSelector(
+				caName) {
+			protected X500Principal getSubjectPrincipal(String host) {
+				minted.incrementAndGet();
+				return super.getSubjectPrincipal(host);
+			}
+		};
+		other.setReuseKeys(true);
+		other.setCertificateStore(store);
+		assertNotNull(other.select(InetSocketAddress.createUnresolved(
+				"stored.example", 443)));
+		assertEquals(1, minted.get());
+		store.close();
+	}
+
+	@Test
+	public void testBoundedCache() throws Exception {
+		AutoGeneratingContextSelector selector = new AutoGeneratingContextSelector(
+				new X500Principal("cn=Test CA,ou=UNTRUSTED,o=UNTRUSTED"));
+		selector.setReuseKeys(true);
+		selector.setContextCacheSize(1, 0);
+		SSLContext first = selector.select(InetSocketAddress.createUnresolved(
+				HOSTS[0], 443));
+		selector.select(InetSocketAddress.createUnresolved(HOSTS[1], 443));
+		assertEquals(1, selector.getContextCache().size());
+		assertEquals(1L, selector.getContextCache().getEvictionCount());
+		assertTrue(first != selector.select(InetSocketAddress
+				.createUnresolved(HOSTS[0], 443)));
+
+		BigInteger last = selector.getNextSerialNo();
+		for (int i = 0; i < 100; i++) {
+			BigInteger next = selector.getNextSerialNo();
+			assertTrue(next.compareTo(last) > 0);
+			last = next;
+		}
+	}
+
+	@Test
+	public void testWildcardCertificates() throws Exception {
+		AutoGeneratingContextSelector selector = new AutoGeneratingContextSelector(
+				new X500Principal("cn=Test CA,ou=UNTRUSTED,o=UNTRUSTED"));
+		selector.setReuseKeys(true);
+		assertEquals("a.cdn.example.com", selector
+				.getCertificateName("a.cdn.example.com"));
+		selector.setWildcardCertificates(true);
+		assertEquals("*.cdn.example.com", selector
+				.getCertificateName("A.cdn.example.com"));
+		assertEquals("*.example.com", selector
+				.getCertificateName("www.example.com"));
+		assertEquals("example.com", selector.getCertificateName("example.com"));
+		assertEquals("www.co.uk", selector.getCertificateName("www.co.uk"));
+		assertEquals("*.bbc.co.uk", selector.getCertificateName("www.bbc.co.uk"));
+		assertEquals("localhost", selector.getCertificateName("localhost"));
+		assertEquals("10.0.0.1", selector.getCertificateName("10.0.0.1"));
+
+		CertificateStore store = new CertificateStore(directory, "secret"
+				.toCharArray());
+		selector.setCertificateStore(store);
+		SSLContext a = selector.select(InetSocketAddress.createUnresolved(
+				"a.cdn.example.com", 443));
+		assertSame(a, selector.select(InetSocketAddress.createUnresolved(
+				"b.cdn.example.com", 443)));
+		store.close();
+
+		InputStream in = new FileInputStream(store
+				.getFile("*.cdn.example.com"));
+		X509Certificate cert;
+		try {
+			cert = KeystoreUtils.loadFromKeyStore(in, "PKCS12",
+					"*.cdn.example.com", "secret".toCharArray())
+					.getCertificateChain("*.cdn.example.com")[0];
+		} finally {
+			in.close();
+		}
+		assertTrue(cert.getSubjectX500Principal().getName().startsWith(
+				"CN=*.cdn.example.com,"));
+		Collection<List<?>> names = cert.getSubjectAlternativeNames();
+		assertEquals(2, names.size());
+		Iterator<List<?>> it = names.iterator();
+		assertEquals("*.cdn.example.com", it.next().get(1));
+		assertEquals("cdn.example.com", it.next().get(1));
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509KeyManager;
+
+import org.junit.Test;
+
+public class DefaultClientContextSelectorTest {
+
+	@Test
+	public void testSharedContext() {
+		DefaultClientContextSelector selector = new DefaultClientContextSelector();
+		SSLContext context = selector.select(InetSocketAddress
+				.createUnresolved("a.example", 443));
+		assertNotNull(context);
+		for (int i = 0; i < 100; i++)
+			assertSame(context, selector.select(InetSocketAddress
+					.createUnresolved("host" + i + ".example", 443)));
+		assertEquals(1, selector.getContextCache().size());
+	}
+
+	@Test
+	public void testPerKeyManagerContext() {
+		final X509KeyManager km = new SingleX509KeyManager("client", null,
+				null);
+		DefaultClientContextSelector selector = new DefaultClientContextSelector() {
+			public X509KeyManager getKeyManager(InetSocketAddress target) {
+				return target.getHostName().startsWith("client") ? km : null;
+			}
+		};
+		SSLContext plain = selector.select(InetSocketAddress.createUnresolved(
+				"a.example", 443));
+		SSLContext client = selector.select(InetSocketAddress
+				.createUnresolved("client.example", 443));
+		assertTrue(plain != client);
+		assertSame(client, selector.select(InetSocketAddress.createUnresolved(
+				"client2.example", 443)));
+		assertEquals(2, selector.getContextCache().size());
+	}
+
+}
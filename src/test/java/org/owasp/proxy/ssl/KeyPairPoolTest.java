@@ -0,0 +1,87 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+import org.junit.Test;
+
+public class KeyPairPoolTest {
+
+	private void await(KeyPairPool pool, int available) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getAvailable() < available
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(available, pool.getAvailable());
+	}
+
+	@Test
+	public void testPool() throws Exception {
+		KeyPairPool pool = new KeyPairPool("RSA", 512, 3);
+		assertEquals(0, pool.getAvailable());
+		pool.start();
+		await(pool, 3);
+
+		KeyPair first = pool.take();
+		KeyPair second = pool.take();
+		assertEquals(512, ((RSAPublicKey) first.getPublic()).getModulus()
+				.bitLength());
+		assertFalse(first.getPublic().equals(second.getPublic()));
+		assertEquals(2L, pool.getHitCount());
+		assertEquals(0L, pool.getMissCount());
+		// refilled in the background
+		await(pool, 3);
+
+		pool.close();
+		assertEquals(0, pool.getAvailable());
+		pool.take();
+		assertEquals(1L, pool.getMissCount());
+		assertEquals(0, pool.getAvailable());
+	}
+
+	@Test
+	public void testEC() throws Exception {
+		KeyPairPool pool = new KeyPairPool("EC", 256, 1);
+		KeyPair keyPair = pool.take();
+		assertEquals(256, ((ECPublicKey) keyPair.getPublic()).getParams()
+				.getOrder().bitLength());
+		pool.close();
+	}
+
+	@Test
+	public void testUnsupported() {
+		try {
+			new KeyPairPool("NoSuchAlgorithm", 1024, 1);
+			fail("Expected the algorithm to be rejected");
+		} catch (GeneralSecurityException expected) {
+		}
+	}
+
+}
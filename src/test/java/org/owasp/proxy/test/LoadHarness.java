@@ -0,0 +1,544 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.owasp.proxy.daemon.Proxy;
+import org.owasp.proxy.http.MessageFormatException;
+import org.owasp.proxy.http.MessageHeader;
+import org.owasp.proxy.http.MutableRequestHeader;
+import org.owasp.proxy.http.MutableResponseHeader;
+import org.owasp.proxy.http.RequestHeader;
+import org.owasp.proxy.http.dao.JdbcMessageDAO;
+import org.owasp.proxy.http.server.BufferedMessageInterceptor;
+import org.owasp.proxy.http.server.BufferingHttpRequestHandler;
+import org.owasp.proxy.http.server.DefaultHttpRequestHandler;
+import org.owasp.proxy.http.server.HttpProxyConnectionHandler;
+import org.owasp.proxy.http.server.HttpRequestHandler;
+import org.owasp.proxy.http.server.RecordingHttpRequestHandler;
+import org.owasp.proxy.io.FixedLengthInputStream;
+import org.owasp.proxy.io.HeaderInputStream;
+import org.owasp.proxy.ssl.DefaultServerContextSelector;
+import org.owasp.proxy.ssl.SSLConnectionHandler;
+import org.owasp.proxy.ssl.SSLContextSelector;
+import org.owasp.proxy.util.AsciiString;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * Measures the end-to-end throughput and latency of a Proxy, by driving a
+ * number of concurrent keep-alive clients through it to a local
+ * {@link TraceServer}. It can be run from the command line with:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.owasp.proxy.test.LoadHarness \
+ *     -Dexec.args=&quot;--chain recording --clients 64&quot;
+ * </pre>
+ * 
+ * The report includes requests and bytes per second, latency percentiles,
+ * the allocation rate of all threads in the JVM (where supported), and the
+ * peak number of live threads.
+ * 
+ * @author Rogan Dawes
+ * 
+ */
+public class LoadHarness {
+
+	/**
+	 * The handlers placed between the HttpProxyConnectionHandler and the
+	 * DefaultHttpRequestHandler
+	 */
+	public enum Chain {
+		PLAIN, RECORDING, BUFFERING, SSL
+	}
+
+	private Chain chain = Chain.PLAIN;
+
+	private int clients = 16;
+
+	private int warmup = 5;
+
+	private int duration = 20;
+
+	private int requestSize = 0;
+
+	private int proxyPort = 9990;
+
+	private int originPort = 9991;
+
+	private String keystore = "src/main/java/org/owasp/proxy/ssl/server.p12";
+
+	private volatile boolean measuring = false;
+
+	private volatile boolean running = true;
+
+	private AtomicLong errors = new AtomicLong();
+
+	public void setChain(Chain chain) {
+		this.chain = chain;
+	}
+
+	public void setClients(int clients) {
+		this.clients = clients;
+	}
+
+	public void setWarmup(int seconds) {
+		this.warmup = seconds;
+	}
+
+	public void setDuration(int seconds) {
+		this.duration = seconds;
+	}
+
+	/**
+	 * @param requestSize
+	 *            the size of the body of each request, which is echoed back
+	 *            by the origin server. If 0, GET requests are sent, and the
+	 *            request header is echoed back instead.
+	 */
+	public void setRequestSize(int requestSize) {
+		this.requestSize = requestSize;
+	}
+
+	public void setProxyPort(int proxyPort) {
+		this.proxyPort = proxyPort;
+	}
+
+	public void setOriginPort(int originPort) {
+		this.originPort = originPort;
+	}
+
+	public void setKeystore(String keystore) {
+		this.keystore = keystore;
+	}
+
+	private HttpRequestHandler createRequestHandler() throws Exception {
+		HttpRequestHandler rh = new DefaultHttpRequestHandler();
+		if (chain == Chain.RECORDING) {
+			Logger.getLogger(DriverManagerDataSource.class.getName())
+					.setLevel(Level.OFF);
+			DriverManagerDataSource dataSource = new DriverManagerDataSource();
+			dataSource.setDriverClassName("org.h2.Driver");
+			dataSource.setUrl("jdbc:h2:mem:loadharness;DB_CLOSE_DELAY=-1");
+			dataSource.setUsername("sa");
+			dataSource.setPassword("");
+			JdbcMessageDAO dao = new JdbcMessageDAO();
+			dao.setDataSource(dataSource);
+			dao.createTables();
+			rh = new RecordingHttpRequestHandler(dao, rh, 1024 * 1024);
+		} else if (chain == Chain.BUFFERING) {
+			rh = new BufferingHttpRequestHandler(rh,
+					new BufferedMessageInterceptor() {
+						@Override
+						public Action directRequest(
+								MutableRequestHeader request) {
+							return Action.BUFFER;
+						}
+
+						@Override
+						public Action directResponse(RequestHeader request,
+								MutableResponseHeader response) {
+							return Action.BUFFER;
+						}
+					}, 1024 * 1024);
+		}
+		return rh;
+	}
+
+	public Report run() throws Exception {
+		SSLContextSelector sslContexts = null;
+		if (chain == Chain.SSL)
+			sslContexts = new DefaultServerContextSelector(keystore,
+					"password", "password");
+
+		TraceServer origin = new TraceServer(originPort);
+		origin.setVersion("HTTP/1.1");
+		origin.setContentLength(true);
+		if (sslContexts != null)
+			origin.setSslContext(sslContexts.select(null));
+		origin.start();
+
+		HttpProxyConnectionHandler hpch = new HttpProxyConnectionHandler(
+				createRequestHandler());
+		if (sslContexts != null)
+			hpch.setConnectHandler(new SSLConnectionHandler(sslContexts,
+					true, hpch));
+		Proxy proxy = new Proxy(new InetSocketAddress("localhost", proxyPort),
+				hpch, null);
+		proxy.start();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Client[] c = new Client[clients];
+		CountDownLatch done = new CountDownLatch(clients);
+		try {
+			for (int i = 0; i < clients; i++) {
+				c[i] = new Client(done);
+				Thread t = new Thread(c[i], "LoadHarness-client-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			Thread.sleep(warmup * 1000L);
+
+			threads.resetPeakThreadCount();
+			long allocated = getAllocatedBytes(threads);
+			measuring = true;
+			long start = System.nanoTime();
+			Thread.sleep(duration * 1000L);
+			measuring = false;
+			long elapsed = System.nanoTime() - start;
+			if (allocated > -1)
+				allocated = getAllocatedBytes(threads) - allocated;
+
+			running = false;
+			done.await();
+
+			Report report = new Report();
+			report.chain = chain;
+			report.clients = clients;
+			report.elapsed = elapsed;
+			report.allocated = allocated;
+			report.peakThreads = threads.getPeakThreadCount();
+			report.errors = errors.get();
+			int count = 0;
+			for (int i = 0; i < clients; i++)
+				count += c[i].count;
+			report.latencies = new long[count];
+			count = 0;
+			for (int i = 0; i < clients; i++) {
+				System.arraycopy(c[i].latencies, 0, report.latencies, count,
+						c[i].count);
+				count += c[i].count;
+				report.bytes += c[i].bytes;
+			}
+			Arrays.sort(report.latencies);
+			return report;
+		} finally {
+			running = false;
+			proxy.stop();
+			origin.stop();
+		}
+	}
+
+	/**
+	 * @return the total number of bytes allocated by all live threads, or -1
+	 *         if the JVM cannot report it
+	 */
+	private static long getAllocatedBytes(ThreadMXBean threads) {
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+		if (!t.isThreadAllocatedMemorySupported()
+				|| !t.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long total = 0;
+		long[] allocated = t.getThreadAllocatedBytes(t.getAllThreadIds());
+		for (int i = 0; i < allocated.length; i++)
+			if (allocated[i] > 0)
+				total += allocated[i];
+		return total;
+	}
+
+	private static SSLContext createTrustingContext() throws Exception {
+		TrustManager trustAll = new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return null;
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs,
+					String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs,
+					String authType) {
+			}
+		};
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustAll }, null);
+		return context;
+	}
+
+	/**
+	 * Sends requests back to back over a single connection, reconnecting if
+	 * the connection is closed.
+	 */
+	private class Client implements Runnable {
+
+		private long[] latencies = new long[1024];
+
+		private int count = 0;
+
+		private long bytes = 0;
+
+		private CountDownLatch done;
+
+		private byte[] request, buff = new byte[8192];
+
+		public Client(CountDownLatch done) {
+			this.done = done;
+			String resource = chain == Chain.SSL ? "/" : "http://localhost:"
+					+ originPort + "/";
+			String method = requestSize > 0 ? "POST" : "GET";
+			StringBuilder header = new StringBuilder();
+			header.append(method).append(" ").append(resource).append(
+					" HTTP/1.1\r\n");
+			header.append("Host: localhost:").append(originPort).append("\r\n");
+			header.append("User-Agent: LoadHarness\r\n");
+			header.append("Connection: Keep-Alive\r\n");
+			if (requestSize > 0)
+				header.append("Content-Length: ").append(requestSize).append(
+						"\r\n");
+			header.append("\r\n");
+			byte[] bytes = AsciiString.getBytes(header.toString());
+			request = new byte[bytes.length + requestSize];
+			System.arraycopy(bytes, 0, request, 0, bytes.length);
+			Arrays.fill(request, bytes.length, request.length, (byte) 'x');
+		}
+
+		private Socket connect() throws Exception {
+			Socket socket = new Socket(InetAddress.getByName("localhost"),
+					proxyPort);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(30000);
+			if (chain != Chain.SSL)
+				return socket;
+			OutputStream out = socket.getOutputStream();
+			out.write(AsciiString.getBytes("CONNECT localhost:" + originPort
+					+ " HTTP/1.1\r\n\r\n"));
+			out.flush();
+			HeaderInputStream in = new HeaderInputStream(socket
+					.getInputStream(), 256);
+			byte[] header = in.readHeader();
+			if (header == null
+					|| !AsciiString.create(header).startsWith("HTTP/1.0 200"))
+				throw new IOException("CONNECT failed");
+			SSLSocket ssl = (SSLSocket) createTrustingContext()
+					.getSocketFactory().createSocket(socket, "localhost",
+							proxyPort, true);
+			ssl.startHandshake();
+			return ssl;
+		}
+
+		/**
+		 * Sends a request and reads the response
+		 * 
+		 * @return false if the connection should be closed afterwards
+		 */
+		private boolean fetch(OutputStream out, HeaderInputStream in)
+				throws IOException, MessageFormatException {
+			out.write(request);
+			out.flush();
+			byte[] header = in.readHeader();
+			if (header == null)
+				throw new IOException("Connection closed");
+			MessageHeader response = new MutableResponseHeader.Impl();
+			((MutableResponseHeader) response).setHeader(header);
+			String cl = response.getHeader("Content-Length");
+			if (cl == null)
+				throw new IOException("No Content-Length in response");
+			InputStream body = new FixedLengthInputStream(in, Integer
+					.parseInt(cl.trim()));
+			long size = header.length;
+			int got;
+			while ((got = body.read(buff)) > -1)
+				size += got;
+			if (measuring)
+				bytes += size + request.length;
+			return !"close".equalsIgnoreCase(response.getHeader("Connection"));
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					Socket socket = null;
+					try {
+						socket = connect();
+						OutputStream out = socket.getOutputStream();
+						HeaderInputStream in = new HeaderInputStream(socket
+								.getInputStream());
+						boolean keepAlive = true;
+						while (running && keepAlive) {
+							long start = System.nanoTime();
+							keepAlive = fetch(out, in);
+							if (measuring)
+								record(System.nanoTime() - start);
+						}
+					} catch (Exception e) {
+						if (running)
+							errors.incrementAndGet();
+					} finally {
+						if (socket != null)
+							try {
+								socket.close();
+							} catch (IOException ignored) {
+							}
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private void record(long latency) {
+			if (count == latencies.length) {
+				long[] bigger = new long[latencies.length * 2];
+				System.arraycopy(latencies, 0, bigger, 0, count);
+				latencies = bigger;
+			}
+			latencies[count++] = latency;
+		}
+
+	}
+
+	public static class Report {
+
+		private Chain chain;
+
+		private int clients;
+
+		private long elapsed, bytes, allocated, errors;
+
+		private int peakThreads;
+
+		private long[] latencies;
+
+		public double getRequestsPerSecond() {
+			return latencies.length * 1e9 / elapsed;
+		}
+
+		public double getBytesPerSecond() {
+			return bytes * 1e9 / elapsed;
+		}
+
+		/**
+		 * @return the allocation rate in bytes per second, or -1 if unknown
+		 */
+		public double getAllocationRate() {
+			return allocated < 0 ? -1 : allocated * 1e9 / elapsed;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return the latency at the specified percentile, in microseconds
+		 */
+		public double getLatency(double percentile) {
+			if (latencies.length == 0)
+				return 0;
+			int i = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1e3;
+		}
+
+		public int getPeakThreads() {
+			return peakThreads;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append(String.format(Locale.US, "chain=%s clients=%d%n", chain,
+					clients));
+			b.append(String.format(Locale.US,
+					"requests/s=%.1f bytes/s=%.0f errors=%d%n",
+					getRequestsPerSecond(), getBytesPerSecond(), errors));
+			b.append(String.format(Locale.US,
+					"latency(us) p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+					getLatency(50), getLatency(99), getLatency(99.9),
+					getLatency(100)));
+			b.append(String.format(Locale.US,
+					"allocation(bytes/s)=%.0f peak threads=%d",
+					getAllocationRate(), peakThreads));
+			return b.toString();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadHarness [--chain "
+				+ Arrays.asList(Chain.values()).toString().toLowerCase()
+				+ "] [--clients n] [--warmup seconds] [--duration seconds]"
+				+ " [--requestSize bytes] [--proxyPort port]"
+				+ " [--originPort port] [--keystore server.p12]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		List<String> list = new ArrayList<String>(Arrays.asList(args));
+		try {
+			while (list.size() > 0) {
+				String option = list.remove(0);
+				if (list.size() == 0)
+					usage();
+				String value = list.remove(0);
+				if ("--chain".equals(option)) {
+					harness.setChain(Chain.valueOf(value.toUpperCase()));
+				} else if ("--clients".equals(option)) {
+					harness.setClients(Integer.parseInt(value));
+				} else if ("--warmup".equals(option)) {
+					harness.setWarmup(Integer.parseInt(value));
+				} else if ("--duration".equals(option)) {
+					harness.setDuration(Integer.parseInt(value));
+				} else if ("--requestSize".equals(option)) {
+					harness.setRequestSize(Integer.parseInt(value));
+				} else if ("--proxyPort".equals(option)) {
+					harness.setProxyPort(Integer.parseInt(value));
+				} else if ("--originPort".equals(option)) {
+					harness.setOriginPort(Integer.parseInt(value));
+				} else if ("--keystore".equals(option)) {
+					harness.setKeystore(value);
+				} else {
+					usage();
+				}
+			}
+		} catch (IllegalArgumentException iae) {
+			usage();
+		}
+		System.out.println(harness.run());
+		System.exit(0);
+	}
+
+}
@@ -21,6 +21,8 @@
 
 package org.owasp.proxy.test;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -30,6 +32,9 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
 import org.owasp.proxy.daemon.ConnectionHandler;
 import org.owasp.proxy.daemon.Server;
 import org.owasp.proxy.http.MessageFormatException;
@@ -49,6 +54,10 @@ public class TraceServer {
 
 	private boolean chunked = false;
 
+	private boolean contentLength = false;
+
+	private SSLContext sslContext = null;
+
 	private boolean verbose = false;
 
 	private String version = "HTTP/1.0";
@@ -62,6 +71,25 @@ public class TraceServer {
 		this.chunked = chunked;
 	}
 
+	/**
+	 * @param contentLength
+	 *            true if responses that are not chunked should include a
+	 *            Content-Length header, so that the connection can be kept
+	 *            alive
+	 */
+	public void setContentLength(boolean contentLength) {
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * @param sslContext
+	 *            if not null, the context used to negotiate SSL on each
+	 *            connection before reading any requests
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
 	public void setVerbose(boolean verbose) {
 		this.verbose = verbose;
 	}
@@ -86,10 +114,21 @@ public class TraceServer {
 
 		public void handleConnection(Socket socket) {
 			try {
+				if (sslContext != null) {
+					SSLSocket ssl = (SSLSocket) sslContext.getSocketFactory()
+							.createSocket(socket,
+									socket.getInetAddress().getHostAddress(),
+									socket.getPort(), true);
+					ssl.setUseClientMode(false);
+					socket = ssl;
+				}
 				ByteArrayOutputStream copy = new ByteArrayOutputStream();
-				CopyInputStream in = new CopyInputStream(socket
-						.getInputStream(), copy);
-				OutputStream out = socket.getOutputStream();
+				CopyInputStream in = new CopyInputStream(
+						new BufferedInputStream(socket.getInputStream()), copy);
+				// write each response in one go, rather than waiting for the
+				// header to be acknowledged before sending the content
+				OutputStream out = new BufferedOutputStream(socket
+						.getOutputStream());
 
 				if (verbose)
 					logger.info("Connection: " + socket);
@@ -118,9 +157,11 @@ public class TraceServer {
 
 					boolean expectContinue = "100-continue"
 							.equalsIgnoreCase(request.getHeader("Expect"));
-					if (expectContinue)
+					if (expectContinue) {
 						out.write(AsciiString.getBytes(version
 								+ " 100 Continue\r\n\r\n"));
+						out.flush();
+					}
 
 					// Get the request content (if any) from the stream,
 					copy.reset();
@@ -144,13 +185,16 @@ public class TraceServer {
 								16);
 						cos.write(request.getHeader());
 						if (request.getContent() != null)
-							out.write(request.getContent());
+							cos.write(request.getContent());
 						cos.close();
 						response.setContent(baos.toByteArray());
 					} else {
 						byte[] content = request.getContent() == null ? request
 								.getHeader() : request.getContent();
 						response.setContent(content);
+						if (contentLength)
+							response.setHeader("Content-Length", Integer
+									.toString(content.length));
 					}
 					if (verbose) {
 						logger.info(AsciiString.create(response.getHeader()));
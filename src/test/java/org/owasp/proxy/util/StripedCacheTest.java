@@ -0,0 +1,135 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedCacheTest {
+
+	private static final StripedCache.Weigher<String> LENGTH = new StripedCache.Weigher<String>() {
+		public int weigh(String value) {
+			return value.length();
+		}
+	};
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		// a single stripe, so that the order is strictly LRU
+		StripedCache<Integer, String> cache = new StripedCache<Integer, String>(
+				1);
+		cache.put(1, "one");
+		cache.put(2, "two");
+		assertNull(cache.get(1));
+		assertEquals("two", cache.get(2));
+		assertEquals(1, cache.size());
+		assertEquals(1L, cache.getEvictionCount());
+		assertEquals(1L, cache.getHitCount());
+		assertEquals(1L, cache.getMissCount());
+
+		cache = new StripedCache<Integer, String>(1, 10, LENGTH);
+		cache.put(1, "12345");
+		assertEquals("12345", cache.get(1));
+		cache.put(2, "12345678901");
+		assertNull("Values heavier than the cache are not cached", cache
+				.get(2));
+		assertEquals(5L, cache.getWeight());
+	}
+
+	@Test
+	public void testWeightBound() {
+		StripedCache<Integer, String> cache = new StripedCache<Integer, String>(
+				1000, 1600, LENGTH);
+		for (int i = 0; i < 1000; i++)
+			cache.put(i, "0123456789");
+		assertTrue(cache.getWeight() <= 1600);
+		assertTrue(cache.size() <= 160);
+		assertTrue(cache.getEvictionCount() >= 840);
+
+		cache.put(5000, "x");
+		assertEquals("x", cache.remove(5000));
+		assertNull(cache.get(5000));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0L, cache.getWeight());
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final StripedCache<Integer, String> cache = new StripedCache<Integer, String>(
+				64, 64 * 4, LENGTH);
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			final int seed = t;
+			new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 10000; i++) {
+							int key = (i * 31 + seed) % 200;
+							String value = cache.get(key);
+							if (value != null
+									&& !value.equals(Integer.toString(key)))
+								errors.incrementAndGet();
+							if (value == null)
+								cache.put(key, Integer.toString(key));
+						}
+					} catch (RuntimeException re) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(0, errors.get());
+		assertTrue(cache.size() <= 64);
+		assertTrue(cache.getWeight() <= 64 * 4);
+		assertEquals(80000L, cache.getHitCount() + cache.getMissCount());
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		StripedCache<Integer, String> cache = new StripedCache<Integer, String>(
+				10);
+		cache.setTimeToLive(50);
+		assertNull(cache.putIfAbsent(1, "one"));
+		assertEquals("one", cache.putIfAbsent(1, "uno"));
+		assertEquals("one", cache.get(1));
+		Thread.sleep(100);
+		assertNull(cache.get(1));
+		assertEquals(1L, cache.getExpirationCount());
+		assertNull(cache.putIfAbsent(1, "uno"));
+
+		assertTrue(!cache.remove(1, "one"));
+		assertTrue(cache.remove(1, "uno"));
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of the OWASP Proxy, a free intercepting proxy library.
+ * Copyright (C) 2008-2010 Rogan Dawes <rogan@dawes.za.net>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to:
+ * The Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package org.owasp.proxy.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+	@Test
+	public void testPlatformThread() throws Exception {
+		assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+		Thread t = VirtualThreads.newThread(new Runnable() {
+			public void run() {
+			}
+		}, "platform");
+		assertTrue(t.isDaemon());
+		assertFalse(VirtualThreads.isVirtual(t));
+		assertEquals("platform", t.getName());
+	}
+
+	/*
+	 * JUnit 4.1 has no Assume, so each test checks the behaviour expected of
+	 * the JVM it is running on rather than silently passing.
+	 */
+	@Test
+	public void testThreadKindInherited() throws Exception {
+		final boolean[] virtual = new boolean[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		ExecutorService platform = Executors.newSingleThreadExecutor();
+		Executor executor = VirtualThreads.isSupported() ? VirtualThreads
+				.newExecutor("test-") : platform;
+		executor.execute(new Runnable() {
+			public void run() {
+				Thread child = VirtualThreads.newThread(new Runnable() {
+					public void run() {
+						virtual[0] = VirtualThreads.isVirtual(Thread
+								.currentThread());
+						done.countDown();
+					}
+				}, "child");
+				child.start();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		platform.shutdown();
+		assertEquals("Child thread was not the same kind as its parent",
+				VirtualThreads.isSupported(), virtual[0]);
+	}
+
+	@Test
+	public void testNewExecutor() throws Exception {
+		Executor executor;
+		try {
+			executor = VirtualThreads.newExecutor("test-");
+		} catch (UnsupportedOperationException uoe) {
+			assertFalse("Virtual threads are supported, but no executor",
+					VirtualThreads.isSupported());
+			return;
+		}
+		assertTrue("Executor created without virtual thread support",
+				VirtualThreads.isSupported());
+		final boolean[] virtual = new boolean[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				virtual[0] = VirtualThreads.isVirtual(Thread.currentThread());
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue("Executor thread was not virtual", virtual[0]);
+	}
+
+}